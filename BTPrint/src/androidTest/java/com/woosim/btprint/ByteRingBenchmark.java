@@ -0,0 +1,133 @@
+package com.woosim.btprint;
+
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.*;
+
+/**
+ * Microbenchmark of the receive queue: {@link ByteRing} against a queue that takes a monitor
+ * for every byte, the way WoosimService.Queue does. Both are fed in chunks by one thread and
+ * read byte by byte by another, which is how the reply parser consumes them. Both sides yield
+ * when they have to wait, so only the cost of the queue operations differs. Results are
+ * logged with the tag ByteRingBenchmark.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ByteRingBenchmark {
+    private static final String TAG = "ByteRingBenchmark";
+    private static final int CHUNK = 64;
+    private static final int CAPACITY = 1024;
+    private static final int BYTES = 16 * 1024 * 1024;
+    private static final int ROUNDS = 5;
+
+    @Test
+    public void ringAgainstLockedQueue() throws Exception {
+        long locked = Long.MAX_VALUE;
+        long ring = Long.MAX_VALUE;
+        for (int i = 0; i < ROUNDS; i++) {
+            locked = Math.min(locked, runLocked());
+            ring = Math.min(ring, runRing());
+        }
+        Log.i(TAG, String.format("locked queue %.2f ns/byte, ring %.2f ns/byte",
+                (double) locked / BYTES, (double) ring / BYTES));
+    }
+
+    private static long runRing() throws Exception {
+        ByteRing ring = new ByteRing(CAPACITY);
+        long[] sum = new long[1];
+        Thread consumer = new Thread(() -> {
+            for (int n = 0; n < BYTES; ) {
+                int b = ring.read();
+                if (b < 0) {
+                    Thread.yield();
+                } else {
+                    sum[0] += b;
+                    n++;
+                }
+            }
+        });
+        return measure(consumer, chunk -> {
+            while (!ring.offer(chunk, 0, chunk.length)) {
+                Thread.yield();
+            }
+        }, sum);
+    }
+
+    private static long runLocked() throws Exception {
+        LockedQueue queue = new LockedQueue(CAPACITY);
+        long[] sum = new long[1];
+        Thread consumer = new Thread(() -> {
+            for (int n = 0; n < BYTES; ) {
+                if (queue.isNotEmpty()) {
+                    sum[0] += queue.getByte() & 0xFF;
+                    n++;
+                } else {
+                    Thread.yield();
+                }
+            }
+        });
+        return measure(consumer, chunk -> {
+            while (!queue.add(chunk, chunk.length)) {
+                Thread.yield();
+            }
+        }, sum);
+    }
+
+    private interface Producer {
+        void offer(byte[] chunk);
+    }
+
+    private static long measure(Thread consumer, Producer producer, long[] sum) throws Exception {
+        byte[] chunk = new byte[CHUNK];
+        long expected = 0;
+        for (int i = 0; i < CHUNK; i++) {
+            chunk[i] = (byte) i;
+            expected += i;
+        }
+        long start = System.nanoTime();
+        consumer.start();
+        for (int n = 0; n < BYTES; n += CHUNK) {
+            producer.offer(chunk);
+        }
+        consumer.join();
+        long elapsed = System.nanoTime() - start;
+        assertEquals(expected * (BYTES / CHUNK), sum[0]);
+        return elapsed;
+    }
+
+    // Same locking as WoosimService.Queue
+    private static class LockedQueue {
+        private final byte[] mmBuffer;
+        private int mmFront;
+        private int mmRear;
+
+        LockedQueue(int size) {
+            mmBuffer = new byte[size];
+        }
+
+        synchronized boolean isNotEmpty() {
+            return mmFront != mmRear;
+        }
+
+        synchronized boolean add(byte[] data, int length) {
+            int remain = (mmRear - mmFront + mmBuffer.length) % mmBuffer.length;
+            if (length >= mmBuffer.length - remain)
+                return false;
+            for (int i = 0; i < length; i++) {
+                mmBuffer[(mmRear + i) % mmBuffer.length] = data[i];
+            }
+            mmRear = (mmRear + length) % mmBuffer.length;
+            return true;
+        }
+
+        synchronized byte getByte() {
+            byte b = mmBuffer[mmFront];
+            mmFront = (mmFront + 1) % mmBuffer.length;
+            return b;
+        }
+    }
+}
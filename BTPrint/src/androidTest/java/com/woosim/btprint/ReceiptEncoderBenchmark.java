@@ -0,0 +1,101 @@
+package com.woosim.btprint;
+
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import com.woosim.printer.WoosimBarcode;
+import com.woosim.printer.WoosimCmd;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.Assert.*;
+
+/**
+ * Microbenchmark of building the 1D barcode job of MainActivity: {@link ReceiptEncoder} against
+ * WoosimCmd arrays collected in a ByteArrayOutputStream, the way the job was built before.
+ * Both sides hand the finished job to a writer that drops it. The time per job is logged with
+ * the tag ReceiptEncoderBenchmark. This is a plain timed loop, not a JMH benchmark, so take
+ * the numbers as a rough comparison of the two sides.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ReceiptEncoderBenchmark {
+    private static final String TAG = "ReceiptEncoderBenchmark";
+    private static final int JOBS = 200000;
+    private static final int ROUNDS = 5;
+    private static final byte[] BARCODE = {0x30,0x31,0x32,0x33,0x34,0x35,0x36,0x37,0x38,0x39,0x30};
+    private static final byte[] BARCODE8 = {0x30,0x31,0x32,0x33,0x34,0x35,0x36,0x37};
+    private static final byte[] BARCODE_UPCE = {0x30,0x36,0x35,0x31,0x30,0x30,0x30,0x30,0x34,0x33,0x32,0x37};
+    private static final int[] TYPES = {
+            WoosimBarcode.UPC_A, WoosimBarcode.UPC_E, WoosimBarcode.EAN13, WoosimBarcode.EAN8,
+            WoosimBarcode.CODE39, WoosimBarcode.ITF, WoosimBarcode.CODEBAR, WoosimBarcode.CODE93,
+            WoosimBarcode.CODE128
+    };
+    private static final byte[][] DATA = {
+            BARCODE, BARCODE_UPCE, BARCODE_UPCE, BARCODE8, BARCODE, BARCODE, BARCODE, BARCODE, BARCODE
+    };
+    private static final String[] TITLES = {
+            "UPC-A Barcode\r\n", "UPC-E Barcode\r\n", "EAN13 Barcode\r\n", "EAN8 Barcode\r\n",
+            "CODE39 Barcode\r\n", "ITF Barcode\r\n", "CODEBAR Barcode\r\n", "CODE93 Barcode\r\n",
+            "CODE128 Barcode\r\n"
+    };
+    private static final CompletableFuture<Void> SENT = CompletableFuture.completedFuture(null);
+
+    private static long sSink;
+
+    @Test
+    public void encoderAgainstByteArrayOutputStream() throws IOException {
+        long legacyTime = Long.MAX_VALUE;
+        long encoderTime = Long.MAX_VALUE;
+        for (int i = 0; i < ROUNDS; i++) {
+            long start = System.nanoTime();
+            for (int n = 0; n < JOBS; n++) {
+                byte[] job = legacyJob();
+                sSink += drop(job, 0, job.length).isDone() ? job.length : 0;
+            }
+            legacyTime = Math.min(legacyTime, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            for (int n = 0; n < JOBS; n++) {
+                ReceiptEncoder encoder = encodeJob(ReceiptEncoder.obtain());
+                sSink += encoder.size();
+                encoder.send(ReceiptEncoderBenchmark::drop);
+            }
+            encoderTime = Math.min(encoderTime, System.nanoTime() - start);
+        }
+        Log.i(TAG, String.format("ByteArrayOutputStream %.0f ns/job, encoder %.0f ns/job",
+                (double) legacyTime / JOBS, (double) encoderTime / JOBS));
+        assertTrue(sSink > 0);
+    }
+
+    // print1DBarcode before the encoder
+    private static byte[] legacyJob() throws IOException {
+        final byte[] cmdPrint = WoosimCmd.printData();
+        ByteArrayOutputStream byteStream = new ByteArrayOutputStream(512);
+        byteStream.write(WoosimCmd.initPrinter());
+        for (int i = 0; i < TYPES.length; i++) {
+            byteStream.write(TITLES[i].getBytes());
+            byteStream.write(WoosimBarcode.createBarcode(TYPES[i], 2, 60, true, DATA[i]));
+            byteStream.write(cmdPrint);
+        }
+        return byteStream.toByteArray();
+    }
+
+    private static ReceiptEncoder encodeJob(ReceiptEncoder encoder) {
+        encoder.initPrinter();
+        for (int i = 0; i < TYPES.length; i++) {
+            encoder.text(TITLES[i]).barcode(TYPES[i], 2, 60, true, DATA[i]).printData();
+        }
+        return encoder;
+    }
+
+    private static CompletableFuture<Void> drop(byte[] data, int offset, int length) {
+        sSink += data[offset + length - 1];
+        return SENT;
+    }
+}
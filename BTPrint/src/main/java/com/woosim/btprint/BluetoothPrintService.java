@@ -4,36 +4,86 @@ import android.annotation.SuppressLint;
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothSocket;
 import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.Arrays;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.TreeSet;
 import java.util.UUID;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 
 class BluetoothPrintService {
     private static final String TAG = "BluetoothPrintService";
     private static final UUID SPP_UUID = UUID.fromString("00001101-0000-1000-8000-00805F9B34FB");
 
+    // Outgoing data is handed to the writer thread in chunks of up to this size, cut at command boundaries
+    private static final int WRITE_CHUNK_SIZE = 4096;
+    // Largest RFCOMM frame Android negotiates by default, the frame size for CoalescingWriter
+    static final int FRAME_SIZE = 990;
+    // Number of chunks of one job that can wait for the writer thread before write() applies backpressure
+    private static final int WRITE_QUEUE_CAPACITY = 64;
+    // How long write() waits for room in a full send queue before the write is failed
+    private static final long WRITE_QUEUE_TIMEOUT_MS = 3000;
+    // Longest time one write to the socket may block before the connection is aborted
+    private static final long WRITE_TIMEOUT_MS = 10000;
+    // Longest time the writes of one job may take in total; waiting while paused or reconnecting does not count
+    private static final long JOB_TIMEOUT_MS = 120000;
+    // Size of the buffer a connection reads into
+    private static final int RECEIVE_BUFFER_SIZE = 4096;
+    // Largest job whose written part is kept, to be sent again after a reconnect
+    private static final int MAX_REPLAY_SIZE = 256 * 1024;
+    // Backoff of the attempts to reconnect to a printer that was lost, about 40 s in total
+    private static final long RECONNECT_INITIAL_DELAY_MS = 500;
+    private static final long RECONNECT_MAX_DELAY_MS = 8000;
+    private static final int RECONNECT_MAX_ATTEMPTS = 8;
+    // Sent after a job that was cut by a cancel (ESC @); it initializes the printer, so the
+    // styles and modes the job set do not apply to the next one
+    private static final byte[] CANCEL_RESET = {0x1B, '@'};
+
+    // Priorities of print jobs; a job that has started is sent to its end before the next is chosen
+    static final int PRIORITY_URGENT = 0; // e.g. a reprint the customer is waiting for
+    static final int PRIORITY_NORMAL = 1;
+    static final int PRIORITY_BULK = 2;   // e.g. a large image, sent when no other job waits
+
     private final Handler mHandler;
+    private final ReceiveListener mReceiveListener;
+    private final ReconnectSupervisor mReconnect = new ReconnectSupervisor(this::reconnect,
+            RECONNECT_INITIAL_DELAY_MS, RECONNECT_MAX_DELAY_MS, RECONNECT_MAX_ATTEMPTS);
     private int mState;
     private ConnectThread mConnectThread;
     private ConnectedThread mConnectedThread;
+    // Keeps the queued data of the device across reconnects
+    private WriterThread mWriter;
+    private BluetoothDevice mDevice;
+    private boolean mOptimizeCommands;
 
     // Constants that indicate the current connection state
     static final int STATE_NONE = 0;               // we're doing nothing
     private static final int STATE_LISTEN = 1;     // now listening for incoming connections
     private static final int STATE_CONNECTING = 2; // now initiating an outgoing connection
     static final int STATE_CONNECTED = 3;          // now connected to a remote device
+    static final int STATE_RECONNECTING = 4;       // the connection was lost, connecting again
 
     /**
      * Constructor. Prepares a new Bluetooth session.
      * @param handler  A Handler to send messages back to the UI Activity
+     * @param listener  Listener for received bytes, called off the main thread
      */
-    BluetoothPrintService(Handler handler) {
+    BluetoothPrintService(Handler handler, ReceiveListener listener) {
         mState = STATE_NONE;
         mHandler = handler;
+        mReceiveListener = listener;
     }
 
     private synchronized void setState(int state) {
@@ -44,6 +94,16 @@ class BluetoothPrintService {
         return mState;
     }
 
+    /**
+     * Drop the commands of the jobs opened from now on that would not change the printer state,
+     * see CommandOptimizer. Off by default, so the bytes of a job are sent as they are written.
+     */
+    synchronized void setCommandOptimization(boolean enabled) {
+        mOptimizeCommands = enabled;
+        if (mWriter != null)
+            mWriter.mmOptimizeCommands = enabled;
+    }
+
     public synchronized void start() {
         // Cancel any thread attempting to make a connection
         if (mConnectThread != null) {
@@ -55,6 +115,7 @@ class BluetoothPrintService {
             mConnectedThread.cancel();
             mConnectedThread = null;
         }
+        closeWriter();
         setState(STATE_LISTEN);
     }
 
@@ -67,6 +128,7 @@ class BluetoothPrintService {
             mConnectedThread.cancel();
             mConnectedThread = null;
         }
+        closeWriter();
         setState(STATE_NONE);
     }
 
@@ -87,12 +149,32 @@ class BluetoothPrintService {
             mConnectedThread.cancel();
             mConnectedThread = null;
         }
+        // The data queued for another device is not sent to this one
+        closeWriter();
+        mDevice = device;
         // Start the thread to connect with the given device
         mConnectThread = new ConnectThread(device);
         mConnectThread.start();
         setState(STATE_CONNECTING);
     }
 
+    // Called by the supervisor for each attempt to reconnect to the device that was lost
+    private synchronized void reconnect() {
+        if (mState != STATE_RECONNECTING)
+            return;
+        mConnectThread = new ConnectThread(mDevice);
+        mConnectThread.start();
+    }
+
+    // Fail what is still queued and forget the device
+    private void closeWriter() {
+        mReconnect.cancel();
+        if (mWriter != null) {
+            mWriter.cancel();
+            mWriter = null;
+        }
+    }
+
     /**
      * Start the ConnectedThread to begin managing a Bluetooth connection
      * @param socket  The BluetoothSocket on which the connection was made
@@ -112,42 +194,167 @@ class BluetoothPrintService {
         // Start the thread to manage the connection and perform transmissions
         mConnectedThread = new ConnectedThread(socket);
         mConnectedThread.start();
+        mReconnect.connected();
+        // After a reconnect the writer goes on with the interrupted job
+        if (mWriter == null) {
+            mWriter = new WriterThread(this::connectionLost);
+            mWriter.mmOptimizeCommands = mOptimizeCommands;
+            mWriter.setOutput(mConnectedThread.mmOutStream);
+            mWriter.start();
+        } else {
+            mWriter.setOutput(mConnectedThread.mmOutStream);
+        }
         // Send the name of the connected device back to the UI Activity
         mHandler.obtainMessage(MainActivity.MESSAGE_DEVICE_NAME, deviceName).sendToTarget();
         setState(STATE_CONNECTED);
     }
 
     /**
-     * Write to the ConnectedThread in an un-synchronized manner
+     * Queue bytes for the writer thread of the current device, in a job of normal priority
+     * that lasts until endJob(). The call returns as soon as the bytes are queued; it only
+     * blocks while the send queue is full. While the service reconnects to a device that was
+     * lost, the bytes are queued for the new connection. On the main thread the call never
+     * waits for a paused or reconnecting queue, it fails instead.
+     * The array must not be modified until the returned future is completed.
      * @param out The bytes to write
-     * @see ConnectedThread#write(byte[])
+     * @return A future completed when all bytes are written to the socket
      */
-    void write(byte[] out) {
+    CompletableFuture<Void> write(byte[] out) {
+        return write(out, 0, out.length);
+    }
+
+    /**
+     * Queue length bytes of out starting at offset, e.g. the filled part of a reused buffer.
+     * @see #write(byte[])
+     */
+    CompletableFuture<Void> write(byte[] out, int offset, int length) {
         // Create temporary object
-        ConnectedThread r;
-        // Synchronize a copy of the ConnectedThread
+        WriterThread r;
+        // Synchronize a copy of the WriterThread
+        synchronized (this) {
+            if ((mState != STATE_CONNECTED && mState != STATE_RECONNECTING) || mWriter == null) {
+                return failedWrite(new IOException("not connected"));
+            }
+            r = mWriter;
+        }
+        // Queue the write un-synchronized
+        return r.write(out, offset, length);
+    }
+
+    /**
+     * Open a job in the send queue of the current device. Of the jobs waiting to be sent, the
+     * one with the highest priority goes first, so a reprint does not wait behind bulk data.
+     * @param priority  PRIORITY_URGENT, PRIORITY_NORMAL or PRIORITY_BULK
+     * @return The job; its writes fail if the service is not connected
+     */
+    PrintJob openJob(int priority) {
+        WriterThread r;
         synchronized (this) {
-            if (mState != STATE_CONNECTED) return;
-            r = mConnectedThread;
+            if ((mState != STATE_CONNECTED && mState != STATE_RECONNECTING) || mWriter == null) {
+                return new PrintJob(priority, new IOException("not connected"));
+            }
+            r = mWriter;
+        }
+        return r.open(priority);
+    }
+
+    /**
+     * Mark the end of a job in the send queue. If the connection is lost, the job being sent
+     * is sent again from its start after the reconnect, so what the printer printed of it
+     * before the loss is printed twice. A job too large to keep goes on where it stopped.
+     */
+    void endJob() {
+        WriterThread r;
+        synchronized (this) {
+            r = mWriter;
         }
-        // Perform the write un-synchronized
-        r.write(out);
+        if (r != null)
+            r.endJob();
     }
 
-    private void connectionFailed() {
+    /**
+     * Queue bytes ahead of the queued data, e.g. a status query or MSR control. The writer
+     * thread sends them before the next chunk of the queue, also while the queue is paused,
+     * but only at a command boundary of the job being sent, so they never land inside the
+     * data of a command such as a raster image. Large writes are split at their command
+     * boundaries, so urgent bytes wait for about one chunk. The call never blocks.
+     * The array must not be modified until the returned future is completed.
+     * @return A future completed when the bytes are written to the socket
+     */
+    CompletableFuture<Void> writeUrgent(byte[] out, int offset, int length) {
+        WriterThread r;
+        synchronized (this) {
+            if (mState != STATE_CONNECTED || mWriter == null) {
+                return failedWrite(new IOException("not connected"));
+            }
+            r = mWriter;
+        }
+        return r.writeUrgent(out, offset, length);
+    }
+
+    /**
+     * Hold back the queued data of the current device, e.g. while the printer is out of
+     * paper. Nothing is dropped: writes are still queued, and wait for resume() instead of
+     * failing when the queue is full, except on the main thread. A job in the middle of a
+     * command is held back once the command is sent, so the urgent writes can still go out.
+     * A new device starts unpaused.
+     */
+    synchronized void pause() {
+        if (mWriter != null)
+            mWriter.setPaused(true);
+    }
+
+    synchronized void resume() {
+        if (mWriter != null)
+            mWriter.setPaused(false);
+    }
+
+    private static CompletableFuture<Void> failedWrite(Throwable cause) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        future.completeExceptionally(cause);
+        return future;
+    }
+
+    private static boolean onMainThread() {
+        Looper main = Looper.getMainLooper();
+        return main != null && main.isCurrentThread();
+    }
+
+    private synchronized void connectionFailed() {
         // When the application is destroyed, just return
         if (mState == STATE_NONE)
             return;
+        if (mState == STATE_RECONNECTING) {
+            if (!mReconnect.retry())
+                giveUp();
+            return;
+        }
         // Send a failure message back to the Activity
         mHandler.obtainMessage(MainActivity.MESSAGE_TOAST, R.string.connect_fail, 0).sendToTarget();
         // Start the service over to restart listening mode
         this.start();
     }
 
-    private void connectionLost() {
-        // When the application is destroyed, just return
-        if (mState == STATE_NONE)
+    // Called by the receive side and by the writer, whichever notices first
+    private synchronized void connectionLost() {
+        // When the application is destroyed or the loss was already handled, just return
+        if (mState != STATE_CONNECTED)
             return;
+        if (mConnectedThread != null) {
+            mConnectedThread.cancel();
+            mConnectedThread = null;
+        }
+        // The writer holds the data back until the device is connected again
+        mWriter.setOutput(null);
+        if (mReconnect.retry()) {
+            mHandler.obtainMessage(MainActivity.MESSAGE_TOAST, R.string.reconnecting, 0).sendToTarget();
+            setState(STATE_RECONNECTING);
+        } else {
+            giveUp();
+        }
+    }
+
+    private void giveUp() {
         // Send a failure message back to the Activity
         mHandler.obtainMessage(MainActivity.MESSAGE_TOAST, R.string.connect_lost, 0).sendToTarget();
         // Start the service over to restart listening mode
@@ -217,6 +424,7 @@ class BluetoothPrintService {
         private final BluetoothSocket mmSocket;
         private final InputStream mmInStream;
         private final OutputStream mmOutStream;
+        private volatile boolean mmCanceled;
 
         ConnectedThread(BluetoothSocket socket) {
             mmSocket = socket;
@@ -234,44 +442,830 @@ class BluetoothPrintService {
         }
 
         public void run() {
-            byte[] buffer = new byte[1024];
+            byte[] buffer = new byte[RECEIVE_BUFFER_SIZE];
             // Keep listening to the InputStream while connected
             while (true) {
                 try {
-                    // Read from the InputStream
                     int bytes = mmInStream.read(buffer);
-                    // buffer can be over-written by next input stream data, so it should be copied
-                    byte[] rcvData = Arrays.copyOf(buffer, bytes);
-                    // Send the obtained bytes to the UI Activity
-                    mHandler.obtainMessage(MainActivity.MESSAGE_READ, bytes, -1, rcvData).sendToTarget();
+                    if (bytes < 0)
+                        throw new IOException("end of stream");
+                    // The listener copies what it keeps, so the buffer is reused
+                    if (mReceiveListener != null)
+                        mReceiveListener.onReceive(buffer, bytes);
                 } catch (IOException e) {
-                    Log.e(TAG, "Connection Lost", e);
-                    connectionLost();
+                    // A connection closed by the service is not lost
+                    if (!mmCanceled) {
+                        Log.e(TAG, "Connection Lost", e);
+                        connectionLost();
+                    }
                     break;
                 }
             }
         }
 
+        void cancel() {
+            mmCanceled = true;
+            try {
+                mmInStream.close();
+                mmOutStream.close();
+                mmSocket.close();
+            } catch (IOException e) {
+                Log.e(TAG, "close() of connect socket failed", e);
+            }
+        }
+    }
+
+    /**
+     * A slice of a queued write. Every chunk of one write shares the same future,
+     * which is completed when the last chunk has been written.
+     */
+    private static class Chunk {
+        final byte[] data;
+        final int offset;
+        final int length;
+        final boolean last;
+        // The job may be cut after this chunk, it does not end inside a command
+        final boolean boundary;
+        // The last chunk holds the write as it was queued, before the optimizer, for the replay
+        final byte[] source;
+        final int sourceOffset;
+        final int sourceLength;
+        final CompletableFuture<Void> done;
+
+        Chunk(byte[] data, int offset, int length, boolean boundary, byte[] source, int sourceOffset,
+              int sourceLength, CompletableFuture<Void> done) {
+            this.data = data;
+            this.offset = offset;
+            this.length = length;
+            this.last = source != null;
+            this.boundary = boundary;
+            this.source = source;
+            this.sourceOffset = sourceOffset;
+            this.sourceLength = sourceLength;
+            this.done = done;
+        }
+    }
+
+    /**
+     * A job in the send queue of a device, see openJob(). Its methods may be called from any
+     * thread; end() must be called once all of it is written, or the jobs after it wait.
+     */
+    static class PrintJob {
+        private final WriterThread mmWriter;
+        private final int mmPriority;
+        private final long mmSequence;
+        // Jobs are not sent in the order they are written, so each is optimized on its own. Without
+        // optimization it still follows the command boundaries, where urgent bytes may be sent
+        private final CommandOptimizer mmOptimizer;
+        // Keeps the chunks of one write contiguous when several threads write at once
+        private final ReentrantLock mmEnqueueLock = new ReentrantLock();
+        // One permit per free slot in the queue of the job
+        private final Semaphore mmSlots = new Semaphore(WRITE_QUEUE_CAPACITY, true);
+        // Connection losses the optimizer knows of; only used under mmEnqueueLock
+        private int mmLosses;
+        private final CompletableFuture<Void> mmDone = new CompletableFuture<>();
+        // Guarded by the job queue of the writer
+        private final ArrayDeque<Chunk> mmChunks = new ArrayDeque<>();
+        private boolean mmEnded;
+        // end() was called while a write was being queued, the writing thread ends the job;
+        // guarded by the job queue of the writer
+        private boolean mmEndPending;
+        private boolean mmCancelRequested;
+        private Throwable mmFailure;
+
+        PrintJob(WriterThread writer, int priority, long sequence, int losses, boolean optimize) {
+            mmWriter = writer;
+            mmPriority = priority;
+            mmSequence = sequence;
+            mmLosses = losses;
+            mmOptimizer = new CommandOptimizer(optimize, WRITE_CHUNK_SIZE);
+        }
+
+        // A job of a service that is not connected
+        PrintJob(int priority, Throwable failure) {
+            this(null, priority, 0, 0, false);
+            mmFailure = failure;
+            mmDone.completeExceptionally(failure);
+        }
+
+        int getPriority() {
+            return mmPriority;
+        }
+
+        CompletableFuture<Void> write(byte[] data) {
+            return write(data, 0, data.length);
+        }
+
+        /**
+         * Queue bytes of the job. The array must not be modified until the returned future
+         * is completed.
+         * @return A future completed when the bytes are written to the socket
+         */
+        CompletableFuture<Void> write(byte[] data, int offset, int length) {
+            if (mmWriter == null)
+                return failedWrite(mmFailure);
+            CompletableFuture<Void> done = mmWriter.enqueue(this, data, offset, length);
+            return done != null ? done : failedWrite(new IllegalStateException("job has ended"));
+        }
+
+        /**
+         * No more writes follow.
+         * @return A future completed when the whole job is written, or failed if it was
+         *         canceled or could not be sent
+         */
+        CompletableFuture<Void> end() {
+            if (mmWriter != null)
+                mmWriter.end(this);
+            return mmDone;
+        }
+
+        /**
+         * Drop the job. A job that is waiting is taken out of the queue; a job being sent is
+         * cut at the next command boundary, after which ESC @ resets the styles and modes it
+         * set; what the printer received of it is still printed. The futures of the bytes not
+         * sent fail with a CancellationException.
+         * @return false if the job was already written, failed or canceled
+         */
+        boolean cancel() {
+            return mmWriter != null && mmWriter.cancel(this);
+        }
+    }
+
+    // Jobs of higher priority first, then in the order they were opened
+    private static final Comparator<PrintJob> JOB_ORDER = (a, b) -> a.mmPriority != b.mmPriority
+            ? Integer.compare(a.mmPriority, b.mmPriority) : Long.compare(a.mmSequence, b.mmSequence);
+
+    /**
+     * This thread drains the send queue of a device, so the callers of write() and
+     * writeUrgent() never block on the RFCOMM output stream. The queue holds one queue of
+     * chunks per job and sends the jobs one after the other, by priority. It outlives the
+     * connections to the device: when one is lost, the queue waits for the next, which first
+     * gets the part of the current job that was already written, since the printer may not
+     * have received it.
+     */
+    static class WriterThread extends Thread {
+        private final Runnable mmOnLost;
+        // Open jobs in the order they are sent, guarded by itself; a job leaves once it is sent
+        private final TreeSet<PrintJob> mmJobs = new TreeSet<>(JOB_ORDER);
+        private long mmNextSequence;
+        // The job of write() and endJob(), opened by the first write after endJob()
+        private PrintJob mmDefaultJob;
+        // The job being sent, it is sent to its end before the next is chosen
+        private PrintJob mmCurrent;
+        // Urgent writes, sent before the next chunk once the current job is at a command
+        // boundary; guarded by mmJobs
+        private final ArrayDeque<Chunk> mmUrgent = new ArrayDeque<>();
+        // The queued chunks wait while paused or not connected; urgent writes do not
+        private final Object mmGate = new Object();
+        private volatile OutputStream mmOut;
+        private volatile boolean mmPaused;
+        private volatile boolean mmCanceled;
+        // Set when the connection is lost, cleared once the next one got the replay
+        private boolean mmReplay;
+        // A printer that was reconnected may have been reset
+        private volatile int mmLosses;
+        // Whether the jobs opened from now on are optimized, see setCommandOptimization()
+        private volatile boolean mmOptimizeCommands;
+        // The writes of the current job written so far, as they were queued; only used by the
+        // writer thread. Optimized bytes rely on the printer state before the loss, so they
+        // are not replayed, except the chunks written of a write that was cut by the loss.
+        private final ByteArrayOutputStream mmJob = new ByteArrayOutputStream();
+        private final ByteArrayOutputStream mmWrite = new ByteArrayOutputStream();
+        private boolean mmJobTooLarge;
+        private long mmJobSent;
+        // The current job may be cut after the bytes written so far
+        private boolean mmAtBoundary = true;
+        // Aborts a write that blocks; only the writer thread writes, so one is enough
+        private final WriteWatchdog mmWatchdog = new WriteWatchdog();
+        // Write time left for the current job; only used by the writer thread
+        private long mmJobBudgetMs = JOB_TIMEOUT_MS;
+
         /**
-         * Write to the connected OutStream.
-         * @param buffer  The bytes to write
+         * @param onLost  Called when a write fails, once per connection
          */
-        void write(byte[] buffer) {
+        WriterThread(Runnable onLost) {
+            super("BluetoothWriter");
+            mmOnLost = onLost;
+        }
+
+        /**
+         * Start writing to the stream of a new connection, or stop writing with null.
+         */
+        void setOutput(OutputStream out) {
+            synchronized (mmGate) {
+                if (out == null && mmOut != null) {
+                    mmReplay = true;
+                    mmLosses++;
+                }
+                mmOut = out;
+                mmGate.notifyAll();
+            }
+        }
+
+        PrintJob open(int priority) {
+            synchronized (mmJobs) {
+                PrintJob job = new PrintJob(this, priority, mmNextSequence++, mmLosses, mmOptimizeCommands);
+                mmJobs.add(job);
+                return job;
+            }
+        }
+
+        // Write to the job of write(), which is opened with normal priority
+        CompletableFuture<Void> write(byte[] data, int start, int size) {
+            while (true) {
+                PrintJob job;
+                synchronized (mmJobs) {
+                    if (mmDefaultJob == null)
+                        mmDefaultJob = open(PRIORITY_NORMAL);
+                    job = mmDefaultJob;
+                }
+                CompletableFuture<Void> done = enqueue(job, data, start, size);
+                // Ended in between by endJob(), the bytes belong to the next job
+                if (done != null)
+                    return done;
+            }
+        }
+
+        void endJob() {
+            PrintJob job;
+            synchronized (mmJobs) {
+                job = mmDefaultJob;
+            }
+            if (job != null)
+                end(job);
+        }
+
+        CompletableFuture<Void> writeUrgent(byte[] data, int offset, int length) {
+            CompletableFuture<Void> done = new CompletableFuture<>();
+            synchronized (mmJobs) {
+                if (mmCanceled) {
+                    done.completeExceptionally(new IOException("connection closed"));
+                    return done;
+                }
+                mmUrgent.add(new Chunk(data, offset, length, true, null, 0, 0, done));
+                mmJobs.notifyAll();
+            }
+            // Wake the writer if it waits for a paused queue
+            synchronized (mmGate) {
+                mmGate.notifyAll();
+            }
+            return done;
+        }
+
+        /**
+         * @return The future of the write, or null if the job has ended
+         */
+        CompletableFuture<Void> enqueue(PrintJob job, byte[] data, int start, int size) {
+            CompletableFuture<Void> done = new CompletableFuture<>();
             try {
-                mmOutStream.write(buffer);
-            } catch (IOException e) {
-                Log.e(TAG, "Exception during write", e);
+                if (!lockEnqueue(job)) {
+                    done.completeExceptionally(queueError());
+                    return done;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                done.completeExceptionally(e);
+                return done;
+            }
+            try {
+                synchronized (mmJobs) {
+                    if (job.mmEnded)
+                        return null;
+                    if (job.mmFailure != null || job.mmCancelRequested) {
+                        done.completeExceptionally(job.mmFailure != null ? job.mmFailure
+                                : new CancellationException("job canceled"));
+                        return done;
+                    }
+                }
+                if (size == 0) {
+                    done.complete(null);
+                    return done;
+                }
+                int losses = mmLosses;
+                if (job.mmLosses != losses) {
+                    job.mmLosses = losses;
+                    job.mmOptimizer.invalidate();
+                }
+                // Drop the commands that would not change the printer state
+                byte[] out = job.mmOptimizer.optimize(data, start, size);
+                int outStart = out == data ? start : 0;
+                int outSize = job.mmOptimizer.getLength();
+                if (outSize < size)
+                    Log.d(TAG, "job of " + size + " bytes, " + (size - outSize) + " saved");
+                if (outSize == 0) {
+                    done.complete(null);
+                    return done;
+                }
+                // Chunks end at command boundaries where they can, so urgent writes go out between them
+                int chunks = job.mmOptimizer.getPieceCount();
+                try {
+                    // Reserve room for the whole write at once, so a timeout never leaves half a job queued
+                    int reserved = Math.min(chunks, WRITE_QUEUE_CAPACITY);
+                    if (!acquireSlots(job, reserved)) {
+                        // The optimizer counted the job as sent
+                        job.mmOptimizer.invalidate();
+                        done.completeExceptionally(queueError());
+                        return done;
+                    }
+                    for (int i = 0; i < chunks; i++) {
+                        // Writes larger than the queue wait for the writer to drain
+                        if (i >= reserved && !acquireSlots(job, 1)) {
+                            // Part of the write is queued already, so the rest of the job is failed
+                            IOException error = queueError();
+                            synchronized (mmJobs) {
+                                if (job.mmFailure == null)
+                                    fail(job, error);
+                            }
+                            done.completeExceptionally(error);
+                            return done;
+                        }
+                        int offset = i > 0 ? job.mmOptimizer.getPieceEnd(i - 1) : 0;
+                        int length = job.mmOptimizer.getPieceEnd(i) - offset;
+                        boolean last = i == chunks - 1;
+                        Chunk chunk = new Chunk(out, outStart + offset, length,
+                                job.mmOptimizer.pieceEndsAtBoundary(i), last ? data : null, start, size, done);
+                        synchronized (mmJobs) {
+                            // Canceled or failed while the write was queued
+                            if (job.mmFailure != null) {
+                                job.mmSlots.release(reserved > i ? reserved - i : 1);
+                                done.completeExceptionally(job.mmFailure);
+                                return done;
+                            }
+                            job.mmChunks.add(chunk);
+                            mmJobs.notifyAll();
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    job.mmOptimizer.invalidate();
+                    done.completeExceptionally(e);
+                    return done;
+                }
+            } finally {
+                unlockEnqueue(job);
             }
+            if (mmCanceled)
+                failPending(new IOException("connection closed"));
+            return done;
         }
 
-        void cancel() {
+        // Wait for room in the queue of the job, as long as the connection is open
+        private boolean acquireSlots(PrintJob job, int slots) throws InterruptedException {
+            if (onMainThread()) {
+                // The main thread only waits for a queue that is being drained
+                long timeoutMs = mmPaused || mmOut == null ? 0 : WRITE_QUEUE_TIMEOUT_MS;
+                if (!job.mmSlots.tryAcquire(slots, timeoutMs, TimeUnit.MILLISECONDS))
+                    return false;
+            } else {
+                while (!job.mmSlots.tryAcquire(slots, WRITE_QUEUE_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                    // A job waiting for its turn, a paused or a reconnecting queue is waited for
+                    if ((mmPaused || mmOut == null || !isCurrent(job)) && !mmCanceled)
+                        continue;
+                    return false;
+                }
+            }
+            if (mmCanceled) {
+                job.mmSlots.release(slots);
+                return false;
+            }
+            return true;
+        }
+
+        // Never waits: a write that is being queued, maybe for a paused queue, ends the job after it
+        void end(PrintJob job) {
+            synchronized (mmJobs) {
+                if (mmDefaultJob == job)
+                    mmDefaultJob = null;
+                if (!job.mmEnqueueLock.tryLock()) {
+                    job.mmEndPending = true;
+                    return;
+                }
+                try {
+                    ended(job);
+                } finally {
+                    job.mmEnqueueLock.unlock();
+                }
+            }
+        }
+
+        // Called under mmJobs and the enqueue lock of the job
+        private void ended(PrintJob job) {
+            job.mmEnded = true;
+            // A waiting job with nothing queued is done; the current one is finished by the writer
+            if (job != mmCurrent && job.mmChunks.isEmpty() && mmJobs.remove(job)) {
+                if (job.mmFailure == null)
+                    job.mmDone.complete(null);
+            }
+            mmJobs.notifyAll();
+        }
+
+        // The main thread does not wait behind a write that waits for a paused or reconnecting queue
+        private boolean lockEnqueue(PrintJob job) throws InterruptedException {
+            if (!onMainThread()) {
+                job.mmEnqueueLock.lockInterruptibly();
+                return true;
+            }
+            long timeoutMs = mmPaused || mmOut == null ? 0 : WRITE_QUEUE_TIMEOUT_MS;
+            return job.mmEnqueueLock.tryLock(timeoutMs, TimeUnit.MILLISECONDS);
+        }
+
+        private void unlockEnqueue(PrintJob job) {
+            // Under mmJobs, so an end() that did not get the lock is never missed
+            synchronized (mmJobs) {
+                if (job.mmEndPending) {
+                    job.mmEndPending = false;
+                    ended(job);
+                }
+                job.mmEnqueueLock.unlock();
+            }
+        }
+
+        private IOException queueError() {
+            if (mmCanceled)
+                return new IOException("connection closed");
+            if (mmOut == null)
+                return new IOException("not connected");
+            return new IOException(mmPaused ? "send queue is paused" : "send queue is full");
+        }
+
+        boolean cancel(PrintJob job) {
+            synchronized (mmJobs) {
+                if (job.mmCancelRequested || job.mmDone.isDone())
+                    return false;
+                job.mmCancelRequested = true;
+                if (job != mmCurrent) {
+                    mmJobs.remove(job);
+                    fail(job, new CancellationException("job canceled"));
+                }
+                mmJobs.notifyAll();
+            }
+            // Wake the writer if it waits for a paused queue
+            synchronized (mmGate) {
+                mmGate.notifyAll();
+            }
+            return true;
+        }
+
+        private boolean isCurrent(PrintJob job) {
+            synchronized (mmJobs) {
+                return mmCurrent == job;
+            }
+        }
+
+        public void run() {
+            PrintJob job = null;
+            Chunk chunk = null;
             try {
-                mmInStream.close();
-                mmOutStream.close();
-                mmSocket.close();
+                while (!mmCanceled) {
+                    if (job == null)
+                        job = nextJob();
+                    if (chunk == null)
+                        chunk = nextChunk(job);
+                    if (chunk == null) {
+                        finishJob(job);
+                        job = null;
+                        continue;
+                    }
+                    OutputStream out = awaitOutput(job);
+                    if (out == null) {
+                        // Canceled while waiting; the job is cut before this chunk
+                        chunk.done.completeExceptionally(new CancellationException("job canceled"));
+                        job.mmSlots.release();
+                        chunk = null;
+                        continue;
+                    }
+                    sendUrgent(takeUrgent());
+                    if (mmJobSent == 0 && overtaken(job, chunk)) {
+                        job = null;
+                        chunk = null;
+                        continue;
+                    }
+                    // After a failed write the same chunk is sent to the next connection
+                    if (!send(out, job, chunk))
+                        continue;
+                    if (chunk.last)
+                        chunk.done.complete(null);
+                    job.mmSlots.release();
+                    chunk = null;
+                }
+            } catch (InterruptedException e) {
+                // Canceled
+            }
+            if (chunk != null) {
+                chunk.done.completeExceptionally(new IOException("connection closed"));
+                job.mmSlots.release();
+            }
+            failPending(new IOException("connection closed"));
+        }
+
+        // Wait for the first job in order that has something to send, sending the urgent writes meanwhile
+        private PrintJob nextJob() throws InterruptedException {
+            while (true) {
+                List<Chunk> urgent;
+                synchronized (mmJobs) {
+                    while (true) {
+                        if (mmCanceled)
+                            throw new InterruptedException();
+                        for (PrintJob job : mmJobs) {
+                            if (!job.mmChunks.isEmpty()) {
+                                mmCurrent = job;
+                                return job;
+                            }
+                            // Its last write is still being queued, the jobs after it wait for it
+                            if (job.mmEndPending)
+                                break;
+                        }
+                        urgent = takeUrgent();
+                        if (urgent != null)
+                            break;
+                        mmJobs.wait();
+                    }
+                }
+                sendUrgent(urgent);
+            }
+        }
+
+        // A job that has not started gives way to a job of higher priority queued while it waited
+        private boolean overtaken(PrintJob job, Chunk chunk) {
+            synchronized (mmJobs) {
+                for (PrintJob first : mmJobs) {
+                    if (first == job)
+                        return false;
+                    if (!first.mmChunks.isEmpty()) {
+                        job.mmChunks.addFirst(chunk);
+                        mmCurrent = null;
+                        return true;
+                    }
+                }
+                return false;
+            }
+        }
+
+        /**
+         * @return The next chunk of the job, or null when the job has ended, failed or stops after a cancel
+         */
+        private Chunk nextChunk(PrintJob job) throws InterruptedException {
+            while (true) {
+                List<Chunk> urgent;
+                synchronized (mmJobs) {
+                    while (true) {
+                        if (mmCanceled)
+                            throw new InterruptedException();
+                        if (job.mmFailure != null)
+                            return null;
+                        // Nothing more is written after a cancel, so the job cannot wait for a boundary
+                        if (job.mmCancelRequested && (mmAtBoundary || job.mmChunks.isEmpty()))
+                            return null;
+                        Chunk chunk = job.mmChunks.poll();
+                        if (chunk != null)
+                            return chunk;
+                        if (job.mmEnded)
+                            return null;
+                        // A job waiting for its next write in the middle of a command holds them back
+                        urgent = takeUrgent();
+                        if (urgent != null)
+                            break;
+                        mmJobs.wait();
+                    }
+                }
+                sendUrgent(urgent);
+            }
+        }
+
+        // The urgent writes to send now, or null; they wait while the current job is inside a command
+        private List<Chunk> takeUrgent() {
+            synchronized (mmJobs) {
+                if (!mmAtBoundary || mmUrgent.isEmpty())
+                    return null;
+                List<Chunk> urgent = new ArrayList<>(mmUrgent);
+                mmUrgent.clear();
+                return urgent;
+            }
+        }
+
+        private void sendUrgent(List<Chunk> urgent) {
+            if (urgent == null)
+                return;
+            OutputStream out = mmOut;
+            for (Chunk chunk : urgent) {
+                IOException error = out == null ? new IOException("not connected")
+                        : writeWatched(out, chunk.data, chunk.offset, chunk.length, WRITE_TIMEOUT_MS,
+                                "urgent write timed out");
+                if (error == null) {
+                    chunk.done.complete(null);
+                    continue;
+                }
+                Log.e(TAG, "Exception during write", error);
+                chunk.done.completeExceptionally(error);
+                if (out != null) {
+                    lost(out);
+                    out = null;
+                }
+            }
+        }
+
+        private void finishJob(PrintJob job) {
+            boolean canceled;
+            synchronized (mmJobs) {
+                canceled = job.mmFailure == null && job.mmCancelRequested;
+            }
+            if (canceled && mmJobSent > 0) {
+                Log.d(TAG, "job canceled after " + mmJobSent + " bytes");
+                // The job was cut between two commands; reset the styles and modes it set
+                OutputStream out = mmOut;
+                IOException error = out == null ? null
+                        : writeWatched(out, CANCEL_RESET, 0, CANCEL_RESET.length, WRITE_TIMEOUT_MS, "reset timed out");
+                if (error != null) {
+                    Log.e(TAG, "Exception during write", error);
+                    lost(out);
+                }
+            }
+            synchronized (mmJobs) {
+                mmJobs.remove(job);
+                mmCurrent = null;
+                if (canceled)
+                    fail(job, new CancellationException("job canceled"));
+                else if (job.mmFailure == null)
+                    job.mmDone.complete(null);
+            }
+            mmJob.reset();
+            mmWrite.reset();
+            mmJobTooLarge = false;
+            mmJobSent = 0;
+            mmAtBoundary = true;
+            mmJobBudgetMs = JOB_TIMEOUT_MS;
+        }
+
+        // Fail the queued part of a job and the writes that follow it; called under mmJobs
+        private void fail(PrintJob job, Throwable cause) {
+            job.mmFailure = cause;
+            Chunk chunk;
+            while ((chunk = job.mmChunks.poll()) != null) {
+                chunk.done.completeExceptionally(cause);
+                job.mmSlots.release();
+            }
+            job.mmDone.completeExceptionally(cause);
+            // Wake the writes waiting for room, they fail as well
+            job.mmSlots.release(WRITE_QUEUE_CAPACITY);
+        }
+
+        void setPaused(boolean paused) {
+            synchronized (mmGate) {
+                if (mmPaused == paused)
+                    return;
+                mmPaused = paused;
+                mmGate.notifyAll();
+            }
+            Log.d(TAG, paused ? "send queue paused" : "send queue resumed");
+        }
+
+        private boolean send(OutputStream out, PrintJob job, Chunk chunk) {
+            boolean replay;
+            synchronized (mmGate) {
+                replay = mmReplay && mmJob.size() + mmWrite.size() > 0;
+            }
+            IOException error = null;
+            if (replay) {
+                Log.d(TAG, "replaying " + (mmJob.size() + mmWrite.size()) + " bytes of the interrupted job");
+                byte[] sent = mmJob.toByteArray();
+                error = writeJob(out, sent, 0, sent.length);
+                if (error == null) {
+                    sent = mmWrite.toByteArray();
+                    error = writeJob(out, sent, 0, sent.length);
+                }
+            }
+            if (error == null)
+                error = writeJob(out, chunk.data, chunk.offset, chunk.length);
+            if (error instanceof WriteTimeoutException) {
+                // A stalled job is failed rather than sent again, so it can be sent elsewhere
+                mmJob.reset();
+                mmWrite.reset();
+                chunk.done.completeExceptionally(error);
+                synchronized (mmJobs) {
+                    fail(job, error);
+                }
+                lost(out);
+                return true;
+            }
+            if (error != null) {
+                Log.e(TAG, "Exception during write", error);
+                lost(out);
+                return false;
+            }
+            synchronized (mmGate) {
+                if (mmOut == out)
+                    mmReplay = false;
+            }
+            mmJobSent += chunk.length;
+            mmAtBoundary = chunk.boundary;
+            // A job too large to keep is resumed where it stopped instead
+            int kept = mmJob.size() + (chunk.last ? chunk.sourceLength : mmWrite.size() + chunk.length);
+            if (!mmJobTooLarge && kept > MAX_REPLAY_SIZE) {
+                mmJob.reset();
+                mmWrite.reset();
+                mmJobTooLarge = true;
+            }
+            if (mmJobTooLarge)
+                return true;
+            if (chunk.last) {
+                mmWrite.reset();
+                mmJob.write(chunk.source, chunk.sourceOffset, chunk.sourceLength);
+            } else {
+                mmWrite.write(chunk.data, chunk.offset, chunk.length);
+            }
+            return true;
+        }
+
+        // Write bytes of the current job, within the write time left for it
+        private IOException writeJob(OutputStream out, byte[] data, int offset, int length) {
+            if (length == 0)
+                return null;
+            long timeoutMs = Math.min(WRITE_TIMEOUT_MS, mmJobBudgetMs);
+            long started = System.nanoTime();
+            IOException error = writeWatched(out, data, offset, length, timeoutMs,
+                    timeoutMs == mmJobBudgetMs ? "job timed out" : "write timed out");
+            mmJobBudgetMs -= TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+            return error;
+        }
+
+        private IOException writeWatched(OutputStream out, byte[] data, int offset, int length, long timeoutMs,
+                                         String message) {
+            IOException error = null;
+            mmWatchdog.arm(out, message, timeoutMs);
+            try {
+                out.write(data, offset, length);
             } catch (IOException e) {
-                Log.e(TAG, "close() of connect socket failed", e);
+                error = e;
+            }
+            WriteTimeoutException timeout = mmWatchdog.disarm();
+            return timeout != null ? timeout : error;
+        }
+
+        private void lost(OutputStream out) {
+            synchronized (mmGate) {
+                if (mmOut != out)
+                    return;
+            }
+            mmOnLost.run();
+            // Whatever the service did, this stream is not written again
+            synchronized (mmGate) {
+                if (mmOut == out)
+                    setOutput(null);
+            }
+        }
+
+        /**
+         * @return The stream to write the next chunk of the job to, or null if the job is canceled
+         *         while the queue waits
+         */
+        private OutputStream awaitOutput(PrintJob job) throws InterruptedException {
+            while (true) {
+                List<Chunk> urgent = null;
+                synchronized (mmGate) {
+                    // A pause holds the job back at a command boundary, where the urgent writes may go out
+                    while ((mmPaused && mmAtBoundary || mmOut == null) && !mmCanceled && !stopping(job)) {
+                        urgent = takeUrgent();
+                        if (urgent != null)
+                            break;
+                        mmGate.wait();
+                    }
+                    if (mmCanceled)
+                        throw new InterruptedException();
+                    if (urgent == null)
+                        return stopping(job) ? null : mmOut;
+                }
+                sendUrgent(urgent);
+            }
+        }
+
+        private boolean stopping(PrintJob job) {
+            synchronized (mmJobs) {
+                return job.mmCancelRequested && mmAtBoundary;
+            }
+        }
+
+        private void failPending(IOException cause) {
+            synchronized (mmJobs) {
+                for (PrintJob job : mmJobs) {
+                    fail(job, cause);
+                }
+                Chunk chunk;
+                while ((chunk = mmUrgent.poll()) != null) {
+                    chunk.done.completeExceptionally(cause);
+                }
+                mmJobs.clear();
+                mmDefaultJob = null;
+                mmJobs.notifyAll();
+            }
+        }
+
+        void cancel() {
+            mmCanceled = true;
+            synchronized (mmGate) {
+                mmGate.notifyAll();
             }
+            interrupt();
+            failPending(new IOException("connection closed"));
         }
     }
 }
@@ -0,0 +1,157 @@
+package com.woosim.btprint;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Lock-free byte ring for one producer and one consumer thread. The producer may change, e.g.
+ * with each connection, if the calls of the producers are serialized by a lock.
+ * Positions only grow; each side publishes its own position and caches the other one,
+ * so the shared positions are touched once per bulk operation instead of once per byte.
+ */
+class ByteRing {
+    private final byte[] mBuffer;
+    private final int mMask;
+    // Next position to read, written by the consumer only
+    private final AtomicLong mHead = new AtomicLong();
+    // Next position to write, written by the producer only
+    private final AtomicLong mTail = new AtomicLong();
+    // Consumer parked in await(), if any
+    private volatile Thread mWaiter;
+    private volatile boolean mClosed;
+
+    // Producer side copies of mTail and mHead
+    private long mTailLocal;
+    private long mHeadCache;
+    // Consumer side copies of mHead and mTail
+    private long mHeadLocal;
+    private long mTailCache;
+
+    /**
+     * @param capacity  Number of bytes the ring holds, rounded up to a power of two
+     */
+    ByteRing(int capacity) {
+        int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        mBuffer = new byte[size];
+        mMask = size - 1;
+    }
+
+    int capacity() {
+        return mBuffer.length;
+    }
+
+    /**
+     * Producer: copy all of src into the ring, or nothing if it does not fit.
+     * @return false if there was not enough free space
+     */
+    boolean offer(byte[] src, int off, int len) {
+        long tail = mTailLocal;
+        if (len > mBuffer.length - (int) (tail - mHeadCache)) {
+            mHeadCache = mHead.get();
+            if (len > mBuffer.length - (int) (tail - mHeadCache))
+                return false;
+        }
+        int index = (int) tail & mMask;
+        int first = Math.min(len, mBuffer.length - index);
+        System.arraycopy(src, off, mBuffer, index, first);
+        System.arraycopy(src, off + first, mBuffer, 0, len - first);
+        // A full volatile store, so it cannot be reordered with the read of mWaiter below
+        mTailLocal = tail + len;
+        mTail.set(mTailLocal);
+        Thread waiter = mWaiter;
+        if (waiter != null)
+            LockSupport.unpark(waiter);
+        return true;
+    }
+
+    /**
+     * Consumer: number of bytes that can be read.
+     */
+    int available() {
+        long head = mHeadLocal;
+        if (mTailCache == head)
+            mTailCache = mTail.get();
+        return (int) (mTailCache - head);
+    }
+
+    /**
+     * Consumer: next byte as 0..255, or -1 if the ring is empty.
+     */
+    int read() {
+        long head = mHeadLocal;
+        if (head == mTailCache) {
+            mTailCache = mTail.get();
+            if (head == mTailCache)
+                return -1;
+        }
+        int b = mBuffer[(int) head & mMask] & 0xFF;
+        mHeadLocal = head + 1;
+        mHead.lazySet(mHeadLocal);
+        return b;
+    }
+
+    /**
+     * Consumer: copy up to len bytes into dst.
+     * @return Number of bytes copied
+     */
+    int read(byte[] dst, int off, int len) {
+        long head = mHeadLocal;
+        int bytes = Math.min(len, available());
+        int index = (int) head & mMask;
+        int first = Math.min(bytes, mBuffer.length - index);
+        System.arraycopy(mBuffer, index, dst, off, first);
+        System.arraycopy(mBuffer, 0, dst, off + first, bytes - first);
+        mHeadLocal = head + bytes;
+        mHead.lazySet(mHeadLocal);
+        return bytes;
+    }
+
+    /**
+     * Consumer: drop up to n bytes.
+     */
+    void skip(int n) {
+        mHeadLocal += Math.min(n, available());
+        mHead.lazySet(mHeadLocal);
+    }
+
+    /**
+     * Any thread: total number of bytes written so far.
+     */
+    long written() {
+        return mTail.get();
+    }
+
+    /**
+     * Consumer: drop the bytes before the given {@link #written()} position.
+     */
+    void discardTo(long position) {
+        mTailCache = mTail.get();
+        if (position > mHeadLocal) {
+            mHeadLocal = Math.min(position, mTailCache);
+            mHead.lazySet(mHeadLocal);
+        }
+    }
+
+    /**
+     * Consumer: park until data is available, the ring is closed or the thread is interrupted.
+     * @return false once the ring is closed
+     */
+    boolean await() {
+        mWaiter = Thread.currentThread();
+        try {
+            while (available() == 0 && !mClosed && !Thread.currentThread().isInterrupted()) {
+                LockSupport.park(this);
+            }
+        } finally {
+            mWaiter = null;
+        }
+        return !mClosed;
+    }
+
+    void close() {
+        mClosed = true;
+        Thread waiter = mWaiter;
+        if (waiter != null)
+            LockSupport.unpark(waiter);
+    }
+}
@@ -0,0 +1,132 @@
+package com.woosim.btprint;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * Least recently used cache of generated command bytes, e.g. the output of WoosimBarcode or
+ * WoosimImage. Entries are keyed by the generator, its parameters and its payload or resource
+ * id, and evicted by their total size. The cached arrays are shared, so they must not be
+ * modified.
+ */
+class CommandCache {
+    private final int mMaxBytes;
+    // In access order, the least recently used entry first
+    private final LinkedHashMap<Key, byte[]> mEntries = new LinkedHashMap<>(16, 0.75f, true);
+    private int mBytes;
+    private int mHits;
+    private int mMisses;
+    private int mEvictions;
+
+    /**
+     * Identifies the output of one generator call.
+     */
+    static final class Key {
+        private final String mGenerator;
+        private final int[] mParams;
+        private final byte[] mPayload;
+        private final int mHash;
+
+        private Key(String generator, byte[] payload, int[] params) {
+            mGenerator = generator;
+            mParams = params;
+            mPayload = payload;
+            mHash = (generator.hashCode() * 31 + Arrays.hashCode(params)) * 31 + Arrays.hashCode(payload);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o)
+                return true;
+            if (!(o instanceof Key))
+                return false;
+            Key key = (Key) o;
+            return mHash == key.mHash && mGenerator.equals(key.mGenerator)
+                    && Arrays.equals(mParams, key.mParams) && Arrays.equals(mPayload, key.mPayload);
+        }
+
+        @Override
+        public int hashCode() {
+            return mHash;
+        }
+    }
+
+    CommandCache(int maxBytes) {
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * Key of a generator call. The payload is copied, so the caller may reuse its array.
+     * @param generator Name of the generating method, e.g. "create2DBarcodeQRCode"
+     * @param payload   Data of the call, or null if it has none
+     * @param params    All other arguments, or the resource id the data is decoded from
+     */
+    static Key key(String generator, byte[] payload, int... params) {
+        return new Key(generator, payload != null ? payload.clone() : null, params);
+    }
+
+    /**
+     * Cached bytes of the key, or the output of the generator, which is cached if it fits.
+     * The generator runs without the lock held and may return null, which is not cached.
+     */
+    byte[] get(Key key, Supplier<byte[]> generator) {
+        synchronized (this) {
+            byte[] data = mEntries.get(key);
+            if (data != null) {
+                mHits++;
+                return data;
+            }
+            mMisses++;
+        }
+        byte[] data = generator.get();
+        if (data != null && data.length <= mMaxBytes) {
+            synchronized (this) {
+                byte[] previous = mEntries.put(key, data);
+                if (previous != null)
+                    mBytes -= previous.length;
+                mBytes += data.length;
+                trim();
+            }
+        }
+        return data;
+    }
+
+    synchronized void clear() {
+        mEntries.clear();
+        mBytes = 0;
+    }
+
+    synchronized int getSize() {
+        return mBytes;
+    }
+
+    synchronized int getHitCount() {
+        return mHits;
+    }
+
+    synchronized int getMissCount() {
+        return mMisses;
+    }
+
+    synchronized int getEvictionCount() {
+        return mEvictions;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "CommandCache[" + mEntries.size() + " entries, " + mBytes + "/" + mMaxBytes + " bytes, "
+                + mHits + " hits, " + mMisses + " misses, " + mEvictions + " evictions]";
+    }
+
+    private void trim() {
+        Iterator<Map.Entry<Key, byte[]>> eldest = mEntries.entrySet().iterator();
+        while (mBytes > mMaxBytes && eldest.hasNext()) {
+            mBytes -= eldest.next().getValue().length;
+            eldest.remove();
+            mEvictions++;
+        }
+    }
+}
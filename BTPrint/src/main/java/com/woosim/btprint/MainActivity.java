@@ -34,24 +34,27 @@ import com.woosim.printer.WoosimCmd;
 import com.woosim.printer.WoosimImage;
 import com.woosim.printer.WoosimService;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.nio.charset.StandardCharsets;
 
 public class MainActivity extends AppCompatActivity {
     private static final String TAG = "MainActivity";
 
     public static final int MESSAGE_DEVICE_NAME = 1;
     public static final int MESSAGE_TOAST = 2;
-    public static final int MESSAGE_READ = 3;
+    public static final int MESSAGE_STATUS = 3;
     public static final int PERMISSION_REQUEST = 100;
 
     public static final String DEVICE_ADDRESS = "device_address";
 
+    // Barcode and image commands of the print buttons, kept across activity restarts
+    private static final CommandCache sCommandCache = new CommandCache(256 * 1024);
+
     private BluetoothAdapter mBluetoothAdapter = null;
     private BluetoothPrintService mPrintService = null;
-    private WoosimService mWoosim = null;
+    // Merges the small writes of a job into RFCOMM frames
+    private CoalescingWriter mWriter = null;
+    private ReceiveService mReceiveService = null;
 
     private int mCharExt = 1;
     private int mAlignment = WoosimCmd.ALIGN_LEFT;
@@ -64,22 +67,19 @@ public class MainActivity extends AppCompatActivity {
     private TextView mStatusBattery;
     private TextView mStatusTemperature;
     private TextView mStatusCover;
-    private TextView mStatusPrintHead;
     private TextView mStatusConnection;
 
     // Status monitoring variables
-    private Handler mStatusHandler;
-    private Runnable mStatusChecker;
-    private static final int STATUS_CHECK_INTERVAL = 5000; // 5 seconds
-    private boolean mMonitoringEnabled = false;
-    private int mStatusWaiting = 0; // Counter for pending status queries
-
-    // Status flags
-    private boolean mPaperOut = false;
+    private static final long STATUS_IDLE_INTERVAL = 5000; // 5 seconds
+    private static final long STATUS_BUSY_INTERVAL = 1000; // while a job is being sent
+    // Flush delay of the write coalescing, short enough not to be noticed on a printout
+    private static final long FLUSH_DELAY_MS = 10;
+    private PrinterQueries mQueries = null;
+    private PrinterStatusMonitor mStatusMonitor = null;
+
+    // Last status shown, null if it is not known
+    private PrinterStatus mStatus = null;
     private int mBatteryLevel = -1;
-    private boolean mHighTemperature = false;
-    private boolean mCoverOpen = false;
-    private boolean mPrintHeadError = false;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -93,7 +93,7 @@ public class MainActivity extends AppCompatActivity {
             finish();
         }
         checkPermission();
-        mWoosim = new WoosimService(mHandler);
+        mReceiveService = new ReceiveService(mHandler);
 
         RadioGroup alignmentGroup = findViewById(R.id.radioGroupAlignment);
         alignmentGroup.setOnCheckedChangeListener(mAlignmentChangeListener);
@@ -123,19 +123,6 @@ public class MainActivity extends AppCompatActivity {
 
         // Initialize status monitoring UI
         initializeStatusUI();
-
-        // Initialize status monitoring handler
-        mStatusHandler = new Handler(Looper.getMainLooper());
-        mStatusChecker = new Runnable() {
-            @Override
-            public void run() {
-                if (mMonitoringEnabled && mPrintService != null &&
-                        mPrintService.getState() == BluetoothPrintService.STATE_CONNECTED) {
-                    requestPrinterStatus();
-                    mStatusHandler.postDelayed(this, STATUS_CHECK_INTERVAL);
-                }
-            }
-        };
     }
 
     private void initializeStatusUI() {
@@ -143,7 +130,6 @@ public class MainActivity extends AppCompatActivity {
         mStatusBattery = findViewById(R.id.statusBattery);
         mStatusTemperature = findViewById(R.id.statusTemperature);
         mStatusCover = findViewById(R.id.statusCover);
-        mStatusPrintHead = findViewById(R.id.statusPrintHead);
         mStatusConnection = findViewById(R.id.statusConnection);
 
         updateStatusUI();
@@ -161,7 +147,7 @@ public class MainActivity extends AppCompatActivity {
             }
 
             // Paper status
-            if (mPaperOut) {
+            if (mStatus != null && mStatus.isPaperOut()) {
                 mStatusPaper.setText("Paper: OUT");
                 mStatusPaper.setTextColor(getColor(android.R.color.holo_red_dark));
             } else {
@@ -185,7 +171,7 @@ public class MainActivity extends AppCompatActivity {
             }
 
             // Temperature status
-            if (mHighTemperature) {
+            if (mStatus != null && mStatus.isHighTemperature()) {
                 mStatusTemperature.setText("Temp: HIGH");
                 mStatusTemperature.setTextColor(getColor(android.R.color.holo_red_dark));
             } else {
@@ -194,121 +180,64 @@ public class MainActivity extends AppCompatActivity {
             }
 
             // Cover status
-            if (mCoverOpen) {
+            if (mStatus != null && mStatus.isCoverOpen()) {
                 mStatusCover.setText("Cover: OPEN");
                 mStatusCover.setTextColor(getColor(android.R.color.holo_orange_dark));
             } else {
                 mStatusCover.setText("Cover: CLOSED");
                 mStatusCover.setTextColor(getColor(android.R.color.holo_green_dark));
             }
-
-            // Print head status
-            if (mPrintHeadError) {
-                mStatusPrintHead.setText("Head: ERROR");
-                mStatusPrintHead.setTextColor(getColor(android.R.color.holo_red_dark));
-            } else {
-                mStatusPrintHead.setText("Head: OK");
-                mStatusPrintHead.setTextColor(getColor(android.R.color.holo_green_dark));
-            }
         });
     }
 
-    private void requestPrinterStatus() {
-        // Increment counter to track pending status queries
-        mStatusWaiting++;
-
-        // Request real-time status from printer using WoosimCmd
-        sendData(WoosimCmd.queryStatus());
-    }
-
-    private void parseStatusResponse(byte[] data, int length) {
-        if (data == null || length < 1) return;
-
-        // Check if we're expecting a status response
-        if (mStatusWaiting > 0 && length == 1 && (data[0] & 0x30) == 0x30) {
-            mStatusWaiting--;
-
-            // Parse status byte according to Woosim printer protocol
-            // This example is for WSP-R240 model group
-            // Refer to your printer's command manual for exact bit definitions
-            byte status = data[0];
-
-            switch (status) {
-                case 0x30: // Device status is OK
-                    mPaperOut = false;
-                    mCoverOpen = false;
-                    mPrintHeadError = false;
-                    break;
-                case 0x31: // Paper is not present
-                    mPaperOut = true;
-                    mCoverOpen = false;
-                    mPrintHeadError = false;
-                    break;
-                case 0x32: // Cover is opened
-                    mPaperOut = false;
-                    mCoverOpen = true;
-                    mPrintHeadError = false;
-                    break;
-                case 0x33: // Paper is not present & cover is opened
-                    mPaperOut = true;
-                    mCoverOpen = true;
-                    mPrintHeadError = false;
-                    break;
-                default:
-                    // Handle other status codes
-                    // Bit parsing for other printer models
-                    if ((status & 0x01) != 0) {
-                        mPaperOut = true;
-                    }
-                    if ((status & 0x02) != 0) {
-                        mCoverOpen = true;
-                    }
-                    if ((status & 0x20) != 0) {
-                        mPrintHeadError = true;
-                    }
-                    if ((status & 0x40) != 0) {
-                        mHighTemperature = true;
-                    }
-                    break;
-            }
+    // Called on the receive thread of the print service
+    private final ReceiveListener mReceiveListener = (buffer, length) -> {
+        // Replies to queries are not data for the parser
+        int replies = mQueries != null ? mQueries.onReceived(buffer, length) : 0;
+        if (replies < length)
+            mReceiveService.processRcvData(buffer, replies, length - replies);
+    };
 
-            // Simulate battery level (actual implementation depends on printer model)
-            // Some Woosim printers may support battery status queries
-            if (mBatteryLevel < 0) {
-                mBatteryLevel = 75; // Default value
-            }
+    // Called on the main thread with a status that differs from the previous one
+    private void applyStatus(PrinterStatus status) {
+        PrinterStatus previous = mStatus;
+        mStatus = status;
 
-            updateStatusUI();
-            showStatusWarnings();
+        // Simulate battery level (actual implementation depends on printer model)
+        // Some Woosim printers may support battery status queries
+        if (mBatteryLevel < 0) {
+            mBatteryLevel = 75; // Default value
         }
+
+        updateStatusUI();
+        if (status != null)
+            showStatusWarnings(previous, status);
     }
 
-    private void showStatusWarnings() {
-        // Show warnings if critical issues detected
-        if (mPaperOut) {
+    private void showStatusWarnings(PrinterStatus previous, PrinterStatus status) {
+        // Show warnings for the issues that were not there before
+        if (status.isPaperOut() && (previous == null || !previous.isPaperOut())) {
             Toast.makeText(this, "Warning: Paper out!", Toast.LENGTH_SHORT).show();
         }
-        if (mHighTemperature) {
+        if (status.isHighTemperature() && (previous == null || !previous.isHighTemperature())) {
             Toast.makeText(this, "Warning: High temperature!", Toast.LENGTH_SHORT).show();
         }
-        if (mCoverOpen) {
+        if (status.isCoverOpen() && (previous == null || !previous.isCoverOpen())) {
             Toast.makeText(this, "Warning: Cover is open!", Toast.LENGTH_SHORT).show();
         }
-        if (mPrintHeadError) {
-            Toast.makeText(this, "Error: Print head error!", Toast.LENGTH_SHORT).show();
-        }
     }
 
     private void startStatusMonitoring() {
-        mMonitoringEnabled = true;
-        mStatusHandler.post(mStatusChecker);
-        Log.d(TAG, "Status monitoring started");
+        if (mStatusMonitor != null)
+            mStatusMonitor.start();
     }
 
     private void stopStatusMonitoring() {
-        mMonitoringEnabled = false;
-        mStatusHandler.removeCallbacks(mStatusChecker);
-        Log.d(TAG, "Status monitoring stopped");
+        if (mStatusMonitor != null)
+            mStatusMonitor.stop();
+        // No reply will come for the queries sent so far
+        if (mQueries != null)
+            mQueries.cancelAll();
     }
 
     RadioGroup.OnCheckedChangeListener mAlignmentChangeListener = (group, checkedId) -> {
@@ -366,7 +295,22 @@ public class MainActivity extends AppCompatActivity {
 
     private void setupPrintService() {
         // Initialize the BluetoothPrintService to perform bluetooth connections
-        mPrintService = new BluetoothPrintService(mHandler);
+        mPrintService = new BluetoothPrintService(mHandler, mReceiveListener);
+        // The jobs of this activity set styles right after their ESC @ that are already in effect
+        // then; each job is optimized on its own, so these are dropped within the job only
+        mPrintService.setCommandOptimization(true);
+        mWriter = new CoalescingWriter(mPrintService::write, BluetoothPrintService.FRAME_SIZE, FLUSH_DELAY_MS);
+        // The queries go ahead of the print data, so they are answered while the data is held back
+        mQueries = new PrinterQueries(mPrintService::writeUrgent);
+        mStatusMonitor = new PrinterStatusMonitor(mQueries, STATUS_IDLE_INTERVAL, STATUS_BUSY_INTERVAL);
+        mStatusMonitor.addListener(status -> {
+            // Hold the print data back while the printer cannot print, so no byte is lost
+            if (status != null && status.isError())
+                mPrintService.pause();
+            else
+                mPrintService.resume();
+            mHandler.obtainMessage(MESSAGE_STATUS, status).sendToTarget();
+        });
     }
 
     @Override
@@ -388,6 +332,7 @@ public class MainActivity extends AppCompatActivity {
         // Stop the Bluetooth print services
         if (mPrintService != null)
             mPrintService.stop();
+        mReceiveService.stop();
         super.onDestroy();
     }
 
@@ -448,10 +393,8 @@ public class MainActivity extends AppCompatActivity {
             case MESSAGE_TOAST:
                 Toast.makeText(getApplicationContext(), msg.arg1, Toast.LENGTH_SHORT).show();
                 break;
-            case MESSAGE_READ:
-                mWoosim.processRcvData((byte[])msg.obj, msg.arg1);
-                // Parse status responses
-                parseStatusResponse((byte[])msg.obj, msg.arg1);
+            case MESSAGE_STATUS:
+                applyStatus((PrinterStatus) msg.obj);
                 break;
             case WoosimService.MESSAGE_PRINTER:
                 if (msg.arg1 == WoosimService.MSR) {
@@ -478,13 +421,46 @@ public class MainActivity extends AppCompatActivity {
         return true;
     });
 
+    // Data sent while the service reconnects is queued for the new connection
+    private boolean canSend() {
+        int state = mPrintService.getState();
+        return state == BluetoothPrintService.STATE_CONNECTED || state == BluetoothPrintService.STATE_RECONNECTING;
+    }
+
     private void sendData(byte[] data) {
         // Check that we're actually connected before trying printing
+        if (!canSend()) {
+            Toast.makeText(this, R.string.not_connected, Toast.LENGTH_SHORT).show();
+        } else {
+            mWriter.write(data);
+        }
+    }
+
+    // MSR control goes ahead of the queued print data, at the next command boundary
+    private void sendRealTime(byte[] data) {
         if (mPrintService.getState() != BluetoothPrintService.STATE_CONNECTED) {
             Toast.makeText(this, R.string.not_connected, Toast.LENGTH_SHORT).show();
         } else {
-            if (data.length > 0)
-                mPrintService.write(data);
+            mPrintService.writeUrgent(data, 0, data.length);
+        }
+    }
+
+    // Send what sendData buffered without waiting for the flush delay, at the end of a job
+    private void flushData() {
+        if (mWriter != null) {
+            mStatusMonitor.track(mWriter.flush());
+            mPrintService.endJob();
+        }
+    }
+
+    private void sendData(ReceiptEncoder encoder) {
+        if (!canSend()) {
+            Toast.makeText(this, R.string.not_connected, Toast.LENGTH_SHORT).show();
+            encoder.recycle();
+        } else {
+            encoder.send(mWriter::write);
+            mStatusMonitor.track(mWriter.flush());
+            mPrintService.endJob();
         }
     }
 
@@ -500,6 +476,7 @@ public class MainActivity extends AppCompatActivity {
             {
                 sendData(data);
             }
+            flushData();
         } catch (IOException e) {
             Log.e(TAG, "sample 2inch receipt print fail.", e);
         } finally {
@@ -512,17 +489,34 @@ public class MainActivity extends AppCompatActivity {
     }
 
     public void printImage(View v) {
+        // A repeated print skips both decoding and conversion
+        byte[] image = sCommandCache.get(CommandCache.key("printBitmap", null, R.drawable.logo, 0, 0, 384, 200),
+                () -> printBitmap(R.drawable.logo, 0, 0, 384, 200));
+        if (image == null)
+            return;
+        if (!canSend()) {
+            Toast.makeText(this, R.string.not_connected, Toast.LENGTH_SHORT).show();
+            return;
+        }
+        // The raster data goes behind the receipts waiting to be sent
+        BluetoothPrintService.PrintJob job = mPrintService.openJob(BluetoothPrintService.PRIORITY_BULK);
+        job.write(WoosimCmd.setPageMode());
+        job.write(image);
+        job.write(WoosimCmd.PM_setStdMode());
+        mStatusMonitor.track(job.end());
+    }
+
+    private byte[] printBitmap(int id, int x, int y, int width, int height) {
         BitmapFactory.Options options = new BitmapFactory.Options();
         options.inScaled = false;
-        Bitmap bmp = BitmapFactory.decodeResource(getResources(), R.drawable.logo, options);
+        Bitmap bmp = BitmapFactory.decodeResource(getResources(), id, options);
         if (bmp == null) {
             Log.e(TAG, "resource decoding is failed");
-            return;
+            return null;
         }
-        sendData(WoosimCmd.setPageMode());
-        sendData(WoosimImage.printBitmap(0, 0, 384, 200, bmp));
+        byte[] data = WoosimImage.printBitmap(x, y, width, height, bmp);
         bmp.recycle();
-        sendData(WoosimCmd.PM_setStdMode());
+        return data;
     }
 
     public void printText(View v) {
@@ -534,11 +528,12 @@ public class MainActivity extends AppCompatActivity {
         String string = editText != null ? editText.getText().toString() : null;
 
         if (string != null && string.length() > 0) {
-            sendData(WoosimCmd.initPrinter());
-            sendData(WoosimCmd.setTextStyle(emphasis, underline, false, mCharExt, mCharExt));
-            sendData(WoosimCmd.setTextAlign(mAlignment));
-            sendData(string.getBytes(StandardCharsets.US_ASCII));
-            sendData(WoosimCmd.printLineFeed(2));
+            sendData(ReceiptEncoder.obtain()
+                    .initPrinter()
+                    .setTextStyle(emphasis, underline, false, mCharExt, mCharExt)
+                    .setTextAlign(mAlignment)
+                    .text(string)
+                    .printLineFeed(2));
         }
     }
 
@@ -546,130 +541,89 @@ public class MainActivity extends AppCompatActivity {
         final byte[] barcode =  {0x30,0x31,0x32,0x33,0x34,0x35,0x36,0x37,0x38,0x39,0x30};
         final byte[] barcode8 = {0x30,0x31,0x32,0x33,0x34,0x35,0x36,0x37};
         final byte[] barcodeUPCE = {0x30,0x36,0x35,0x31,0x30,0x30,0x30,0x30,0x34,0x33,0x32,0x37};
-        final byte[] cmdPrint = WoosimCmd.printData();
-        final String title1 = "UPC-A Barcode\r\n";
-        byte[] UPCA = WoosimBarcode.createBarcode(WoosimBarcode.UPC_A, 2, 60, true, barcode);
-        final String title2 = "UPC-E Barcode\r\n";
-        byte[] UPCE = WoosimBarcode.createBarcode(WoosimBarcode.UPC_E, 2, 60, true, barcodeUPCE);
-        final String title3 = "EAN13 Barcode\r\n";
-        byte[] EAN13 = WoosimBarcode.createBarcode(WoosimBarcode.EAN13, 2, 60, true, barcodeUPCE);
-        final String title4 = "EAN8 Barcode\r\n";
-        byte[] EAN8 = WoosimBarcode.createBarcode(WoosimBarcode.EAN8, 2, 60, true, barcode8);
-        final String title5 = "CODE39 Barcode\r\n";
-        byte[] CODE39 = WoosimBarcode.createBarcode(WoosimBarcode.CODE39, 2, 60, true, barcode);
-        final String title6 = "ITF Barcode\r\n";
-        byte[] ITF = WoosimBarcode.createBarcode(WoosimBarcode.ITF, 2, 60, true, barcode);
-        final String title7 = "CODEBAR Barcode\r\n";
-        byte[] CODEBAR = WoosimBarcode.createBarcode(WoosimBarcode.CODEBAR, 2, 60, true, barcode);
-        final String title8 = "CODE93 Barcode\r\n";
-        byte[] CODE93 = WoosimBarcode.createBarcode(WoosimBarcode.CODE93, 2, 60, true, barcode);
-        final String title9 = "CODE128 Barcode\r\n";
-        byte[] CODE128 = WoosimBarcode.createBarcode(WoosimBarcode.CODE128, 2, 60, true, barcode);
-
-        ByteArrayOutputStream byteStream = new ByteArrayOutputStream(512);
-        try {
-            byteStream.write(WoosimCmd.initPrinter());
-            byteStream.write(title1.getBytes()); byteStream.write(UPCA); byteStream.write(cmdPrint);
-            byteStream.write(title2.getBytes()); byteStream.write(UPCE); byteStream.write(cmdPrint);
-            byteStream.write(title3.getBytes()); byteStream.write(EAN13); byteStream.write(cmdPrint);
-            byteStream.write(title4.getBytes()); byteStream.write(EAN8); byteStream.write(cmdPrint);
-            byteStream.write(title5.getBytes()); byteStream.write(CODE39); byteStream.write(cmdPrint);
-            byteStream.write(title6.getBytes()); byteStream.write(ITF); byteStream.write(cmdPrint);
-            byteStream.write(title7.getBytes()); byteStream.write(CODEBAR); byteStream.write(cmdPrint);
-            byteStream.write(title8.getBytes()); byteStream.write(CODE93); byteStream.write(cmdPrint);
-            byteStream.write(title9.getBytes()); byteStream.write(CODE128); byteStream.write(cmdPrint);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-        sendData(byteStream.toByteArray());
+
+        sendData(ReceiptEncoder.obtain()
+                .initPrinter()
+                .text("UPC-A Barcode\r\n").barcode(WoosimBarcode.UPC_A, 2, 60, true, barcode).printData()
+                .text("UPC-E Barcode\r\n").barcode(WoosimBarcode.UPC_E, 2, 60, true, barcodeUPCE).printData()
+                .text("EAN13 Barcode\r\n").barcode(WoosimBarcode.EAN13, 2, 60, true, barcodeUPCE).printData()
+                .text("EAN8 Barcode\r\n").barcode(WoosimBarcode.EAN8, 2, 60, true, barcode8).printData()
+                .text("CODE39 Barcode\r\n").barcode(WoosimBarcode.CODE39, 2, 60, true, barcode).printData()
+                .text("ITF Barcode\r\n").barcode(WoosimBarcode.ITF, 2, 60, true, barcode).printData()
+                .text("CODEBAR Barcode\r\n").barcode(WoosimBarcode.CODEBAR, 2, 60, true, barcode).printData()
+                .text("CODE93 Barcode\r\n").barcode(WoosimBarcode.CODE93, 2, 60, true, barcode).printData()
+                .text("CODE128 Barcode\r\n").barcode(WoosimBarcode.CODE128, 2, 60, true, barcode).printData());
     }
 
     public void print2DBarcode(View v) {
         final byte[] barcode = {0x30,0x31,0x32,0x33,0x34,0x35,0x36,0x37,0x38,0x39,0x30};
-        final byte[] cmdPrint = WoosimCmd.printData();
-        final String title1 = "PDF417 2D Barcode\r\n";
-        byte[] PDF417 = WoosimBarcode.create2DBarcodePDF417(2, 3, 4, 2, false, barcode);
-        final String title2 = "DATAMATRIX 2D Barcode\r\n";
-        byte[] dataMatrix = WoosimBarcode.create2DBarcodeDataMatrix(0, 0, 6, barcode);
-        final String title3 = "QR-CODE 2D Barcode\r\n";
-        byte[] QRCode = WoosimBarcode.create2DBarcodeQRCode(0, (byte)0x4d, 5, barcode);
-        final String title4 = "Micro PDF417 2D Barcode\r\n";
-        byte[] microPDF417 = WoosimBarcode.create2DBarcodeMicroPDF417(2, 2, 0, 2, barcode);
-        final String title5 = "Truncated PDF417 2D Barcode\r\n";
-        byte[] truncPDF417 = WoosimBarcode.create2DBarcodeTruncPDF417(2, 3, 4, 2, false, barcode);
         // Maxicode can be printed only with RX version
-        final String title6 = "Maxicode 2D Barcode\r\n";
         final byte[] mxcode = {0x41,0x42,0x43,0x44,0x45,0x31,0x32,0x33,0x34,0x35,0x61,0x62,0x63,0x64,0x65};
-        byte[] maxCode = WoosimBarcode.create2DBarcodeMaxicode(4, mxcode);
 
-        ByteArrayOutputStream byteStream = new ByteArrayOutputStream(512);
-        try {
-            byteStream.write(WoosimCmd.initPrinter());
-            byteStream.write(title1.getBytes()); byteStream.write(PDF417); byteStream.write(cmdPrint);
-            byteStream.write(title2.getBytes()); byteStream.write(dataMatrix); byteStream.write(cmdPrint);
-            byteStream.write(title3.getBytes()); byteStream.write(QRCode); byteStream.write(cmdPrint);
-            byteStream.write(title4.getBytes()); byteStream.write(microPDF417); byteStream.write(cmdPrint);
-            byteStream.write(title5.getBytes()); byteStream.write(truncPDF417); byteStream.write(cmdPrint);
-            byteStream.write(title6.getBytes()); byteStream.write(maxCode); byteStream.write(cmdPrint);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-        sendData(byteStream.toByteArray());
+        sendData(ReceiptEncoder.obtain()
+                .initPrinter()
+                .text("PDF417 2D Barcode\r\n")
+                .bytes(sCommandCache.get(CommandCache.key("create2DBarcodePDF417", barcode, 2, 3, 4, 2, 0),
+                        () -> WoosimBarcode.create2DBarcodePDF417(2, 3, 4, 2, false, barcode)))
+                .printData()
+                .text("DATAMATRIX 2D Barcode\r\n")
+                .bytes(sCommandCache.get(CommandCache.key("create2DBarcodeDataMatrix", barcode, 0, 0, 6),
+                        () -> WoosimBarcode.create2DBarcodeDataMatrix(0, 0, 6, barcode)))
+                .printData()
+                .text("QR-CODE 2D Barcode\r\n")
+                .bytes(sCommandCache.get(CommandCache.key("create2DBarcodeQRCode", barcode, 0, 0x4d, 5),
+                        () -> WoosimBarcode.create2DBarcodeQRCode(0, (byte)0x4d, 5, barcode)))
+                .printData()
+                .text("Micro PDF417 2D Barcode\r\n")
+                .bytes(sCommandCache.get(CommandCache.key("create2DBarcodeMicroPDF417", barcode, 2, 2, 0, 2),
+                        () -> WoosimBarcode.create2DBarcodeMicroPDF417(2, 2, 0, 2, barcode)))
+                .printData()
+                .text("Truncated PDF417 2D Barcode\r\n")
+                .bytes(sCommandCache.get(CommandCache.key("create2DBarcodeTruncPDF417", barcode, 2, 3, 4, 2, 0),
+                        () -> WoosimBarcode.create2DBarcodeTruncPDF417(2, 3, 4, 2, false, barcode)))
+                .printData()
+                .text("Maxicode 2D Barcode\r\n")
+                .bytes(sCommandCache.get(CommandCache.key("create2DBarcodeMaxicode", mxcode, 4),
+                        () -> WoosimBarcode.create2DBarcodeMaxicode(4, mxcode)))
+                .printData());
     }
 
     public void printGS1Databar(View v) {
         final byte[] data = {0x30,0x30,0x30,0x31,0x32,0x33,0x34,0x35,0x36,0x37,0x38,0x39,0x30};
-        final byte[] cmdPrint = WoosimCmd.printData();
-        final String title0 = "GS1 Databar type0\r\n";
-        byte[] gs0 = WoosimBarcode.createGS1Databar(0, 2, data);
-        final String title1 = "GS1 Databar type1\r\n";
-        byte[] gs1 = WoosimBarcode.createGS1Databar(1, 2, data);
-        final String title2 = "GS1 Databar type2\r\n";
-        byte[] gs2 = WoosimBarcode.createGS1Databar(2, 2, data);
-        final String title3 = "GS1 Databar type3\r\n";
-        byte[] gs3 = WoosimBarcode.createGS1Databar(3, 2, data);
-        final String title4 = "GS1 Databar type4\r\n";
-        byte[] gs4 = WoosimBarcode.createGS1Databar(4, 2, data);
-        final String title5 = "GS1 Databar type5\r\n";
         final byte[] data5 = {0x5b,0x30,0x31,0x5d,0x39,0x30,0x30,0x31,0x32,0x33,0x34,0x35,0x36,0x37,0x38,0x39,0x30,0x38,
                 0x5b,0x33,0x31,0x30,0x33,0x5d,0x30,0x31,0x32,0x32,0x33,0x33};
-        byte[] gs5 = WoosimBarcode.createGS1Databar(5, 2, data5);
-        final String title6 = "GS1 Databar type6\r\n";
         final byte[] data6 = {0x5b,0x30,0x31,0x5d,0x39,0x30,0x30,0x31,0x32,0x33,0x34,0x35,0x36,0x37,0x38,0x39,0x30,0x38,
                 0x5b,0x33,0x31,0x30,0x33,0x5d,0x30,0x31,0x32,0x32,0x33,0x33,
                 0x5b,0x31,0x35,0x5d,0x39,0x39,0x31,0x32,0x33,0x31};
-        byte[] gs6 = WoosimBarcode.createGS1Databar(6, 4, data6);
 
-        ByteArrayOutputStream byteStream = new ByteArrayOutputStream(512);
-        try {
-            byteStream.write(WoosimCmd.initPrinter());
-            byteStream.write(title0.getBytes()); byteStream.write(gs0); byteStream.write(cmdPrint);
-            byteStream.write(title1.getBytes()); byteStream.write(gs1); byteStream.write(cmdPrint);
-            byteStream.write(title2.getBytes()); byteStream.write(gs2); byteStream.write(cmdPrint);
-            byteStream.write(title3.getBytes()); byteStream.write(gs3); byteStream.write(cmdPrint);
-            byteStream.write(title4.getBytes()); byteStream.write(gs4); byteStream.write(cmdPrint);
-            byteStream.write(title5.getBytes()); byteStream.write(gs5); byteStream.write(cmdPrint);
-            byteStream.write(title6.getBytes()); byteStream.write(gs6); byteStream.write(cmdPrint);
-        } catch (IOException e) {
-            e.printStackTrace();
+        ReceiptEncoder encoder = ReceiptEncoder.obtain().initPrinter();
+        for (int type = 0; type <= 6; type++) {
+            encoder.text("GS1 Databar type" + type + "\r\n")
+                    .bytes(gs1Databar(type, type == 6 ? 4 : 2, type == 5 ? data5 : type == 6 ? data6 : data))
+                    .printData();
         }
-        sendData(byteStream.toByteArray());
+        sendData(encoder);
+    }
+
+    private static byte[] gs1Databar(int type, int width, byte[] data) {
+        return sCommandCache.get(CommandCache.key("createGS1Databar", data, type, width),
+                () -> WoosimBarcode.createGS1Databar(type, width, data));
     }
 
     public void setMSRDoubleTrackMode(View v) {
         clearMSRInfo();
-        mWoosim.clearRcvBuffer();
-        sendData(WoosimCmd.MSR_doubleTrackMode());
+        mReceiveService.clearRcvBuffer();
+        sendRealTime(WoosimCmd.MSR_doubleTrackMode());
     }
 
     public void setMSRTripleTrackMode(View v) {
         clearMSRInfo();
-        mWoosim.clearRcvBuffer();
-        sendData(WoosimCmd.MSR_tripleTrackMode());
+        mReceiveService.clearRcvBuffer();
+        sendRealTime(WoosimCmd.MSR_tripleTrackMode());
     }
 
     public void cancelMSRMode(View v) {
-        sendData(WoosimCmd.MSR_exit());
+        sendRealTime(WoosimCmd.MSR_exit());
     }
 
     public void clearMSRInfo(View v) {
@@ -685,7 +639,16 @@ public class MainActivity extends AppCompatActivity {
     // Manual status check button
     public void checkStatus(View v) {
         if (mPrintService != null && mPrintService.getState() == BluetoothPrintService.STATE_CONNECTED) {
-            requestPrinterStatus();
+            mStatusMonitor.requestNow();
+            // The two queries are sent together, each reply is matched to its own query
+            mQueries.query(PrinterQueries.modelName())
+                    .thenCombine(mQueries.query(PrinterQueries.deviceVersion()), (model, version) -> model + " " + version)
+                    .whenComplete((info, e) -> {
+                        if (e == null)
+                            mHandler.post(() -> Toast.makeText(this, info, Toast.LENGTH_SHORT).show());
+                        else
+                            Log.w(TAG, "printer information is not available", e);
+                    });
             Toast.makeText(this, "Checking printer status...", Toast.LENGTH_SHORT).show();
         } else {
             Toast.makeText(this, R.string.not_connected, Toast.LENGTH_SHORT).show();
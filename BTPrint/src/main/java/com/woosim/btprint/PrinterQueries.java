@@ -0,0 +1,295 @@
+package com.woosim.btprint;
+
+import com.woosim.printer.WoosimCmd;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Sends queries to the printer and matches the replies in the received data. Every query gets
+ * its own future, which fails with a TimeoutException if no reply was received in time, so a
+ * lost reply never leaves a query waiting. The printer answers in the order of the queries, so
+ * the received data is only offered to the oldest pending query; data it does not take is left
+ * for the MSR parser. While an MSR frame is arriving no data is offered to the queries, since
+ * card data looks like the replies.
+ * <p>
+ * A query that timed out keeps its place for another timeout, so a late reply is dropped
+ * instead of being taken for the reply of the next query. Data its decoder rejects means its
+ * reply was lost, and the data is offered to the next query.
+ */
+class PrinterQueries {
+    static final long DEFAULT_TIMEOUT_MS = 2000;
+
+    // Framing of the data of the MSR parser: card data from STX to ETX, replies ESC and 2 bytes
+    private static final byte STX = 0x02;
+    private static final byte ETX = 0x03;
+    private static final byte ESC = 0x1B;
+    private static final int ESC_REPLY_LENGTH = 2;
+
+    // One timer thread for all connections; it only fails the expired queries
+    private static final ScheduledExecutorService sTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "PrinterQueries");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * One query and the decoder of its reply. A query is used for one request only.
+     */
+    abstract static class Query<T> {
+        private final String mName;
+        private final byte[] mCommand;
+
+        Query(String name, byte[] command) {
+            mName = name;
+            mCommand = command;
+        }
+
+        /**
+         * Decode the next received bytes.
+         * @return The number of bytes that belong to the reply, 0 if the data is not the reply
+         */
+        abstract int decode(byte[] data, int offset, int length);
+
+        /**
+         * The reply, or null while it is not complete.
+         */
+        abstract T result();
+
+        @Override
+        public String toString() {
+            return mName;
+        }
+    }
+
+    private static final class StatusQuery extends Query<PrinterStatus> {
+        private PrinterStatus mStatus;
+
+        StatusQuery() {
+            super("queryStatus", WoosimCmd.queryStatus());
+        }
+
+        // The reply is one byte, so it is only taken as the last byte of a read; a byte followed
+        // by more data is taken for the start of other data
+        @Override
+        int decode(byte[] data, int offset, int length) {
+            if (length != 1 || !PrinterStatus.isStatus(data[offset]))
+                return 0;
+            mStatus = PrinterStatus.of(data[offset]);
+            return 1;
+        }
+
+        @Override
+        PrinterStatus result() {
+            return mStatus;
+        }
+    }
+
+    // Printable text ended by NUL
+    private static final class TextQuery extends Query<String> {
+        private static final int MAX_LENGTH = 64;
+        private final StringBuilder mText = new StringBuilder();
+        private String mResult;
+
+        TextQuery(String name, byte[] command) {
+            super(name, command);
+        }
+
+        @Override
+        int decode(byte[] data, int offset, int length) {
+            if (length < 1 || (mText.length() == 0 && (data[offset] < 0x20 || data[offset] > 0x7E)))
+                return 0;
+            for (int i = 0; i < length; i++) {
+                byte b = data[offset + i];
+                if (b != 0)
+                    mText.append((char) (b & 0xFF));
+                if (b == 0 || mText.length() == MAX_LENGTH) {
+                    mResult = mText.toString().trim();
+                    return i + 1;
+                }
+            }
+            return length;
+        }
+
+        @Override
+        String result() {
+            return mResult;
+        }
+    }
+
+    static Query<PrinterStatus> status() {
+        return new StatusQuery();
+    }
+
+    static Query<String> modelName() {
+        return new TextQuery("queryModelName", WoosimCmd.queryModelName());
+    }
+
+    static Query<String> deviceVersion() {
+        return new TextQuery("queryDeviceVersion", WoosimCmd.queryDeviceVersion());
+    }
+
+    private static final class Pending<T> {
+        final Query<T> query;
+        final CompletableFuture<T> future = new CompletableFuture<>();
+        ScheduledFuture<?> timeout;
+        // Timed out, its reply is dropped if it still comes
+        boolean expired;
+
+        Pending(Query<T> query) {
+            this.query = query;
+        }
+
+        void complete() {
+            future.complete(query.result());
+        }
+    }
+
+    private final ReceiptEncoder.Writer mSender;
+    // In the order the queries were sent, including the expired ones waiting for a late reply
+    private final LinkedList<Pending<?>> mPending = new LinkedList<>();
+    // An MSR frame has started and not ended
+    private boolean mInFrame;
+    // Bytes of an ESC reply of the MSR still to come
+    private int mEscRemaining;
+    private int mTimeouts;
+
+    /**
+     * @param sender  Where the queries are written, e.g. the print service
+     */
+    PrinterQueries(ReceiptEncoder.Writer sender) {
+        mSender = sender;
+    }
+
+    <T> CompletableFuture<T> query(Query<T> query) {
+        return query(query, DEFAULT_TIMEOUT_MS);
+    }
+
+    /**
+     * Send the query.
+     * @return A future completed with the reply, or failed with a TimeoutException if there
+     *         was none within timeoutMs, or with the error of the write
+     */
+    <T> CompletableFuture<T> query(Query<T> query, long timeoutMs) {
+        Pending<T> pending = new Pending<>(query);
+        CompletableFuture<Void> written;
+        synchronized (this) {
+            mPending.add(pending);
+            pending.timeout = sTimer.schedule(() -> expire(pending, timeoutMs), timeoutMs, TimeUnit.MILLISECONDS);
+            // Written in the order of mPending; the sender only queues the query, so this does not block
+            written = mSender.write(query.mCommand, 0, query.mCommand.length);
+        }
+        pending.future.whenComplete((result, e) -> pending.timeout.cancel(false));
+        written.whenComplete((result, e) -> {
+            if (e != null && remove(pending))
+                pending.future.completeExceptionally(e);
+        });
+        return pending.future;
+    }
+
+    // Fail the query, and give up on its reply after another timeout
+    private void expire(Pending<?> pending, long timeoutMs) {
+        synchronized (this) {
+            if (!mPending.contains(pending))
+                return;
+            pending.expired = true;
+            mTimeouts++;
+            sTimer.schedule(() -> remove(pending), timeoutMs, TimeUnit.MILLISECONDS);
+        }
+        pending.future.completeExceptionally(new TimeoutException("no reply to " + pending.query));
+    }
+
+    /**
+     * Feed the data received from the printer. Must always be called from the same thread.
+     * @return The number of bytes at the start of the data that were replies to queries
+     */
+    int onReceived(byte[] data, int length) {
+        List<Pending<?>> replied = new ArrayList<>();
+        int offset = 0;
+        synchronized (this) {
+            while (offset < length && !mInFrame && mEscRemaining == 0) {
+                Pending<?> pending = mPending.peekFirst();
+                int used = pending != null ? pending.query.decode(data, offset, length - offset) : 0;
+                if (used == 0) {
+                    if (pending == null || !pending.expired)
+                        break;
+                    // The reply of the expired query was lost
+                    mPending.removeFirst();
+                    continue;
+                }
+                offset += used;
+                if (pending.query.result() != null) {
+                    mPending.removeFirst();
+                    if (!pending.expired)
+                        replied.add(pending);
+                }
+            }
+            followFrames(data, offset, length);
+        }
+        // Completed without the lock, the callbacks may send the next query
+        for (Pending<?> pending : replied) {
+            pending.complete();
+        }
+        return offset;
+    }
+
+    // Follow the MSR frames in the data left for the parser
+    private void followFrames(byte[] data, int offset, int length) {
+        for (int i = offset; i < length; i++) {
+            byte b = data[i];
+            if (mEscRemaining > 0) {
+                mEscRemaining--;
+            } else if (mInFrame) {
+                mInFrame = b != ETX;
+            } else if (b == STX) {
+                mInFrame = true;
+            } else if (b == ESC) {
+                mEscRemaining = ESC_REPLY_LENGTH;
+            }
+        }
+    }
+
+    /**
+     * Fail all pending queries, e.g. when the connection is closed.
+     */
+    void cancelAll() {
+        List<Pending<?>> pending;
+        synchronized (this) {
+            pending = new ArrayList<>(mPending);
+            mPending.clear();
+            mInFrame = false;
+            mEscRemaining = 0;
+        }
+        for (Pending<?> p : pending) {
+            p.future.completeExceptionally(new IOException("connection closed"));
+        }
+    }
+
+    /**
+     * Number of queries waiting for their reply, not counting the expired ones.
+     */
+    synchronized int getPendingCount() {
+        int count = 0;
+        for (Pending<?> pending : mPending) {
+            if (!pending.expired)
+                count++;
+        }
+        return count;
+    }
+
+    synchronized int getTimeoutCount() {
+        return mTimeouts;
+    }
+
+    private synchronized boolean remove(Pending<?> pending) {
+        return mPending.remove(pending);
+    }
+}
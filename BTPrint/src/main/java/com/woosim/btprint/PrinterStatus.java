@@ -0,0 +1,73 @@
+package com.woosim.btprint;
+
+/**
+ * Snapshot of the printer status byte returned for WoosimCmd.queryStatus. Snapshots are
+ * immutable and equal if they were decoded from the same byte.
+ */
+final class PrinterStatus {
+    private final byte mStatus;
+    private final boolean mPaperOut;
+    private final boolean mCoverOpen;
+    private final boolean mHighTemperature;
+
+    private PrinterStatus(byte status) {
+        mStatus = status;
+        // The WSP-R240 model group only reports 0x30 to 0x33; other models set more bits.
+        // Refer to the command manual of the printer for the exact bit definitions. Bits that
+        // are not known, like 0x04 and 0x08, do not count as an error.
+        mPaperOut = (status & 0x01) != 0;
+        mCoverOpen = (status & 0x02) != 0;
+        mHighTemperature = (status & 0x40) != 0;
+    }
+
+    static PrinterStatus of(byte status) {
+        return new PrinterStatus(status);
+    }
+
+    /**
+     * Whether the byte is a status reply, as opposed to other data sent by the printer.
+     */
+    static boolean isStatus(byte b) {
+        return (b & 0x30) == 0x30;
+    }
+
+    byte getStatusByte() {
+        return mStatus;
+    }
+
+    boolean isPaperOut() {
+        return mPaperOut;
+    }
+
+    boolean isCoverOpen() {
+        return mCoverOpen;
+    }
+
+    boolean isHighTemperature() {
+        return mHighTemperature;
+    }
+
+    /**
+     * Whether the printer cannot print in this state.
+     */
+    boolean isError() {
+        return mPaperOut || mCoverOpen || mHighTemperature;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof PrinterStatus && ((PrinterStatus) o).mStatus == mStatus;
+    }
+
+    @Override
+    public int hashCode() {
+        return mStatus;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("PrinterStatus[0x%02X%s%s%s]", mStatus & 0xFF,
+                mPaperOut ? " paper out" : "", mCoverOpen ? " cover open" : "",
+                mHighTemperature ? " high temperature" : "");
+    }
+}
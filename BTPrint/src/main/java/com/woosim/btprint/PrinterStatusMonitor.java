@@ -0,0 +1,202 @@
+package com.woosim.btprint;
+
+import android.util.Log;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Polls the printer status off the main thread and tells the listeners when it changes. The
+ * printer is polled often while a job is being sent and seldom while it is idle. Only one
+ * query is outstanding at a time, so a printer that is slow to answer never gets a backlog of
+ * queries in between the print data. Polling stops when a query cannot be sent.
+ */
+class PrinterStatusMonitor {
+    private static final String TAG = "PrinterStatusMonitor";
+
+    // One timer thread for all monitors; it only hands the queries to the senders
+    private static final ScheduledExecutorService sTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "PrinterStatusMonitor");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Called on the receive thread of the print service with a status that differs from the
+     * previous one, or on the thread calling stop() with null when the status becomes unknown.
+     */
+    interface Listener {
+        void onStatusChanged(PrinterStatus status);
+    }
+
+    private final PrinterQueries mQueries;
+    private final long mIdleIntervalMs;
+    private final long mBusyIntervalMs;
+    private final List<Listener> mListeners = new CopyOnWriteArrayList<>();
+    private boolean mRunning;
+    private ScheduledFuture<?> mScheduled;
+    private long mNextPoll;
+    // Identifies the scheduled poll, a poll that was cancelled too late does nothing
+    private int mPollId;
+    // Jobs handed to the print service and not written yet
+    private int mJobs;
+    // The query waiting for its reply
+    private CompletableFuture<PrinterStatus> mQuery;
+    private PrinterStatus mStatus;
+    private int mPolls;
+    private int mLost;
+
+    /**
+     * @param queries         Sends the status queries and matches their replies
+     * @param idleIntervalMs  Time between two queries while no job is being sent
+     * @param busyIntervalMs  Time between two queries while a job is being sent
+     */
+    PrinterStatusMonitor(PrinterQueries queries, long idleIntervalMs, long busyIntervalMs) {
+        mQueries = queries;
+        mIdleIntervalMs = idleIntervalMs;
+        mBusyIntervalMs = busyIntervalMs;
+    }
+
+    void addListener(Listener listener) {
+        mListeners.add(listener);
+    }
+
+    void removeListener(Listener listener) {
+        mListeners.remove(listener);
+    }
+
+    /**
+     * Start polling, e.g. when the printer is connected. The first query is sent at once.
+     */
+    synchronized void start() {
+        if (mRunning)
+            return;
+        mRunning = true;
+        schedule(0);
+        Log.d(TAG, "Status monitoring started");
+    }
+
+    /**
+     * Stop polling, e.g. when the connection is closed. The status becomes unknown.
+     */
+    void stop() {
+        synchronized (this) {
+            if (!mRunning)
+                return;
+            mRunning = false;
+            if (mScheduled != null) {
+                mScheduled.cancel(false);
+                mScheduled = null;
+            }
+            mPollId++;
+            mQuery = null;
+            Log.d(TAG, "Status monitoring stopped after " + mPolls + " queries, " + mLost + " unanswered");
+            if (mStatus == null)
+                return;
+            mStatus = null;
+        }
+        notifyListeners(null);
+    }
+
+    /**
+     * Poll often until the job has been written.
+     * @param job  The future returned by the print service, or by CoalescingWriter.flush
+     */
+    void track(CompletableFuture<?> job) {
+        synchronized (this) {
+            if (job.isDone())
+                return;
+            if (mJobs++ == 0 && mRunning)
+                schedule(mBusyIntervalMs);
+        }
+        job.whenComplete((result, e) -> {
+            synchronized (this) {
+                mJobs--;
+            }
+        });
+    }
+
+    /**
+     * Query the status now instead of waiting for the next poll.
+     */
+    synchronized void requestNow() {
+        if (mRunning)
+            schedule(0);
+    }
+
+    /**
+     * The last status received, or null if it is not known.
+     */
+    synchronized PrinterStatus getStatus() {
+        return mStatus;
+    }
+
+    private void poll(int id) {
+        synchronized (this) {
+            if (id != mPollId || !mRunning)
+                return;
+            mScheduled = null;
+            schedule(mJobs > 0 ? mBusyIntervalMs : mIdleIntervalMs);
+            if (mQuery != null)
+                return;
+            mPolls++;
+        }
+        CompletableFuture<PrinterStatus> query = mQueries.query(PrinterQueries.status());
+        synchronized (this) {
+            if (!query.isDone())
+                mQuery = query;
+        }
+        query.whenComplete((status, e) -> onReply(query, status, e));
+    }
+
+    private void onReply(CompletableFuture<PrinterStatus> query, PrinterStatus status, Throwable e) {
+        synchronized (this) {
+            if (mQuery == query)
+                mQuery = null;
+            else if (mQuery != null || !mRunning)
+                return;
+            if (e instanceof TimeoutException) {
+                // A printer busy with a long job may have missed the query
+                mLost++;
+                return;
+            }
+            if (e == null) {
+                if (status.equals(mStatus))
+                    return;
+                mStatus = status;
+            }
+        }
+        if (e == null) {
+            notifyListeners(status);
+        } else {
+            // The connection is gone; polling is started again with the next connection
+            Log.e(TAG, "status query failed", e);
+            stop();
+        }
+    }
+
+    // Poll after delayMs, unless a poll is already due before that
+    private void schedule(long delayMs) {
+        long at = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMs);
+        if (mScheduled != null) {
+            if (mNextPoll - at <= 0)
+                return;
+            mScheduled.cancel(false);
+        }
+        mNextPoll = at;
+        int id = ++mPollId;
+        mScheduled = sTimer.schedule(() -> poll(id), delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    private void notifyListeners(PrinterStatus status) {
+        for (Listener listener : mListeners) {
+            listener.onStatusChanged(status);
+        }
+    }
+}
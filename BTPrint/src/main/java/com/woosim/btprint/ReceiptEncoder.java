@@ -0,0 +1,276 @@
+package com.woosim.btprint;
+
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Fluent builder of print jobs. Writes the same ESC/GS sequences as WoosimCmd and WoosimBarcode
+ * straight into a reused buffer, so building a receipt creates no command arrays and sending it
+ * needs no copy. Encoders are pooled: take one with obtain(), it goes back to the pool by itself
+ * when send() has finished, or through recycle() if it is not sent.
+ */
+class ReceiptEncoder {
+    private static final String TAG = "ReceiptEncoder";
+    private static final int INITIAL_CAPACITY = 512;
+    // Buffers grown beyond this are dropped instead of pooled
+    private static final int MAX_POOLED_CAPACITY = 64 * 1024;
+    private static final int MAX_POOL_SIZE = 4;
+    private static final byte LF = 0x0A;
+    private static final byte FF = 0x0C;
+    private static final byte ESC = 0x1B;
+    private static final byte GS = 0x1D;
+
+    private static final Object sPoolLock = new Object();
+    private static ReceiptEncoder sPool;
+    private static int sPoolSize;
+
+    /**
+     * Destination of a finished job, e.g. BluetoothPrintService::write.
+     */
+    interface Writer {
+        CompletableFuture<Void> write(byte[] data, int offset, int length);
+    }
+
+    private ByteBuffer mBuffer = ByteBuffer.allocate(INITIAL_CAPACITY);
+    private ReceiptEncoder mNext;
+
+    private ReceiptEncoder() {
+    }
+
+    /**
+     * Take an empty encoder from the pool, or create one if the pool is empty.
+     */
+    static ReceiptEncoder obtain() {
+        synchronized (sPoolLock) {
+            if (sPool != null) {
+                ReceiptEncoder encoder = sPool;
+                sPool = encoder.mNext;
+                encoder.mNext = null;
+                sPoolSize--;
+                return encoder;
+            }
+        }
+        return new ReceiptEncoder();
+    }
+
+    /**
+     * Return the encoder to the pool. It must not be used afterwards.
+     */
+    void recycle() {
+        mBuffer.clear();
+        if (mBuffer.capacity() > MAX_POOLED_CAPACITY) {
+            mBuffer = ByteBuffer.allocate(INITIAL_CAPACITY);
+        }
+        synchronized (sPoolLock) {
+            if (sPoolSize < MAX_POOL_SIZE) {
+                mNext = sPool;
+                sPool = this;
+                sPoolSize++;
+            }
+        }
+    }
+
+    /**
+     * Hand the encoded bytes to the writer without copying them. The encoder is recycled
+     * when the returned future completes, so it must not be used after this call.
+     */
+    CompletableFuture<Void> send(Writer writer) {
+        CompletableFuture<Void> done = writer.write(mBuffer.array(), mBuffer.arrayOffset(), mBuffer.position());
+        if (done.isDone())
+            recycle();
+        else
+            done.whenComplete((result, e) -> recycle());
+        return done;
+    }
+
+    int size() {
+        return mBuffer.position();
+    }
+
+    /**
+     * Copy of the encoded bytes, for tests and for writers that keep the data.
+     */
+    byte[] toByteArray() {
+        byte[] data = new byte[mBuffer.position()];
+        System.arraycopy(mBuffer.array(), mBuffer.arrayOffset(), data, 0, data.length);
+        return data;
+    }
+
+    ReceiptEncoder initPrinter() {
+        return put(ESC, (byte) '@');
+    }
+
+    ReceiptEncoder printData() {
+        return put(LF);
+    }
+
+    ReceiptEncoder printLineFeed(int lines) {
+        return put(ESC, (byte) 'd', (byte) lines);
+    }
+
+    /**
+     * Same as WoosimCmd.setTextStyle: width and height are multiples of the font size, 1 to 8.
+     */
+    ReceiptEncoder setTextStyle(boolean bold, boolean underline, boolean reverse, int width, int height) {
+        int w = Math.max(0, Math.min(7, width - 1));
+        int h = Math.max(0, Math.min(7, height - 1));
+        put(ESC, (byte) 'E', (byte) (bold ? 1 : 0));
+        put(ESC, (byte) '-', (byte) (underline ? 1 : 0));
+        put(GS, (byte) 'B', (byte) (reverse ? 1 : 0));
+        return put(GS, (byte) '!', (byte) (w | h << 4));
+    }
+
+    ReceiptEncoder setTextAlign(int align) {
+        return put(ESC, (byte) 'a', (byte) align);
+    }
+
+    /**
+     * Same as WoosimCmd.setCodeTable, including its mapping of the code tables of older MCUs.
+     * Invalid arguments are logged and nothing is written.
+     */
+    ReceiptEncoder setCodeTable(int mcu, int table, int font) {
+        if (mcu < 1 || mcu > 3) {
+            Log.e(TAG, "Invalid MCU type: " + mcu);
+            return this;
+        }
+        if ((table < 0 || table > 50) && table != 255) {
+            Log.e(TAG, "Invalid code table: " + table);
+            return this;
+        }
+        if (font < 0 || font > 2)
+            font = 0;
+        if (mcu != 3) {
+            if (table > 3 && table != 12 && table != 13 && table != 255) {
+                Log.e(TAG, "Invalid code table for specific MCU: " + table);
+                return this;
+            }
+            if (table == 13)
+                table = 4;
+            else if (table == 12)
+                table = 5;
+            if (font == 2)
+                font = 1;
+        }
+        put(ESC, (byte) 't', (byte) table);
+        return put(ESC, (byte) '!', (byte) font);
+    }
+
+    ReceiptEncoder feedToMark() {
+        return put(ESC, (byte) 'z').put(ESC, (byte) 'y');
+    }
+
+    ReceiptEncoder setPageMode() {
+        return put(ESC, (byte) 'L');
+    }
+
+    ReceiptEncoder PM_setArea(int x, int y, int width, int height) {
+        put(ESC, (byte) 'W');
+        return putShort(x).putShort(y).putShort(width).putShort(height);
+    }
+
+    ReceiptEncoder PM_setPosition(int x, int y) {
+        put(ESC, (byte) 'O');
+        return putShort(x).putShort(y);
+    }
+
+    ReceiptEncoder PM_printStdMode() {
+        return put(FF);
+    }
+
+    /**
+     * Text in US-ASCII, characters outside of it are sent as '?' like String.getBytes does.
+     */
+    ReceiptEncoder text(String text) {
+        int length = text.length();
+        ensure(length);
+        byte[] array = mBuffer.array();
+        int pos = mBuffer.arrayOffset() + mBuffer.position();
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(text.charAt(i + 1)))
+                i++;
+            array[pos++] = c < 0x80 ? (byte) c : (byte) '?';
+        }
+        mBuffer.position(pos - mBuffer.arrayOffset());
+        return this;
+    }
+
+    /**
+     * Raw bytes, e.g. the output of a WoosimImage or WoosimBarcode method. null is ignored.
+     */
+    ReceiptEncoder bytes(byte[] data) {
+        if (data != null) {
+            ensure(data.length);
+            mBuffer.put(data);
+        }
+        return this;
+    }
+
+    /**
+     * Same sequence as WoosimBarcode.createBarcode. The data is not checked against
+     * the symbology here, only its length.
+     * @param type  One of the 1D types of WoosimBarcode, e.g. WoosimBarcode.CODE128
+     */
+    ReceiptEncoder barcode(int type, int width, int height, boolean hri, byte[] data) {
+        if (data.length < 1 || data.length > 255) {
+            Log.e(TAG, "Invalid barcode length");
+            return this;
+        }
+        put(GS, (byte) 'w', (byte) width);
+        put(GS, (byte) 'h', (byte) height);
+        put(GS, (byte) 'H', (byte) (hri ? 1 : 0));
+        put(GS, (byte) 'k', (byte) type);
+        put((byte) data.length);
+        return bytes(data);
+    }
+
+    /**
+     * Same sequence as WoosimBarcode.create2DBarcodeQRCode.
+     */
+    ReceiptEncoder qrCode(int version, byte errorCorrection, int size, byte[] data) {
+        put(GS, (byte) 'Z', (byte) 2);
+        put(ESC, (byte) 'Z', (byte) version);
+        put(errorCorrection, (byte) size);
+        putShort(data.length);
+        return bytes(data);
+    }
+
+    private ReceiptEncoder put(byte b) {
+        ensure(1);
+        mBuffer.put(b);
+        return this;
+    }
+
+    private ReceiptEncoder put(byte b1, byte b2) {
+        ensure(2);
+        mBuffer.put(b1).put(b2);
+        return this;
+    }
+
+    private ReceiptEncoder put(byte b1, byte b2, byte b3) {
+        ensure(3);
+        mBuffer.put(b1).put(b2).put(b3);
+        return this;
+    }
+
+    // Little endian, the order of all 16 bit arguments of the printer
+    private ReceiptEncoder putShort(int value) {
+        return put((byte) value, (byte) (value >> 8));
+    }
+
+    // Grow by doubling; the grown buffer is kept when the encoder is pooled
+    private void ensure(int length) {
+        if (mBuffer.remaining() < length) {
+            int capacity = mBuffer.capacity();
+            while (capacity - mBuffer.position() < length) {
+                capacity *= 2;
+            }
+            ByteBuffer grown = ByteBuffer.allocate(capacity);
+            mBuffer.flip();
+            grown.put(mBuffer);
+            mBuffer = grown;
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package com.woosim.btprint;
+
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounds the time a blocking write may take. A write still running at its deadline is aborted
+ * by closing its stream, which makes the write throw on the writing thread. Stream writes have
+ * no timeout of their own, so without this a printer that stops reading hangs the writer.
+ * One watchdog serves one writing thread.
+ */
+class WriteWatchdog {
+    private static final String TAG = "WriteWatchdog";
+
+    // One timer thread for all watchdogs; it only closes the stalled streams
+    private static final ScheduledThreadPoolExecutor sTimer = new ScheduledThreadPoolExecutor(1, r -> {
+        Thread thread = new Thread(r, "WriteWatchdog");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    static {
+        // A deadline is set for every write and nearly always cancelled
+        sTimer.setRemoveOnCancelPolicy(true);
+    }
+
+    private ScheduledFuture<?> mDeadline;
+    // Identifies the armed deadline, a deadline that was cancelled too late does nothing
+    private int mArmed;
+    private String mWhat;
+    private long mTimeoutMs;
+    private boolean mExpired;
+
+    /**
+     * Start the deadline of a write.
+     * @param stream     Closed if the write is not done within timeoutMs
+     * @param what       Message of the timeout, e.g. "write timed out"
+     */
+    synchronized void arm(Closeable stream, String what, long timeoutMs) {
+        if (mDeadline != null)
+            mDeadline.cancel(false);
+        int id = ++mArmed;
+        mWhat = what;
+        mTimeoutMs = timeoutMs;
+        mExpired = false;
+        mDeadline = sTimer.schedule(() -> expire(id, stream), timeoutMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * End the deadline of the write, whether it succeeded or not.
+     * @return The timeout to report if the write was aborted, otherwise null
+     */
+    synchronized WriteTimeoutException disarm() {
+        mArmed++;
+        if (mDeadline != null) {
+            mDeadline.cancel(false);
+            mDeadline = null;
+        }
+        return mExpired ? new WriteTimeoutException(mWhat, mTimeoutMs) : null;
+    }
+
+    private void expire(int id, Closeable stream) {
+        String what;
+        synchronized (this) {
+            if (id != mArmed)
+                return;
+            mDeadline = null;
+            mExpired = true;
+            what = mWhat;
+        }
+        Log.e(TAG, what + ", aborting the connection");
+        try {
+            stream.close();
+        } catch (IOException e) {
+            Log.e(TAG, "close() of stalled stream failed", e);
+        }
+    }
+}
@@ -0,0 +1,249 @@
+package com.woosim.btprint;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Job order, cancel and urgent writes of the send queue of {@link BluetoothPrintService}.
+ */
+public class BluetoothPrintServiceTest {
+    private static final byte ESC = 0x1B;
+    // ESC X 4: a raster image of 2 x 2 bytes
+    private static final byte[] RASTER = {ESC, 'X', '4', 2, 2, 1, 2, 3, 4};
+    private static final byte[] STATUS_QUERY = {ESC, 'v'};
+
+    @Test
+    public void waitingJobs_goByPriority() throws Exception {
+        BluetoothPrintService.WriterThread writer = start();
+        write(writer, BluetoothPrintService.PRIORITY_BULK, "bulk");
+        write(writer, BluetoothPrintService.PRIORITY_NORMAL, "normal");
+        write(writer, BluetoothPrintService.PRIORITY_URGENT, "urgent");
+        Printer printer = new Printer(false);
+        writer.setOutput(printer);
+        assertEquals("urgentnormalbulk", printer.await(16));
+        writer.cancel();
+    }
+
+    @Test
+    public void startedJob_isNotOvertaken() throws Exception {
+        BluetoothPrintService.WriterThread writer = start();
+        Printer printer = new Printer(true);
+        writer.setOutput(printer);
+        BluetoothPrintService.PrintJob bulk = writer.open(BluetoothPrintService.PRIORITY_BULK);
+        bulk.write(bytes("b1"));
+        printer.awaitWrite();
+        write(writer, BluetoothPrintService.PRIORITY_URGENT, "u");
+        bulk.write(bytes("b2"));
+        bulk.end();
+        printer.release();
+        assertEquals("b1b2u", printer.await(5));
+        writer.cancel();
+    }
+
+    @Test
+    public void waitingJob_isCanceled() throws Exception {
+        BluetoothPrintService.WriterThread writer = start();
+        write(writer, BluetoothPrintService.PRIORITY_NORMAL, "a");
+        BluetoothPrintService.PrintJob job = writer.open(BluetoothPrintService.PRIORITY_NORMAL);
+        CompletableFuture<Void> written = job.write(bytes("b"));
+        assertTrue(job.cancel());
+        assertFalse(job.cancel());
+        assertCanceled(written);
+        assertCanceled(job.write(bytes("c")));
+        assertCanceled(job.end());
+
+        Printer printer = new Printer(false);
+        writer.setOutput(printer);
+        write(writer, BluetoothPrintService.PRIORITY_NORMAL, "d");
+        assertEquals("ad", printer.await(2));
+        writer.cancel();
+    }
+
+    @Test
+    public void runningJob_isCutAndReset() throws Exception {
+        BluetoothPrintService.WriterThread writer = start();
+        Printer printer = new Printer(true);
+        writer.setOutput(printer);
+        BluetoothPrintService.PrintJob job = writer.open(BluetoothPrintService.PRIORITY_NORMAL);
+        CompletableFuture<Void> first = job.write(bytes("r1"));
+        printer.awaitWrite();
+        CompletableFuture<Void> second = job.write(bytes("r2"));
+        assertTrue(job.cancel());
+        CompletableFuture<Void> done = job.end();
+        printer.release();
+        first.get(5, TimeUnit.SECONDS);
+        assertCanceled(second);
+        assertCanceled(done);
+
+        // The rest of the job is dropped, ESC @ follows what was sent of it
+        write(writer, BluetoothPrintService.PRIORITY_NORMAL, "n");
+        assertEquals("r1\u001B@n", printer.await(5));
+        writer.cancel();
+    }
+
+    @Test
+    public void urgentWrite_waitsForTheEndOfACommand() throws Exception {
+        BluetoothPrintService.WriterThread writer = start();
+        Printer printer = new Printer(false);
+        writer.setOutput(printer);
+        BluetoothPrintService.PrintJob job = writer.open(BluetoothPrintService.PRIORITY_NORMAL);
+        job.write(RASTER, 0, 6);
+        printer.await(6);
+        CompletableFuture<Void> query = writer.writeUrgent(STATUS_QUERY, 0, STATUS_QUERY.length);
+        job.write(RASTER, 6, RASTER.length - 6);
+        job.end();
+        query.get(5, TimeUnit.SECONDS);
+        assertEquals(text(RASTER) + text(STATUS_QUERY), printer.await(11));
+        writer.cancel();
+    }
+
+    @Test
+    public void urgentWrite_goesBetweenTheCommandsOfALargeWrite() throws Exception {
+        BluetoothPrintService.WriterThread writer = start();
+        Printer printer = new Printer(true);
+        writer.setOutput(printer);
+        // Two bands of 48 x 60 bytes, together more than one chunk
+        byte[] band = new byte[5 + 48 * 60];
+        band[0] = ESC;
+        band[1] = 'X';
+        band[2] = '4';
+        band[3] = 48;
+        band[4] = 60;
+        byte[] page = new byte[band.length * 2];
+        System.arraycopy(band, 0, page, 0, band.length);
+        System.arraycopy(band, 0, page, band.length, band.length);
+        BluetoothPrintService.PrintJob job = writer.open(BluetoothPrintService.PRIORITY_NORMAL);
+        job.write(page);
+        job.end();
+        printer.awaitWrite();
+        CompletableFuture<Void> query = writer.writeUrgent(STATUS_QUERY, 0, STATUS_QUERY.length);
+        printer.release();
+        query.get(5, TimeUnit.SECONDS);
+        assertEquals(text(band) + text(STATUS_QUERY) + text(band), printer.await(page.length + 2));
+        writer.cancel();
+    }
+
+    @Test
+    public void urgentWrite_goesAheadOfAPausedQueue() throws Exception {
+        BluetoothPrintService.WriterThread writer = start();
+        Printer printer = new Printer(false);
+        writer.setOutput(printer);
+        writer.setPaused(true);
+        write(writer, BluetoothPrintService.PRIORITY_NORMAL, "held");
+        writer.writeUrgent(STATUS_QUERY, 0, STATUS_QUERY.length).get(5, TimeUnit.SECONDS);
+        assertEquals(text(STATUS_QUERY), printer.await(2));
+        writer.setPaused(false);
+        assertEquals(text(STATUS_QUERY) + "held", printer.await(6));
+        writer.cancel();
+    }
+
+    @Test
+    public void pause_waitsForTheEndOfACommand() throws Exception {
+        BluetoothPrintService.WriterThread writer = start();
+        Printer printer = new Printer(false);
+        writer.setOutput(printer);
+        BluetoothPrintService.PrintJob job = writer.open(BluetoothPrintService.PRIORITY_NORMAL);
+        job.write(RASTER, 0, 6);
+        printer.await(6);
+        writer.setPaused(true);
+        write(writer, BluetoothPrintService.PRIORITY_NORMAL, "held");
+        job.write(RASTER, 6, RASTER.length - 6);
+        job.end();
+        // The image is completed, then the query goes out while the next job is held back
+        writer.writeUrgent(STATUS_QUERY, 0, STATUS_QUERY.length).get(5, TimeUnit.SECONDS);
+        assertEquals(text(RASTER) + text(STATUS_QUERY), printer.await(11));
+        writer.setPaused(false);
+        assertEquals(text(RASTER) + text(STATUS_QUERY) + "held", printer.await(15));
+        writer.cancel();
+    }
+
+    private static BluetoothPrintService.WriterThread start() {
+        BluetoothPrintService.WriterThread writer = new BluetoothPrintService.WriterThread(() -> {});
+        writer.start();
+        return writer;
+    }
+
+    private static void write(BluetoothPrintService.WriterThread writer, int priority, String text) {
+        BluetoothPrintService.PrintJob job = writer.open(priority);
+        job.write(bytes(text));
+        job.end();
+    }
+
+    private static byte[] bytes(String text) {
+        return text.getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    private static String text(byte[] data) {
+        return new String(data, StandardCharsets.ISO_8859_1);
+    }
+
+    private static void assertCanceled(CompletableFuture<?> future) throws Exception {
+        try {
+            future.get(5, TimeUnit.SECONDS);
+            fail("not canceled");
+        } catch (CancellationException expected) {
+            // CompletableFuture throws the cause itself for a cancel
+        }
+    }
+
+    // Receives the writes; a held printer lets them through only after release()
+    private static class Printer extends OutputStream {
+        private final ByteArrayOutputStream mReceived = new ByteArrayOutputStream();
+        private final Semaphore mAllowed;
+        private final Semaphore mStarted = new Semaphore(0);
+
+        Printer(boolean held) {
+            mAllowed = new Semaphore(held ? 0 : Integer.MAX_VALUE);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            mStarted.release();
+            try {
+                mAllowed.acquire();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+            synchronized (this) {
+                mReceived.write(b, off, len);
+                notifyAll();
+            }
+        }
+
+        void awaitWrite() throws InterruptedException {
+            assertTrue("no write", mStarted.tryAcquire(5, TimeUnit.SECONDS));
+        }
+
+        void release() {
+            mAllowed.release(Integer.MAX_VALUE / 2);
+        }
+
+        // The bytes received once there are at least count of them
+        synchronized String await(int count) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + 5000;
+            while (mReceived.size() < count) {
+                long left = deadline - System.currentTimeMillis();
+                if (left <= 0)
+                    fail("received " + mReceived.size() + " of " + count + " bytes");
+                wait(left);
+            }
+            return new String(mReceived.toByteArray(), StandardCharsets.ISO_8859_1);
+        }
+    }
+}
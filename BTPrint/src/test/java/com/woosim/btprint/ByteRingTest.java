@@ -0,0 +1,36 @@
+package com.woosim.btprint;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Order and capacity of {@link ByteRing}. Its speed against a locked queue is measured by
+ * ByteRingBenchmark on a device.
+ */
+public class ByteRingTest {
+
+    @Test
+    public void ring_keepsOrderAcrossWrap() {
+        ByteRing ring = new ByteRing(8);
+        byte[] out = new byte[8];
+        for (int i = 0; i < 100; i++) {
+            assertTrue(ring.offer(new byte[] {(byte) i, (byte) (i + 1), (byte) (i + 2)}, 0, 3));
+            assertEquals(i & 0xFF, ring.read());
+            assertEquals(2, ring.read(out, 0, out.length));
+            assertEquals((byte) (i + 1), out[0]);
+            assertEquals((byte) (i + 2), out[1]);
+        }
+        assertEquals(-1, ring.read());
+    }
+
+    @Test
+    public void ring_rejectsWhatDoesNotFit() {
+        ByteRing ring = new ByteRing(8);
+        assertTrue(ring.offer(new byte[6], 0, 6));
+        assertFalse(ring.offer(new byte[3], 0, 3));
+        ring.discardTo(ring.written());
+        assertEquals(0, ring.available());
+        assertTrue(ring.offer(new byte[8], 0, 8));
+    }
+}
@@ -0,0 +1,193 @@
+package com.woosim.btprint;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Frame building and flushing of {@link CoalescingWriter}.
+ */
+public class CoalescingWriterTest {
+    private final List<byte[]> mFrames = new ArrayList<>();
+    private final List<CompletableFuture<Void>> mWrites = new ArrayList<>();
+
+    @Test
+    public void smallWrites_areSentAsOneFrame() {
+        CoalescingWriter writer = new CoalescingWriter(this::write, 16, 10_000);
+        CompletableFuture<Void> first = writer.write(new byte[] {0x1B, 0x40});
+        for (byte b = 1; b <= 4; b++) {
+            writer.write(new byte[] {b});
+        }
+        assertTrue(mFrames.isEmpty());
+        CompletableFuture<Void> flushed = writer.flush();
+        assertEquals(1, mFrames.size());
+        assertArrayEquals(new byte[] {0x1B, 0x40, 1, 2, 3, 4}, mFrames.get(0));
+        assertEquals(5, writer.getWriteCount());
+        assertEquals(1, writer.getFrameCount());
+
+        assertFalse(first.isDone());
+        mWrites.get(0).complete(null);
+        assertTrue(first.isDone());
+        assertTrue(flushed.isDone());
+    }
+
+    @Test
+    public void fullFrame_isSentAtOnce() {
+        CoalescingWriter writer = new CoalescingWriter(this::write, 4, 10_000);
+        writer.write(new byte[] {1, 2, 3});
+        writer.write(new byte[] {4});
+        writer.write(new byte[] {5});
+        // Does not fit behind 5, so 5 is sent first and 6 to 9 are passed on
+        writer.write(new byte[] {6, 7, 8, 9});
+        writer.write(new byte[] {10, 11, 12, 13, 14, 15}, 1, 2);
+        writer.flush();
+        assertEquals(4, mFrames.size());
+        assertArrayEquals(new byte[] {1, 2, 3, 4}, mFrames.get(0));
+        assertArrayEquals(new byte[] {5}, mFrames.get(1));
+        assertArrayEquals(new byte[] {6, 7, 8, 9}, mFrames.get(2));
+        assertArrayEquals(new byte[] {11, 12}, mFrames.get(3));
+    }
+
+    @Test
+    public void largeWrite_keepsTheOrder() {
+        CoalescingWriter writer = new CoalescingWriter(this::write, 8, 10_000);
+        byte[] image = new byte[20];
+        for (int i = 0; i < image.length; i++) {
+            image[i] = (byte) (i + 3);
+        }
+        writer.write(new byte[] {1, 2});
+        writer.write(image);
+        writer.write(new byte[] {23});
+        writer.flush();
+
+        ByteArrayOutputStream sent = new ByteArrayOutputStream();
+        for (byte[] frame : mFrames) {
+            sent.write(frame, 0, frame.length);
+        }
+        byte[] expected = new byte[23];
+        for (int i = 0; i < expected.length; i++) {
+            expected[i] = (byte) (i + 1);
+        }
+        assertArrayEquals(expected, sent.toByteArray());
+        assertEquals(3, mFrames.size());
+    }
+
+    @Test
+    public void deadline_flushesTheFrame() throws Exception {
+        CompletableFuture<byte[]> sent = new CompletableFuture<>();
+        CoalescingWriter writer = new CoalescingWriter((data, offset, length) -> {
+            byte[] frame = new byte[length];
+            System.arraycopy(data, offset, frame, 0, length);
+            sent.complete(frame);
+            return CompletableFuture.completedFuture(null);
+        }, 990, 5);
+        CompletableFuture<Void> done = writer.write(new byte[] {0x10, 0x04, 0x01});
+        assertArrayEquals(new byte[] {0x10, 0x04, 0x01}, sent.get(1, TimeUnit.SECONDS));
+        done.get(1, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void failedFrame_failsItsWrites() {
+        CoalescingWriter writer = new CoalescingWriter(this::write, 16, 10_000);
+        CompletableFuture<Void> write = writer.write(new byte[] {1, 2});
+        writer.flush();
+        mWrites.get(0).completeExceptionally(new IOException("connection lost"));
+        assertTrue(write.isCompletedExceptionally());
+        assertTrue(writer.flush().isCompletedExceptionally());
+    }
+
+    @Test
+    public void blockedSink_doesNotBlockBuffering() throws Exception {
+        CountDownLatch entered = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        CoalescingWriter writer = new CoalescingWriter((data, offset, length) -> {
+            if (entered.getCount() > 0) {
+                entered.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return write(data, offset, length);
+        }, 4, 10_000);
+        Thread sender = new Thread(() -> writer.write(new byte[] {1, 2, 3, 4}));
+        sender.start();
+        assertTrue(entered.await(1, TimeUnit.SECONDS));
+
+        // Buffered while the sink blocks; the flush then waits for the blocked thread to hand it over
+        CompletableFuture.runAsync(() -> writer.write(new byte[] {5})).get(1, TimeUnit.SECONDS);
+        CompletableFuture<Void> flushed = CompletableFuture.runAsync(writer::flush);
+        release.countDown();
+        flushed.get(1, TimeUnit.SECONDS);
+        sender.join(1000);
+        assertEquals(2, mFrames.size());
+        assertArrayEquals(new byte[] {1, 2, 3, 4}, mFrames.get(0));
+        assertArrayEquals(new byte[] {5}, mFrames.get(1));
+    }
+
+    @Test
+    public void flush_returnsAfterTheFramesOfAnotherThread() throws Exception {
+        byte[] end = {0};
+        List<byte[]> sent = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch entered = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        CoalescingWriter writer = new CoalescingWriter((data, offset, length) -> {
+            if (entered.getCount() > 0) {
+                entered.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            sent.add(Arrays.copyOfRange(data, offset, offset + length));
+            return CompletableFuture.completedFuture(null);
+        }, 16, 10_000);
+        // Each thread ends its job after the flush, the way MainActivity.flushData does
+        Thread first = new Thread(() -> {
+            writer.write(new byte[] {1, 2});
+            writer.flush();
+        });
+        first.start();
+        assertTrue(entered.await(1, TimeUnit.SECONDS));
+        Thread second = new Thread(() -> {
+            writer.write(new byte[] {3});
+            writer.flush();
+            sent.add(end);
+        });
+        second.start();
+        // The second flush leaves its frame to the first thread, which is held by the sink
+        long deadline = System.currentTimeMillis() + 1000;
+        while (second.getState() != Thread.State.WAITING && second.isAlive()
+                && System.currentTimeMillis() < deadline) {
+            Thread.yield();
+        }
+        release.countDown();
+        first.join(1000);
+        second.join(1000);
+        assertEquals(3, sent.size());
+        assertArrayEquals(new byte[] {1, 2}, sent.get(0));
+        assertArrayEquals(new byte[] {3}, sent.get(1));
+        assertSame(end, sent.get(2));
+    }
+
+    private CompletableFuture<Void> write(byte[] data, int offset, int length) {
+        byte[] copy = new byte[length];
+        System.arraycopy(data, offset, copy, 0, length);
+        mFrames.add(copy);
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        mWrites.add(future);
+        return future;
+    }
+}
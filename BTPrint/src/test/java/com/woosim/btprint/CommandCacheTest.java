@@ -0,0 +1,66 @@
+package com.woosim.btprint;
+
+import com.woosim.printer.WoosimBarcode;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Hits, misses and size based eviction of {@link CommandCache}.
+ */
+public class CommandCacheTest {
+    private static final byte[] DATA = {0x30, 0x31, 0x32, 0x33, 0x34, 0x35, 0x36, 0x37, 0x38, 0x39, 0x30};
+
+    @Test
+    public void repeatedCall_isGeneratedOnce() {
+        CommandCache cache = new CommandCache(1024);
+        int[] generated = new int[1];
+        for (int i = 0; i < 3; i++) {
+            byte[] qr = cache.get(CommandCache.key("create2DBarcodeQRCode", DATA, 0, 0x4d, 5), () -> {
+                generated[0]++;
+                return WoosimBarcode.create2DBarcodeQRCode(0, (byte) 0x4d, 5, DATA);
+            });
+            assertArrayEquals(WoosimBarcode.create2DBarcodeQRCode(0, (byte) 0x4d, 5, DATA), qr);
+        }
+        assertEquals(1, generated[0]);
+        assertEquals(2, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+    }
+
+    @Test
+    public void keys_differByGeneratorParamsAndPayload() {
+        CommandCache cache = new CommandCache(1024);
+        byte[] payload = DATA.clone();
+        cache.get(CommandCache.key("a", payload, 1), () -> new byte[] {1});
+        // The key keeps its own copy of the payload
+        payload[0] = 0x31;
+        assertArrayEquals(new byte[] {2}, cache.get(CommandCache.key("a", payload, 1), () -> new byte[] {2}));
+        assertArrayEquals(new byte[] {1}, cache.get(CommandCache.key("a", DATA, 1), () -> new byte[] {3}));
+        assertArrayEquals(new byte[] {4}, cache.get(CommandCache.key("a", DATA, 2), () -> new byte[] {4}));
+        assertArrayEquals(new byte[] {5}, cache.get(CommandCache.key("b", DATA, 1), () -> new byte[] {5}));
+        assertArrayEquals(new byte[] {6}, cache.get(CommandCache.key("image", null, 7), () -> new byte[] {6}));
+        assertEquals(1, cache.getHitCount());
+    }
+
+    @Test
+    public void leastRecentlyUsed_isEvictedBySize() {
+        CommandCache cache = new CommandCache(300);
+        cache.get(CommandCache.key("a", null), () -> new byte[100]);
+        cache.get(CommandCache.key("b", null), () -> new byte[100]);
+        cache.get(CommandCache.key("c", null), () -> new byte[100]);
+        // a is used again, so b is the least recently used one
+        cache.get(CommandCache.key("a", null), () -> null);
+        cache.get(CommandCache.key("d", null), () -> new byte[50]);
+        assertEquals(250, cache.getSize());
+        assertEquals(1, cache.getEvictionCount());
+        assertNotNull(cache.get(CommandCache.key("a", null), () -> null));
+        assertNull(cache.get(CommandCache.key("b", null), () -> null));
+
+        // Too large for the cache and failed generations are returned but not kept
+        assertEquals(400, cache.get(CommandCache.key("e", null), () -> new byte[400]).length);
+        assertEquals(250, cache.getSize());
+        cache.get(CommandCache.key("f", null), () -> null);
+        assertNull(cache.get(CommandCache.key("f", null), () -> null));
+    }
+}
@@ -0,0 +1,238 @@
+package com.woosim.btprint;
+
+import com.woosim.printer.WoosimBarcode;
+import com.woosim.printer.WoosimCmd;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * {@link CommandOptimizer} on the jobs of the sample activities.
+ */
+public class CommandOptimizerTest {
+    private static final byte[] TEXT = "Hello, Woosim!".getBytes();
+
+    @Test
+    public void printText_dropsDefaultStyleAndRepeatedInit() throws IOException {
+        CommandOptimizer optimizer = new CommandOptimizer();
+        byte[] job = printTextJob(false);
+        assertArrayEquals(concat(WoosimCmd.initPrinter(), TEXT, WoosimCmd.printLineFeed(2)),
+                optimize(optimizer, job));
+        // Nothing changed since the last ESC @, so the second one is not needed either
+        assertArrayEquals(concat(TEXT, WoosimCmd.printLineFeed(2)), optimize(optimizer, job));
+    }
+
+    @Test
+    public void printText_keepsChangedStyle() throws IOException {
+        CommandOptimizer optimizer = new CommandOptimizer();
+        optimize(optimizer, printTextJob(false));
+        byte[] out = optimize(optimizer, printTextJob(true));
+        assertArrayEquals(concat(WoosimCmd.setBold(true), TEXT, WoosimCmd.printLineFeed(2)), out);
+        // Bold is on now, so ESC @ is sent to turn it off again
+        out = optimize(optimizer, printTextJob(false));
+        assertArrayEquals(concat(WoosimCmd.initPrinter(), TEXT, WoosimCmd.printLineFeed(2)), out);
+    }
+
+    @Test
+    public void multiLanguage_dropsRepeatedFont() throws IOException {
+        CommandOptimizer optimizer = new CommandOptimizer();
+        byte[] job = concat(WoosimCmd.initPrinter(),
+                WoosimCmd.setCodeTable(WoosimCmd.MCU_RX, WoosimCmd.CT_WIN1253, WoosimCmd.FONT_LARGE),
+                "Windows 1253: Greek\n".getBytes(), new byte[] {(byte) 0xC1, (byte) 0xC2, 0x0A},
+                WoosimCmd.setCodeTable(WoosimCmd.MCU_RX, WoosimCmd.CT_CP437, WoosimCmd.FONT_LARGE),
+                WoosimCmd.printLineFeed(2));
+        byte[] out = optimize(optimizer, job);
+        assertEquals(job.length - 3, out.length);
+        // The code table was changed, so the next job keeps its ESC @
+        out = optimize(optimizer, job);
+        assertEquals(job.length - 3, out.length);
+    }
+
+    @Test
+    public void label_dropsRepeatedStyle() {
+        CommandOptimizer optimizer = new CommandOptimizer();
+        String tracking = "134 35490 7564";
+        byte[] job = ReceiptEncoder.obtain()
+                .setCodeTable(WoosimCmd.MCU_RX, WoosimCmd.CT_CP437, WoosimCmd.FONT_LARGE)
+                .setTextStyle(true, false, false, 1, 1)
+                .text("SHIP TO:\n")
+                .setCodeTable(WoosimCmd.MCU_RX, WoosimCmd.CT_CP437, WoosimCmd.FONT_MEDIUM)
+                .setTextStyle(false, false, false, 1, 1)
+                .text("        #60, Sandan-ro 388beon-gil\n")
+                .setPageMode()
+                .PM_setArea(0, 0, 384, 300)
+                .PM_setPosition(0, 7)
+                .qrCode(0, (byte) 0x4D, 3, "http://www.woosim.com/".getBytes())
+                .setCodeTable(WoosimCmd.MCU_RX, WoosimCmd.CT_CP437, WoosimCmd.FONT_LARGE)
+                .setTextStyle(true, false, false, 1, 1)
+                .PM_setPosition(100, 20)
+                .text("ITEM    : Printer")
+                .setTextStyle(false, false, false, 1, 1)
+                .PM_setPosition(0, 100)
+                .text("TRACKING NUMBER:")
+                .setCodeTable(WoosimCmd.MCU_RX, WoosimCmd.CT_CP437, WoosimCmd.FONT_MEDIUM)
+                .setTextStyle(false, false, false, 1, 1)
+                .PM_setPosition(130, 130)
+                .text(tracking)
+                .PM_setPosition(20, 160)
+                .barcode(WoosimBarcode.CODE128, 2, 100, false, tracking.getBytes())
+                .PM_printStdMode()
+                .feedToMark()
+                .toByteArray();
+        byte[] out = optimize(optimizer, job);
+        assertTrue(out.length < job.length);
+    }
+
+    @Test
+    public void imageAndBarcodeData_passUnchanged() throws IOException {
+        Random random = new Random(11);
+        byte[] raster = new byte[48 * 40];
+        for (int i = 0; i < raster.length; i++) {
+            // Plenty of bytes that would be settings outside of the data
+            raster[i] = (byte) (random.nextInt(4) == 0 ? 0x1B : "E@t!-a".charAt(random.nextInt(6)));
+        }
+        byte[] rle = new byte[raster.length * 2];
+        rle[0] = 0x1B; rle[1] = 'X'; rle[2] = '3'; rle[3] = 48; rle[4] = 40;
+        int end = rleEncode(raster, rle, 5);
+        byte[] data = concat(new byte[] {0x1B, 'X', '4', 48, 40}, raster, Arrays.copyOf(rle, end),
+                new byte[] {0x1B, 'X', '2', 40},
+                WoosimBarcode.createBarcode(WoosimBarcode.CODE128, 2, 60, true, new byte[] {0x1B, 'E', 1}),
+                WoosimBarcode.createGS1Databar(0, 2, "0001234567890".getBytes()));
+        byte[] job = concat(WoosimCmd.initPrinter(), WoosimCmd.setBold(false), data,
+                WoosimCmd.setBold(false), TEXT, WoosimCmd.printData());
+        assertArrayEquals(concat(WoosimCmd.initPrinter(), data, TEXT, WoosimCmd.printData()),
+                optimize(new CommandOptimizer(), job));
+
+        // Split at every position, the data is still recognized
+        for (int split = 1; split < data.length; split++) {
+            CommandOptimizer optimizer = new CommandOptimizer();
+            byte[] first = optimizer.optimize(data, 0, split);
+            assertSame(data, first);
+            assertEquals(split, optimizer.getLength());
+            byte[] second = optimizer.optimize(data, split, data.length - split);
+            assertSame(data, second);
+            assertEquals(data.length - split, optimizer.getLength());
+        }
+    }
+
+    @Test
+    public void alignmentInsideALine_isNotTrusted() throws IOException {
+        CommandOptimizer optimizer = new CommandOptimizer();
+        byte[] job = concat(WoosimCmd.initPrinter(), TEXT, WoosimCmd.setTextAlign(1), WoosimCmd.printData(),
+                WoosimCmd.setTextAlign(1), TEXT, WoosimCmd.printData());
+        assertArrayEquals(job, optimize(optimizer, job));
+    }
+
+    @Test
+    public void unknownCommand_passesRestOfJob() throws IOException {
+        CommandOptimizer optimizer = new CommandOptimizer();
+        optimize(optimizer, printTextJob(false));
+        byte[] job = concat(WoosimCmd.setLineSpace(30), WoosimCmd.setCharacterSpace(3),
+                new byte[] {0x1B, 0x7F, 0x01}, WoosimCmd.setBold(false), WoosimCmd.setBold(false));
+        assertArrayEquals(job, optimize(optimizer, job));
+        byte[] again = printTextJob(false);
+        assertEquals(again.length - 15, optimize(optimizer, again).length);
+    }
+
+    @Test
+    public void unknownCommand_passesLaterJobsUntilInit() throws IOException {
+        CommandOptimizer optimizer = new CommandOptimizer();
+        optimize(optimizer, printTextJob(false));
+        byte[] unknown = {0x1B, 0x7F, 0x01};
+        assertArrayEquals(unknown, optimize(optimizer, unknown));
+        assertFalse(optimizer.atCommandBoundary());
+        // Could be the data of the unknown command, so it is not parsed
+        byte[] data = concat(WoosimCmd.setBold(false), WoosimCmd.setBold(false), new byte[] {0x1B});
+        assertArrayEquals(data, optimize(optimizer, data));
+        assertFalse(optimizer.atCommandBoundary());
+        // An ESC split from its @ by the end of a job still ends the unknown bytes
+        byte[] init = concat(new byte[] {'@'}, WoosimCmd.setBold(false), TEXT);
+        assertArrayEquals(concat(new byte[] {'@'}, TEXT), optimize(optimizer, init));
+        assertTrue(optimizer.atCommandBoundary());
+    }
+
+    @Test
+    public void jobSplitInsideImageData_isNotAtACommandBoundary() throws IOException {
+        CommandOptimizer optimizer = new CommandOptimizer();
+        byte[] job = concat(new byte[] {0x1B, 'X', '4', 2, 3}, new byte[6], TEXT);
+        optimizer.optimize(job, 0, 8);
+        assertFalse(optimizer.atCommandBoundary());
+        optimizer.optimize(job, 8, job.length - 8);
+        assertTrue(optimizer.atCommandBoundary());
+        // Inside the header of a command
+        optimizer.optimize(WoosimCmd.setBold(true), 0, 2);
+        assertFalse(optimizer.atCommandBoundary());
+    }
+
+    @Test
+    public void withoutDropping_passesJobsAndFollowsBoundaries() throws IOException {
+        CommandOptimizer optimizer = new CommandOptimizer(false);
+        byte[] job = printTextJob(false);
+        assertSame(job, optimizer.optimize(job, 0, job.length));
+        assertEquals(job.length, optimizer.getLength());
+        assertSame(job, optimizer.optimize(job, 0, job.length));
+        assertEquals(job.length, optimizer.getLength());
+        byte[] image = concat(new byte[] {0x1B, 'X', '4', 2, 3}, new byte[6]);
+        optimizer.optimize(image, 0, 8);
+        assertFalse(optimizer.atCommandBoundary());
+        optimizer.optimize(image, 8, image.length - 8);
+        assertTrue(optimizer.atCommandBoundary());
+    }
+
+    @Test
+    public void pieces_endAtCommandBoundaries() throws IOException {
+        CommandOptimizer optimizer = new CommandOptimizer(false, 16);
+        byte[] image = concat(new byte[] {0x1B, 'X', '4', 2, 3}, new byte[6]);
+        byte[] job = concat(image, TEXT, image, new byte[] {0x1B, 'X', '4', 4, 5}, new byte[20]);
+        optimizer.optimize(job, 0, job.length);
+        assertEquals(5, optimizer.getPieceCount());
+        // Text may be cut between its characters, images only after their data, unless an
+        // image does not fit into a piece by itself
+        int[] ends = {16, 25, 36, 52, job.length};
+        boolean[] boundaries = {true, true, true, false, true};
+        for (int i = 0; i < ends.length; i++) {
+            assertEquals(ends[i], optimizer.getPieceEnd(i));
+            assertEquals(boundaries[i], optimizer.pieceEndsAtBoundary(i));
+        }
+        // Short jobs stay whole
+        optimizer.optimize(TEXT, 0, TEXT.length);
+        assertEquals(1, optimizer.getPieceCount());
+        assertEquals(TEXT.length, optimizer.getPieceEnd(0));
+    }
+
+    // printText of BTPrint MainActivity before the encoder, with the default size and alignment
+    private static byte[] printTextJob(boolean bold) throws IOException {
+        return concat(WoosimCmd.initPrinter(), WoosimCmd.setTextStyle(bold, false, false, 1, 1),
+                WoosimCmd.setTextAlign(WoosimCmd.ALIGN_LEFT), TEXT, WoosimCmd.printLineFeed(2));
+    }
+
+    private static byte[] optimize(CommandOptimizer optimizer, byte[] job) {
+        byte[] out = optimizer.optimize(job, 0, job.length);
+        return Arrays.copyOf(out, optimizer.getLength());
+    }
+
+    private static byte[] concat(byte[]... parts) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            out.write(part);
+        }
+        return out.toByteArray();
+    }
+
+    // Same coding as the standard mode raster of WoosimImage, literals only
+    private static int rleEncode(byte[] src, byte[] dst, int pos) {
+        for (int i = 0; i < src.length; i += 62) {
+            int count = Math.min(62, src.length - i);
+            dst[pos++] = (byte) (0x80 + count);
+            System.arraycopy(src, i, dst, pos, count);
+            pos += count;
+        }
+        return pos;
+    }
+}
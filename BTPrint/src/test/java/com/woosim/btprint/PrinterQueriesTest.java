@@ -0,0 +1,228 @@
+package com.woosim.btprint;
+
+import com.woosim.printer.WoosimCmd;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Matching of replies to queries and timeouts of {@link PrinterQueries}.
+ */
+public class PrinterQueriesTest {
+    private static final byte[] MODEL = {'W', 'S', 'P', '-', 'R', '2', '4', '0', 0};
+    private static final byte[] VERSION = {'V', '2', '.', '1', 0};
+
+    private CompletableFuture<Void> mWriteResult = CompletableFuture.completedFuture(null);
+    private int mWrites;
+
+    @Test
+    public void parallelQueries_getTheirOwnReplies() throws Exception {
+        PrinterQueries queries = new PrinterQueries(this::write);
+        CompletableFuture<PrinterStatus> status = queries.query(PrinterQueries.status());
+        CompletableFuture<String> model = queries.query(PrinterQueries.modelName());
+        CompletableFuture<String> version = queries.query(PrinterQueries.deviceVersion());
+        assertEquals(3, mWrites);
+
+        // A status byte is a read of its own; the text replies and the start of a card read in one
+        assertEquals(1, queries.onReceived(new byte[] {0x31}, 1));
+        byte[] received = concat(MODEL, VERSION, new byte[] {0x02, 'C'});
+        assertEquals(received.length - 2, queries.onReceived(received, received.length));
+        assertTrue(status.get().isPaperOut());
+        assertEquals("WSP-R240", model.get());
+        assertEquals("V2.1", version.get());
+        assertEquals(0, queries.getPendingCount());
+    }
+
+    @Test
+    public void reply_mayBeSplitAcrossReads() throws Exception {
+        PrinterQueries queries = new PrinterQueries(this::write);
+        CompletableFuture<String> model = queries.query(PrinterQueries.modelName());
+        assertEquals(4, queries.onReceived(MODEL, 4));
+        assertFalse(model.isDone());
+        byte[] rest = concat(new byte[] {'R', '2', '4', '0', 0}, new byte[] {0x1B, 'M', '1'});
+        assertEquals(5, queries.onReceived(rest, rest.length));
+        assertEquals("WSP-R240", model.get());
+    }
+
+    @Test
+    public void otherData_isLeftForTheParser() {
+        PrinterQueries queries = new PrinterQueries(this::write);
+        // No query is waiting
+        assertEquals(0, queries.onReceived(new byte[] {0x30}, 1));
+        queries.query(PrinterQueries.status());
+        assertEquals(0, queries.onReceived(new byte[] {0x02, 0x31, 0x03}, 3));
+        assertEquals(0, queries.onReceived(new byte[] {0x06}, 1));
+        assertEquals(1, queries.getPendingCount());
+    }
+
+    @Test
+    public void onlyTheOldestQuery_isOffered() throws Exception {
+        PrinterQueries queries = new PrinterQueries(this::write);
+        CompletableFuture<String> model = queries.query(PrinterQueries.modelName());
+        CompletableFuture<PrinterStatus> status = queries.query(PrinterQueries.status());
+        // Not a reply to the model query, so not to the status query behind it either
+        assertEquals(0, queries.onReceived(new byte[] {0x06}, 1));
+        assertFalse(status.isDone());
+        assertEquals(MODEL.length, queries.onReceived(MODEL, MODEL.length));
+        assertEquals(1, queries.onReceived(new byte[] {0x30}, 1));
+        assertEquals("WSP-R240", model.get());
+        assertFalse(status.get().isError());
+    }
+
+    @Test
+    public void statusByte_followedByOtherData_isNotAReply() {
+        PrinterQueries queries = new PrinterQueries(this::write);
+        CompletableFuture<PrinterStatus> status = queries.query(PrinterQueries.status());
+        assertEquals(0, queries.onReceived(new byte[] {0x31, 0x32}, 2));
+        assertFalse(status.isDone());
+    }
+
+    @Test
+    public void msrFrame_isNotTakenForReplies() throws Exception {
+        PrinterQueries queries = new PrinterQueries(this::write);
+        CompletableFuture<PrinterStatus> status = queries.query(PrinterQueries.status());
+        CompletableFuture<String> model = queries.query(PrinterQueries.modelName());
+        // Track data arriving a digit at a time looks like status bytes
+        assertEquals(0, queries.onReceived(new byte[] {0x02, ';'}, 2));
+        assertEquals(0, queries.onReceived(new byte[] {'1'}, 1));
+        assertEquals(0, queries.onReceived(new byte[] {'2', '3', '?', 0x03}, 4));
+        assertEquals(1, queries.onReceived(new byte[] {0x30}, 1));
+        assertFalse(status.get().isError());
+
+        // The printable end of an MSR reply split across reads is not model text
+        assertEquals(0, queries.onReceived(new byte[] {0x1B}, 1));
+        assertEquals(0, queries.onReceived(new byte[] {'M', '1'}, 2));
+        assertFalse(model.isDone());
+        assertEquals(MODEL.length, queries.onReceived(MODEL, MODEL.length));
+        assertEquals("WSP-R240", model.get());
+    }
+
+    @Test
+    public void lostReply_timesOut() throws Exception {
+        PrinterQueries queries = new PrinterQueries(this::write);
+        CompletableFuture<PrinterStatus> lost = queries.query(PrinterQueries.status(), 50);
+        try {
+            lost.get(1, TimeUnit.SECONDS);
+            fail("no timeout");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof TimeoutException);
+        }
+        assertEquals(0, queries.getPendingCount());
+        assertEquals(1, queries.getTimeoutCount());
+
+        // A late reply to the lost query is not taken for the reply of the next one
+        CompletableFuture<PrinterStatus> next = queries.query(PrinterQueries.status());
+        assertEquals(1, queries.onReceived(new byte[] {0x31}, 1));
+        assertFalse(next.isDone());
+        assertEquals(1, queries.onReceived(new byte[] {0x32}, 1));
+        assertTrue(next.get().isCoverOpen());
+        assertFalse(next.get().isPaperOut());
+    }
+
+    @Test
+    public void lostReply_isNotWaitedForAfterAnotherTimeout() throws Exception {
+        PrinterQueries queries = new PrinterQueries(this::write);
+        CompletableFuture<PrinterStatus> lost = queries.query(PrinterQueries.status(), 50);
+        try {
+            lost.get(1, TimeUnit.SECONDS);
+            fail("no timeout");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof TimeoutException);
+        }
+        Thread.sleep(300);
+        CompletableFuture<PrinterStatus> next = queries.query(PrinterQueries.status());
+        assertEquals(1, queries.onReceived(new byte[] {0x32}, 1));
+        assertTrue(next.get().isCoverOpen());
+    }
+
+    @Test
+    public void lostReply_isSkippedForOtherReplies() throws Exception {
+        PrinterQueries queries = new PrinterQueries(this::write);
+        CompletableFuture<PrinterStatus> lost = queries.query(PrinterQueries.status(), 50);
+        try {
+            lost.get(1, TimeUnit.SECONDS);
+            fail("no timeout");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof TimeoutException);
+        }
+        // Model text is no status reply, so the status reply is taken as lost
+        CompletableFuture<String> model = queries.query(PrinterQueries.modelName());
+        assertEquals(MODEL.length, queries.onReceived(MODEL, MODEL.length));
+        assertEquals("WSP-R240", model.get());
+    }
+
+    @Test
+    public void queries_areWrittenInTheOrderTheyWait() throws Exception {
+        List<Integer> written = Collections.synchronizedList(new ArrayList<>());
+        PrinterQueries queries = new PrinterQueries((data, offset, length) -> {
+            written.add(length);
+            return CompletableFuture.completedFuture(null);
+        });
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            boolean status = i % 2 == 0;
+            threads[i] = new Thread(() -> {
+                for (int j = 0; j < 200; j++) {
+                    if (status)
+                        queries.query(PrinterQueries.status());
+                    else
+                        queries.query(PrinterQueries.modelName());
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join(5000);
+        }
+        // Each reply completes the query it answers, so every one of them is taken
+        byte[] status = {0x30};
+        int statusLength = WoosimCmd.queryStatus().length;
+        for (int length : written) {
+            byte[] reply = length == statusLength ? status : MODEL;
+            assertEquals(reply.length, queries.onReceived(reply, reply.length));
+        }
+        assertEquals(0, queries.getPendingCount());
+    }
+
+    @Test
+    public void failedWrite_andClosedConnection_failTheQueries() {
+        PrinterQueries queries = new PrinterQueries(this::write);
+        CompletableFuture<String> pending = queries.query(PrinterQueries.modelName());
+        mWriteResult = new CompletableFuture<>();
+        mWriteResult.completeExceptionally(new IOException("not connected"));
+        assertTrue(queries.query(PrinterQueries.status()).isCompletedExceptionally());
+        assertEquals(1, queries.getPendingCount());
+        queries.cancelAll();
+        assertTrue(pending.isCompletedExceptionally());
+        assertEquals(0, queries.getPendingCount());
+    }
+
+    private CompletableFuture<Void> write(byte[] data, int offset, int length) {
+        mWrites++;
+        return mWriteResult;
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        int length = 0;
+        for (byte[] part : parts) {
+            length += part.length;
+        }
+        byte[] data = new byte[length];
+        int offset = 0;
+        for (byte[] part : parts) {
+            System.arraycopy(part, 0, data, offset, part.length);
+            offset += part.length;
+        }
+        return data;
+    }
+}
@@ -0,0 +1,134 @@
+package com.woosim.btprint;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Change notification and adaptive polling of {@link PrinterStatusMonitor}.
+ */
+public class PrinterStatusMonitorTest {
+    private final BlockingQueue<byte[]> mQueries = new LinkedBlockingQueue<>();
+    private final List<PrinterStatus> mChanges = new CopyOnWriteArrayList<>();
+    private volatile CompletableFuture<Void> mWriteResult = CompletableFuture.completedFuture(null);
+    private PrinterQueries mPrinterQueries;
+
+    @Test
+    public void listeners_areOnlyToldAboutChanges() throws Exception {
+        PrinterStatusMonitor monitor = newMonitor(60_000, 60_000);
+        monitor.start();
+        assertNotNull(mQueries.poll(1, TimeUnit.SECONDS));
+        assertTrue(reply(0x30));
+        awaitChanges(1);
+        assertFalse(mChanges.get(0).isError());
+
+        monitor.requestNow();
+        assertNotNull(mQueries.poll(1, TimeUnit.SECONDS));
+        assertTrue(reply(0x30));
+
+        monitor.requestNow();
+        assertNotNull(mQueries.poll(1, TimeUnit.SECONDS));
+        assertTrue(reply(0x31));
+        // The same status again was not passed on
+        awaitChanges(2);
+        assertTrue(mChanges.get(1).isPaperOut());
+        assertSame(mChanges.get(1), monitor.getStatus());
+
+        monitor.stop();
+        assertNull(mChanges.get(2));
+        assertNull(monitor.getStatus());
+    }
+
+    @Test
+    public void polling_isFasterWhileAJobIsSent() throws Exception {
+        PrinterStatusMonitor monitor = newMonitor(60_000, 20);
+        monitor.start();
+        assertNotNull(mQueries.poll(1, TimeUnit.SECONDS));
+        assertTrue(reply(0x30));
+        assertNull(mQueries.poll(100, TimeUnit.MILLISECONDS));
+
+        CompletableFuture<Void> job = new CompletableFuture<>();
+        monitor.track(job);
+        for (int i = 0; i < 3; i++) {
+            assertNotNull(mQueries.poll(1, TimeUnit.SECONDS));
+            assertTrue(reply(0x30));
+        }
+        job.complete(null);
+        // At most the poll that was already scheduled follows
+        if (mQueries.poll(100, TimeUnit.MILLISECONDS) != null)
+            reply(0x30);
+        mQueries.clear();
+        assertNull(mQueries.poll(100, TimeUnit.MILLISECONDS));
+        monitor.stop();
+    }
+
+    @Test
+    public void failedQuery_stopsPolling() throws Exception {
+        mWriteResult = new CompletableFuture<>();
+        mWriteResult.completeExceptionally(new IOException("not connected"));
+        PrinterStatusMonitor monitor = newMonitor(60_000, 20);
+        monitor.start();
+        monitor.track(new CompletableFuture<>());
+        assertNotNull(mQueries.poll(1, TimeUnit.SECONDS));
+        assertNull(mQueries.poll(100, TimeUnit.MILLISECONDS));
+        assertFalse(reply(0x30));
+    }
+
+    @Test
+    public void unansweredQuery_isNotRepeated() throws Exception {
+        PrinterStatusMonitor monitor = newMonitor(60_000, 20);
+        monitor.start();
+        monitor.track(new CompletableFuture<>());
+        assertNotNull(mQueries.poll(1, TimeUnit.SECONDS));
+        // The polls while the query waits for its reply send nothing
+        assertNull(mQueries.poll(200, TimeUnit.MILLISECONDS));
+        assertTrue(reply(0x30));
+        assertNotNull(mQueries.poll(1, TimeUnit.SECONDS));
+        monitor.stop();
+    }
+
+    @Test
+    public void status_isDecodedFromTheByte() {
+        assertFalse(PrinterStatus.of((byte) 0x30).isError());
+        PrinterStatus both = PrinterStatus.of((byte) 0x33);
+        assertTrue(both.isPaperOut());
+        assertTrue(both.isCoverOpen());
+        assertEquals(both, PrinterStatus.of((byte) 0x33));
+        assertTrue(PrinterStatus.of((byte) 0x70).isHighTemperature());
+        // Unknown bits are no error
+        assertFalse(PrinterStatus.of((byte) 0x3C).isError());
+        assertFalse(PrinterStatus.of((byte) 0xB0).isError());
+    }
+
+    private PrinterStatusMonitor newMonitor(long idleIntervalMs, long busyIntervalMs) {
+        mPrinterQueries = new PrinterQueries((data, offset, length) -> {
+            byte[] query = new byte[length];
+            System.arraycopy(data, offset, query, 0, length);
+            mQueries.add(query);
+            return mWriteResult;
+        });
+        PrinterStatusMonitor monitor = new PrinterStatusMonitor(mPrinterQueries, idleIntervalMs, busyIntervalMs);
+        monitor.addListener(mChanges::add);
+        return monitor;
+    }
+
+    // The listeners may be called on the timer thread if the reply comes quickly
+    private void awaitChanges(int count) throws InterruptedException {
+        for (int i = 0; i < 100 && mChanges.size() < count; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(count, mChanges.size());
+    }
+
+    private boolean reply(int status) {
+        return mPrinterQueries.onReceived(new byte[] {(byte) status}, 1) == 1;
+    }
+}
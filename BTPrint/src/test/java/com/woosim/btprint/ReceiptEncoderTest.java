@@ -0,0 +1,111 @@
+package com.woosim.btprint;
+
+import com.woosim.printer.WoosimBarcode;
+import com.woosim.printer.WoosimCmd;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.Assert.*;
+
+/**
+ * Output and buffer reuse of {@link ReceiptEncoder}. Its speed against WoosimCmd arrays is
+ * measured by ReceiptEncoderBenchmark on a device.
+ */
+public class ReceiptEncoderTest {
+    private static final byte[] BARCODE = {0x30,0x31,0x32,0x33,0x34,0x35,0x36,0x37,0x38,0x39,0x30};
+    private static final byte[] BARCODE8 = {0x30,0x31,0x32,0x33,0x34,0x35,0x36,0x37};
+    private static final byte[] BARCODE_UPCE = {0x30,0x36,0x35,0x31,0x30,0x30,0x30,0x30,0x34,0x33,0x32,0x37};
+    private static final int[] TYPES = {
+            WoosimBarcode.UPC_A, WoosimBarcode.UPC_E, WoosimBarcode.EAN13, WoosimBarcode.EAN8,
+            WoosimBarcode.CODE39, WoosimBarcode.ITF, WoosimBarcode.CODEBAR, WoosimBarcode.CODE93,
+            WoosimBarcode.CODE128
+    };
+    private static final byte[][] DATA = {
+            BARCODE, BARCODE_UPCE, BARCODE_UPCE, BARCODE8, BARCODE, BARCODE, BARCODE, BARCODE, BARCODE
+    };
+    private static final String[] TITLES = {
+            "UPC-A Barcode\r\n", "UPC-E Barcode\r\n", "EAN13 Barcode\r\n", "EAN8 Barcode\r\n",
+            "CODE39 Barcode\r\n", "ITF Barcode\r\n", "CODEBAR Barcode\r\n", "CODE93 Barcode\r\n",
+            "CODE128 Barcode\r\n"
+    };
+
+    @Test
+    public void encoder_matchesWoosimCmd() throws IOException {
+        ReceiptEncoder encoder = ReceiptEncoder.obtain();
+        assertArrayEquals(legacyJob(), encodeJob(encoder).toByteArray());
+        encoder.recycle();
+
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        expected.write(WoosimCmd.setTextStyle(true, true, false, 9, 0));
+        expected.write(WoosimCmd.setCodeTable(WoosimCmd.MCU_ARM, WoosimCmd.CT_ISO8859_15, WoosimCmd.FONT_SMALL));
+        expected.write(WoosimCmd.setCodeTable(WoosimCmd.MCU_RX, WoosimCmd.CT_WIN1252, 7));
+        expected.write(WoosimCmd.setPageMode());
+        expected.write(WoosimCmd.PM_setArea(0, 0, 832, 70000));
+        expected.write(WoosimCmd.PM_setPosition(-1, 300));
+        expected.write("caf\u00e9 \uD83D\uDE00".getBytes("US-ASCII"));
+        expected.write(WoosimBarcode.create2DBarcodeQRCode(0, (byte) 0x4D, 3, "http://www.woosim.com/".getBytes()));
+        expected.write(WoosimCmd.PM_printStdMode());
+        expected.write(WoosimCmd.feedToMark());
+        encoder = ReceiptEncoder.obtain()
+                .setTextStyle(true, true, false, 9, 0)
+                .setCodeTable(WoosimCmd.MCU_ARM, WoosimCmd.CT_ISO8859_15, WoosimCmd.FONT_SMALL)
+                .setCodeTable(WoosimCmd.MCU_RX, WoosimCmd.CT_WIN1252, 7)
+                .setPageMode()
+                .PM_setArea(0, 0, 832, 70000)
+                .PM_setPosition(-1, 300)
+                .text("caf\u00e9 \uD83D\uDE00")
+                .qrCode(0, (byte) 0x4D, 3, "http://www.woosim.com/".getBytes())
+                .PM_printStdMode()
+                .feedToMark();
+        assertArrayEquals(expected.toByteArray(), encoder.toByteArray());
+        encoder.recycle();
+    }
+
+    @Test
+    public void encoder_growsAndIsReused() {
+        ReceiptEncoder encoder = ReceiptEncoder.obtain();
+        byte[] block = new byte[300];
+        for (int i = 0; i < 10; i++) {
+            encoder.bytes(block);
+        }
+        assertEquals(3000, encoder.size());
+        byte[][] sent = new byte[1][];
+        encoder.send((data, offset, length) -> {
+            sent[0] = data;
+            return CompletableFuture.completedFuture(null);
+        });
+        ReceiptEncoder reused = ReceiptEncoder.obtain();
+        assertSame(encoder, reused);
+        assertEquals(0, reused.size());
+        reused.bytes(block);
+        assertEquals(300, reused.size());
+        // The grown buffer was sent in place and is kept for the next job
+        assertTrue(sent[0].length >= 3000);
+        reused.recycle();
+    }
+
+    // print1DBarcode before the encoder
+    private static byte[] legacyJob() throws IOException {
+        final byte[] cmdPrint = WoosimCmd.printData();
+        ByteArrayOutputStream byteStream = new ByteArrayOutputStream(512);
+        byteStream.write(WoosimCmd.initPrinter());
+        for (int i = 0; i < TYPES.length; i++) {
+            byteStream.write(TITLES[i].getBytes());
+            byteStream.write(WoosimBarcode.createBarcode(TYPES[i], 2, 60, true, DATA[i]));
+            byteStream.write(cmdPrint);
+        }
+        return byteStream.toByteArray();
+    }
+
+    private static ReceiptEncoder encodeJob(ReceiptEncoder encoder) {
+        encoder.initPrinter();
+        for (int i = 0; i < TYPES.length; i++) {
+            encoder.text(TITLES[i]).barcode(TYPES[i], 2, 60, true, DATA[i]).printData();
+        }
+        return encoder;
+    }
+}
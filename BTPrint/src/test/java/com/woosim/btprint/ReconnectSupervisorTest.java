@@ -0,0 +1,63 @@
+package com.woosim.btprint;
+
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Backoff, jitter and giving up of {@link ReconnectSupervisor}.
+ */
+public class ReconnectSupervisorTest {
+    private final Semaphore mAttempts = new Semaphore(0);
+
+    @Test
+    public void delay_doublesWithJitterUpToTheMaximum() {
+        ReconnectSupervisor supervisor = new ReconnectSupervisor(mAttempts::release, 500, 8000, 8, new Random(1));
+        for (int attempt = 0; attempt < 40; attempt++) {
+            long backoff = Math.min(8000, 500L << Math.min(attempt, 30));
+            for (int i = 0; i < 20; i++) {
+                long delay = supervisor.delayMs(attempt);
+                assertTrue(delay + " at attempt " + attempt, delay > backoff / 2 && delay <= backoff);
+            }
+        }
+    }
+
+    @Test
+    public void attempts_runUntilTheSupervisorGivesUp() throws Exception {
+        ReconnectSupervisor supervisor = new ReconnectSupervisor(mAttempts::release, 1, 4, 3);
+        for (int i = 1; i <= 3; i++) {
+            assertTrue(supervisor.retry());
+            assertTrue(mAttempts.tryAcquire(1, TimeUnit.SECONDS));
+            assertEquals(i, supervisor.getAttempts());
+        }
+        assertFalse(supervisor.retry());
+        assertEquals(0, supervisor.getAttempts());
+        // The next loss starts over
+        assertTrue(supervisor.retry());
+        assertTrue(mAttempts.tryAcquire(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void connected_resetsTheBackoff() throws Exception {
+        ReconnectSupervisor supervisor = new ReconnectSupervisor(mAttempts::release, 1, 4, 2);
+        assertTrue(supervisor.retry());
+        assertTrue(supervisor.retry());
+        supervisor.connected();
+        assertEquals(0, supervisor.getAttempts());
+        assertTrue(supervisor.retry());
+        assertTrue(mAttempts.tryAcquire(3, 1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void cancel_dropsTheScheduledAttempt() throws Exception {
+        ReconnectSupervisor supervisor = new ReconnectSupervisor(mAttempts::release, 200, 200, 2);
+        assertTrue(supervisor.retry());
+        supervisor.cancel();
+        assertFalse(mAttempts.tryAcquire(400, TimeUnit.MILLISECONDS));
+        assertEquals(0, supervisor.getAttempts());
+    }
+}
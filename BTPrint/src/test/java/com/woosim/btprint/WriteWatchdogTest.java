@@ -0,0 +1,74 @@
+package com.woosim.btprint;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Aborting stalled writes with {@link WriteWatchdog}.
+ */
+public class WriteWatchdogTest {
+
+    // Like the stream of a printer that stopped reading: a write blocks until the stream is closed
+    private static class StalledStream extends OutputStream {
+        final CountDownLatch closed = new CountDownLatch(1);
+
+        @Override
+        public void write(int b) throws IOException {
+            try {
+                closed.await();
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            throw new IOException("socket closed");
+        }
+
+        @Override
+        public void close() {
+            closed.countDown();
+        }
+    }
+
+    @Test
+    public void stalledWrite_isAbortedWithATimeout() {
+        WriteWatchdog watchdog = new WriteWatchdog();
+        StalledStream stream = new StalledStream();
+        watchdog.arm(stream, "write timed out", 50);
+        try {
+            stream.write(0x1B);
+            fail("the write was not aborted");
+        } catch (IOException e) {
+            assertEquals("socket closed", e.getMessage());
+        }
+        WriteTimeoutException timeout = watchdog.disarm();
+        assertNotNull(timeout);
+        assertEquals(50, timeout.getTimeoutMs());
+        assertEquals("write timed out after 50 ms", timeout.getMessage());
+    }
+
+    @Test
+    public void writeInTime_leavesTheStreamOpen() throws Exception {
+        WriteWatchdog watchdog = new WriteWatchdog();
+        StalledStream stream = new StalledStream();
+        watchdog.arm(stream, "write timed out", 50);
+        assertNull(watchdog.disarm());
+        assertFalse(stream.closed.await(150, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void rearming_cancelsThePreviousDeadline() throws Exception {
+        WriteWatchdog watchdog = new WriteWatchdog();
+        StalledStream first = new StalledStream();
+        StalledStream second = new StalledStream();
+        watchdog.arm(first, "write timed out", 50);
+        watchdog.arm(second, "job timed out", 1000);
+        assertFalse(first.closed.await(150, TimeUnit.MILLISECONDS));
+        assertNull(watchdog.disarm());
+        assertFalse(second.closed.await(10, TimeUnit.MILLISECONDS));
+    }
+}
@@ -0,0 +1,75 @@
+package com.woosim.sample;
+
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import com.woosim.printer.WoosimCmd;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+/**
+ * Time to build the multi-language job of MainActivity with the cached charset encoders of
+ * {@link ReceiptEncoder}, against String.getBytes into a ByteBuffer, which MultiLanguage did
+ * before. Results are logged with the tag CodeTableTextBenchmark.
+ */
+@RunWith(AndroidJUnit4.class)
+public class CodeTableTextBenchmark {
+    private static final String TAG = "CodeTableTextBenchmark";
+    private static final String GREEK = "ABCDEFGHIJKLMNOPQRSTUVWXYZ!#$%&*()<>ΑΒΓΔΕΖΗΘΛΠΣΦΨΩ\n";
+    private static final String RUSSIAN = "ABCDEFGHIJKLMNOPQRSTUVWXYZ!#$%&*()<>ЂЉГДЕЖЗИЙКЛПЦШЩЫЮЯ\n";
+    private static final String HEBREW = "ABCDEFGHIJKLMNOPQRSTUVWXYZ!#$%&*()<>€£§©®†אבגהזטמףצקשת\n";
+    private static final int JOBS = 20000;
+    private static final int ROUNDS = 5;
+
+    private static long sSink;
+
+    @Test
+    public void encoderAgainstGetBytes() throws Exception {
+        long bytes = Long.MAX_VALUE;
+        long encoder = Long.MAX_VALUE;
+        for (int i = 0; i < ROUNDS; i++) {
+            long start = System.nanoTime();
+            for (int n = 0; n < JOBS; n++) {
+                ByteBuffer buffer = ByteBuffer.allocate(512);
+                buffer.put(WoosimCmd.initPrinter());
+                buffer.put(WoosimCmd.setCodeTable(WoosimCmd.MCU_RX, WoosimCmd.CT_WIN1253, WoosimCmd.FONT_LARGE));
+                buffer.put(GREEK.getBytes("windows-1253"));
+                buffer.put(WoosimCmd.setCodeTable(WoosimCmd.MCU_RX, WoosimCmd.CT_WIN1251, WoosimCmd.FONT_LARGE));
+                buffer.put(RUSSIAN.getBytes("windows-1251"));
+                buffer.put(WoosimCmd.setCodeTable(WoosimCmd.MCU_RX, WoosimCmd.CT_WIN1255, WoosimCmd.FONT_LARGE));
+                buffer.put(HEBREW.getBytes("windows-1255"));
+                buffer.put(WoosimCmd.printLineFeed(2));
+                byte[] job = new byte[buffer.position()];
+                buffer.position(0);
+                buffer.get(job);
+                sSink += job[job.length - 1];
+            }
+            bytes = Math.min(bytes, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            for (int n = 0; n < JOBS; n++) {
+                ReceiptEncoder job = ReceiptEncoder.obtain()
+                        .initPrinter()
+                        .setCodeTable(WoosimCmd.MCU_RX, WoosimCmd.CT_WIN1253, WoosimCmd.FONT_LARGE)
+                        .text(GREEK, WoosimCmd.CT_WIN1253)
+                        .setCodeTable(WoosimCmd.MCU_RX, WoosimCmd.CT_WIN1251, WoosimCmd.FONT_LARGE)
+                        .text(RUSSIAN, WoosimCmd.CT_WIN1251)
+                        .setCodeTable(WoosimCmd.MCU_RX, WoosimCmd.CT_WIN1255, WoosimCmd.FONT_LARGE)
+                        .text(HEBREW, WoosimCmd.CT_WIN1255)
+                        .printLineFeed(2);
+                sSink += job.size();
+                job.recycle();
+            }
+            encoder = Math.min(encoder, System.nanoTime() - start);
+        }
+        Log.i(TAG, String.format("getBytes %.0f ns/job, encoder %.0f ns/job",
+                (double) bytes / JOBS, (double) encoder / JOBS));
+        assertTrue(sSink != 0);
+    }
+}
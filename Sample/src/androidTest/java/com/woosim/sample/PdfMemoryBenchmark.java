@@ -0,0 +1,163 @@
+package com.woosim.sample;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.pdf.PdfDocument;
+import android.graphics.pdf.PdfRenderer;
+import android.os.Debug;
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import com.woosim.printer.WoosimImage;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.Assert.*;
+
+/**
+ * Peak heap per page of the PDF print modes, for every paper width.
+ * Java and native heap are sampled while a generated letter size document is printed
+ * to a writer that drops the data. Results are logged with the tag PdfMemoryBenchmark.
+ */
+@RunWith(AndroidJUnit4.class)
+public class PdfMemoryBenchmark {
+    private static final String TAG = "PdfMemoryBenchmark";
+    private static final int PAGES = 5;
+    private static final int[] WIDTHS = {
+            PdfPrintPipeline.WIDTH_2INCH, PdfPrintPipeline.WIDTH_3INCH, PdfPrintPipeline.WIDTH_4INCH
+    };
+    private static final BandedRaster.BandWriter DROP = data -> CompletableFuture.completedFuture(null);
+
+    private static File sDocument;
+
+    private interface PrintMode {
+        void print(PdfRenderer renderer, int width) throws IOException;
+    }
+
+    @BeforeClass
+    public static void createDocument() throws IOException {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        sDocument = new File(context.getCacheDir(), "benchmark.pdf");
+        PdfDocument document = new PdfDocument();
+        Paint paint = new Paint();
+        paint.setTextSize(14);
+        for (int i = 0; i < PAGES; i++) {
+            PdfDocument.Page page = document.startPage(new PdfDocument.PageInfo.Builder(612, 792, i).create());
+            Canvas canvas = page.getCanvas();
+            for (int y = 40; y < 760; y += 20) {
+                canvas.drawText("Page " + (i + 1) + " line " + y + " 0123456789 ABCDEFGHIJ", 36, y, paint);
+            }
+            canvas.drawRect(36, 700, 576, 760, paint);
+            document.finishPage(page);
+        }
+        try (FileOutputStream out = new FileOutputStream(sDocument)) {
+            document.writeTo(out);
+        }
+        document.close();
+    }
+
+    @AfterClass
+    public static void deleteDocument() {
+        sDocument.delete();
+    }
+
+    @Test
+    public void peakHeapPerPage() throws Exception {
+        for (int width : WIDTHS) {
+            long fullPage = measure("full page", width, PdfMemoryBenchmark::printFullPage);
+            long pipeline = measure("pipeline", width, (renderer, w) -> {
+                PdfPrintPipeline p = new PdfPrintPipeline(w, BandedRaster.DEFAULT_BAND_HEIGHT, DROP);
+                try {
+                    p.print(renderer);
+                } finally {
+                    p.release();
+                }
+            });
+            long lowMemory = measure("low memory", width, (renderer, w) -> {
+                PdfPrintPipeline p = PdfPrintPipeline.lowMemory(w, DROP);
+                try {
+                    p.print(renderer);
+                } finally {
+                    p.release();
+                }
+            });
+            assertTrue("pipeline uses more memory than full pages at " + width, pipeline < fullPage);
+            assertTrue("low memory mode saves less than 4x at " + width, lowMemory * 4 <= fullPage);
+        }
+    }
+
+    // What printPFD did before: one full-height ARGB_8888 bitmap per page
+    private static void printFullPage(PdfRenderer renderer, int width) {
+        for (int i = 0; i < renderer.getPageCount(); i++) {
+            PdfRenderer.Page page = renderer.openPage(i);
+            Bitmap bmp = Bitmap.createBitmap(width, page.getHeight() * width / page.getWidth(), Bitmap.Config.ARGB_8888);
+            page.render(bmp, null, null, PdfRenderer.Page.RENDER_MODE_FOR_PRINT);
+            DROP.write(WoosimImage.printStdModeBitmap(bmp));
+            bmp.recycle();
+            page.close();
+        }
+    }
+
+    // Peak of Java plus native heap above the level before printing, per page
+    private static long measure(String name, int width, PrintMode mode) throws Exception {
+        ParcelFileDescriptor pfd = ParcelFileDescriptor.open(sDocument, ParcelFileDescriptor.MODE_READ_ONLY);
+        PdfRenderer renderer = new PdfRenderer(pfd);
+        Runtime.getRuntime().gc();
+        long base = heapUsed();
+        HeapSampler sampler = new HeapSampler();
+        sampler.start();
+        long start = System.nanoTime();
+        try {
+            mode.print(renderer, width);
+        } finally {
+            sampler.finish();
+            renderer.close();
+            pfd.close();
+        }
+        long elapsed = (System.nanoTime() - start) / 1000000;
+        long peak = Math.max(0, sampler.mPeak - base);
+        Log.i(TAG, String.format("%-10s %d dots: peak %d KB per page, %d ms per page",
+                name, width, peak / 1024, elapsed / PAGES));
+        return peak;
+    }
+
+    private static long heapUsed() {
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory() + Debug.getNativeHeapAllocatedSize();
+    }
+
+    private static class HeapSampler extends Thread {
+        private volatile boolean mRunning = true;
+        private volatile long mPeak;
+
+        public void run() {
+            while (mRunning) {
+                mPeak = Math.max(mPeak, heapUsed());
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        void finish() throws InterruptedException {
+            mRunning = false;
+            join();
+            mPeak = Math.max(mPeak, heapUsed());
+        }
+    }
+}
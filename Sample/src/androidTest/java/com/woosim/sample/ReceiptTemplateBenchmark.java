@@ -0,0 +1,120 @@
+package com.woosim.sample;
+
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import com.woosim.printer.WoosimBarcode;
+import com.woosim.printer.WoosimCmd;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.Assert.*;
+
+/**
+ * Shipping labels from a {@link ReceiptTemplate} against encoding every command of the label
+ * again, which is what printLabel did before. Labels are appended to one encoder per batch
+ * the way a batch job would send them. The throughput of both is logged with the tag
+ * ReceiptTemplateBenchmark.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ReceiptTemplateBenchmark {
+    private static final String TAG = "ReceiptTemplateBenchmark";
+    private static final int LABELS = 100000;
+    private static final int BATCH = 50;
+    private static final int ROUNDS = 5;
+    private static final String[] ADDRESSES = {
+            "        #60, Sandan-ro 388beon-gil\n        Galsan-myeon, Hongseong-gun\n",
+            "        1 Main Street\n        Springfield\n",
+    };
+    private static final CompletableFuture<Void> SENT = CompletableFuture.completedFuture(null);
+
+    private static long sSink;
+
+    @Test
+    public void templateAgainstEncoding() {
+        ReceiptTemplate template = createTemplate();
+        long encoded = Long.MAX_VALUE;
+        long filled = Long.MAX_VALUE;
+        for (int i = 0; i < ROUNDS; i++) {
+            long start = System.nanoTime();
+            for (int n = 0; n < LABELS; n += BATCH) {
+                ReceiptEncoder batch = ReceiptEncoder.obtain();
+                for (int j = 0; j < BATCH; j++) {
+                    encode(batch, ADDRESSES[j & 1], "http://www.woosim.com/", "Quantity: " + j, "134 35490 7564");
+                }
+                batch.send(ReceiptTemplateBenchmark::drop);
+            }
+            encoded = Math.min(encoded, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            for (int n = 0; n < LABELS; n += BATCH) {
+                ReceiptEncoder batch = ReceiptEncoder.obtain();
+                for (int j = 0; j < BATCH; j++) {
+                    template.fill(batch, ADDRESSES[j & 1], "http://www.woosim.com/", "Quantity: " + j, "134 35490 7564");
+                }
+                batch.send(ReceiptTemplateBenchmark::drop);
+            }
+            filled = Math.min(filled, System.nanoTime() - start);
+        }
+        Log.i(TAG, String.format("encoded %.0f ns/label, template %.0f ns/label (%d labels/min)",
+                (double) encoded / LABELS, (double) filled / LABELS, 60000000000L * LABELS / filled));
+        assertTrue(sSink != 0);
+    }
+
+    private static ReceiptTemplate createTemplate() {
+        ReceiptTemplate.Builder label = new ReceiptTemplate.Builder();
+        label.commands()
+                .setCodeTable(WoosimCmd.MCU_RX, WoosimCmd.CT_CP437, WoosimCmd.FONT_LARGE)
+                .setTextStyle(true, false, false, 1, 1)
+                .text("SHIP TO:\n")
+                .setCodeTable(WoosimCmd.MCU_RX, WoosimCmd.CT_CP437, WoosimCmd.FONT_MEDIUM)
+                .setTextStyle(false, false, false, 1, 1);
+        label.textSlot();
+        label.commands()
+                .setPageMode()
+                .PM_setArea(0, 0, 384, 300)
+                .PM_setPosition(0, 7);
+        label.qrCodeSlot(0, (byte) 0x4D, 3);
+        label.commands()
+                .setTextStyle(true, false, false, 1, 1)
+                .PM_setPosition(100, 55);
+        label.textSlot();
+        label.commands().PM_setPosition(20, 160);
+        label.barcodeSlot(WoosimBarcode.CODE128, 2, 100, false);
+        label.commands()
+                .PM_printStdMode()
+                .feedToMark();
+        return label.build();
+    }
+
+    private static ReceiptEncoder encode(ReceiptEncoder encoder, String address, String url, String quantity,
+                                         String tracking) {
+        return encoder
+                .setCodeTable(WoosimCmd.MCU_RX, WoosimCmd.CT_CP437, WoosimCmd.FONT_LARGE)
+                .setTextStyle(true, false, false, 1, 1)
+                .text("SHIP TO:\n")
+                .setCodeTable(WoosimCmd.MCU_RX, WoosimCmd.CT_CP437, WoosimCmd.FONT_MEDIUM)
+                .setTextStyle(false, false, false, 1, 1)
+                .text(address)
+                .setPageMode()
+                .PM_setArea(0, 0, 384, 300)
+                .PM_setPosition(0, 7)
+                .qrCode(0, (byte) 0x4D, 3, url.getBytes())
+                .setTextStyle(true, false, false, 1, 1)
+                .PM_setPosition(100, 55)
+                .text(quantity)
+                .PM_setPosition(20, 160)
+                .barcode(WoosimBarcode.CODE128, 2, 100, false, tracking.getBytes())
+                .PM_printStdMode()
+                .feedToMark();
+    }
+
+    private static CompletableFuture<Void> drop(byte[] data, int offset, int length) {
+        sSink += data[offset + length - 1];
+        return SENT;
+    }
+}
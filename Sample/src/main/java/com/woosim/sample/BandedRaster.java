@@ -0,0 +1,184 @@
+package com.woosim.sample;
+
+import android.graphics.Bitmap;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Standard mode raster printing in fixed-height bands, the streaming counterpart of
+ * WoosimImage.printStdModeBitmap. Each band is converted, compressed and handed to the
+ * print service as soon as it is ready, so the printer starts while the rest of the image
+ * is still being converted and memory only depends on the band size.
+ */
+class BandedRaster {
+    static final int DEFAULT_BAND_HEIGHT = 64;
+    // One ESC X '3' block holds at most 255 lines
+    private static final int MAX_BAND_HEIGHT = 255;
+    // Bands handed to the print service but not yet sent, before conversion waits
+    private static final int MAX_PENDING_BANDS = 4;
+    private static final int MAX_RUN = 62;
+    private static final byte ESC = 0x1B;
+
+    /**
+     * Destination of the converted bands, e.g. BluetoothPrintService::write.
+     */
+    interface BandWriter {
+        CompletableFuture<Void> write(byte[] data);
+    }
+
+    private final int mBandHeight;
+    private final ArrayDeque<CompletableFuture<Void>> mPending = new ArrayDeque<>();
+    private int[] mRow = new int[0];
+    // 1 bit per pixel raster of one band and the compressed block built from it
+    private byte[] mRaster = new byte[0];
+    private byte[] mBlock = new byte[0];
+
+    /**
+     * @param bandHeight  Lines converted at once, up to 255
+     */
+    BandedRaster(int bandHeight) {
+        if (bandHeight < 1 || bandHeight > MAX_BAND_HEIGHT) {
+            throw new IllegalArgumentException("band height must be 1 to " + MAX_BAND_HEIGHT);
+        }
+        mBandHeight = bandHeight;
+    }
+
+    /**
+     * Print a bitmap at its own size. Dark pixels are printed, transparent ones are not.
+     */
+    void printBitmap(Bitmap bmp, BandWriter writer) throws IOException {
+        int height = bmp.getHeight();
+        for (int top = 0; top < height; top += mBandHeight) {
+            send(writer, encodeBand(bmp, top, Math.min(mBandHeight, height - top)));
+        }
+    }
+
+    /**
+     * Print the first lines of a band bitmap rendered by the caller.
+     */
+    void printBand(Bitmap band, int lines, BandWriter writer) throws IOException {
+        send(writer, encodeBand(band, 0, lines));
+    }
+
+    int getBandHeight() {
+        return mBandHeight;
+    }
+
+    /**
+     * Wait until every band handed out has been sent.
+     */
+    void flush() throws IOException {
+        while (!mPending.isEmpty()) {
+            await(mPending.poll());
+        }
+    }
+
+    private void send(BandWriter writer, byte[] block) throws IOException {
+        // Keep the conversion only a few bands ahead of the printer
+        if (mPending.size() >= MAX_PENDING_BANDS) {
+            await(mPending.poll());
+        }
+        mPending.add(writer.write(block));
+    }
+
+    private void await(CompletableFuture<Void> future) throws IOException {
+        try {
+            future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted", e);
+        } catch (ExecutionException e) {
+            mPending.clear();
+            throw new IOException("band was not sent", e.getCause());
+        }
+    }
+
+    // ESC X '3' header, compressed lines and ESC X '2' to print them
+    private byte[] encodeBand(Bitmap bmp, int top, int lines) {
+        int width = bmp.getWidth();
+        int widthBytes = (width + 7) / 8;
+        int rasterSize = widthBytes * lines;
+        if (mRow.length < width) {
+            mRow = new int[width];
+        }
+        if (mRaster.length < rasterSize) {
+            mRaster = new byte[rasterSize];
+            // Worst case of the compression is one header per 62 bytes
+            mBlock = new byte[rasterSize + rasterSize / MAX_RUN + 10];
+        }
+        for (int y = 0; y < lines; y++) {
+            bmp.getPixels(mRow, 0, width, 0, top + y, width, 1);
+            thresholdRow(mRow, width, mRaster, y * widthBytes);
+        }
+
+        int pos = 0;
+        mBlock[pos++] = ESC;
+        mBlock[pos++] = 'X';
+        mBlock[pos++] = '3';
+        mBlock[pos++] = (byte) widthBytes;
+        mBlock[pos++] = (byte) lines;
+        pos = compress(mRaster, rasterSize, mBlock, pos);
+        mBlock[pos++] = ESC;
+        mBlock[pos++] = 'X';
+        mBlock[pos++] = '2';
+        mBlock[pos++] = (byte) lines;
+        byte[] block = new byte[pos];
+        System.arraycopy(mBlock, 0, block, 0, pos);
+        return block;
+    }
+
+    // Same black and white decision as printStdModeBitmap
+    static void thresholdRow(int[] row, int width, byte[] out, int offset) {
+        for (int i = offset; i < offset + (width + 7) / 8; i++) {
+            out[i] = 0;
+        }
+        for (int x = 0; x < width; x++) {
+            int pixel = row[x];
+            int sum = ((pixel >> 16) & 0xFF) + ((pixel >> 8) & 0xFF) + (pixel & 0xFF);
+            if (sum < 702 && pixel != 0) {
+                out[offset + (x >> 3)] |= (byte) (0x80 >> (x & 7));
+            }
+        }
+    }
+
+    /**
+     * Run-length coding of the raster: 0xC0 + n followed by a byte repeats it n times,
+     * 0x80 + n is followed by n literal bytes, with n up to 62.
+     * @return Position after the compressed data
+     */
+    static int compress(byte[] src, int length, byte[] dst, int pos) {
+        int literal = 0;
+        int i = 0;
+        while (i < length) {
+            byte value = src[i];
+            int run = 1;
+            while (i + run < length && run < MAX_RUN && src[i + run] == value) {
+                run++;
+            }
+            if (run >= 3) {
+                pos = putLiterals(src, literal, i, dst, pos);
+                dst[pos++] = (byte) (0xC0 + run);
+                dst[pos++] = value;
+                i += run;
+                literal = i;
+            } else {
+                i += run;
+            }
+        }
+        return putLiterals(src, literal, length, dst, pos);
+    }
+
+    private static int putLiterals(byte[] src, int from, int to, byte[] dst, int pos) {
+        while (from < to) {
+            int count = Math.min(MAX_RUN, to - from);
+            dst[pos++] = (byte) (0x80 + count);
+            System.arraycopy(src, from, dst, pos, count);
+            pos += count;
+            from += count;
+        }
+        return pos;
+    }
+}
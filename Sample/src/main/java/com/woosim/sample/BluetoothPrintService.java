@@ -9,17 +9,35 @@ import android.util.Log;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.Arrays;
 import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
-class BluetoothPrintService {
+class BluetoothPrintService implements PrinterConnection {
     private static final String TAG = "BluetoothPrintService";
     private static final UUID SPP_UUID = UUID.fromString("00001101-0000-1000-8000-00805F9B34FB");
 
+    // Outgoing data is handed to the writer thread in chunks of this size
+    private static final int WRITE_CHUNK_SIZE = 4096;
+    // Number of chunks that can wait for the writer thread before write() applies backpressure
+    private static final int WRITE_QUEUE_CAPACITY = 64;
+    // How long write() waits for room in a full send queue before the write is failed
+    private static final long WRITE_QUEUE_TIMEOUT_MS = 3000;
+    // Size of the ring holding received bytes until the receive thread handles them
+    private static final int RECEIVE_BUFFER_SIZE = 4096;
+
     private final Handler mHandler;
+    private final String mKey;
     private int mState;
     private ConnectThread mConnectThread;
     private ConnectedThread mConnectedThread;
+    // Address and name of the connected printer
+    private String mPrinterId;
+    private boolean mOptimizeCommands;
+    private volatile ReceiveListener mReceiveListener;
 
     // Constants that indicate the current connection state
     static final int STATE_NONE = 0;               // we're doing nothing
@@ -30,10 +48,12 @@ class BluetoothPrintService {
     /**
      * Constructor. Prepares a new Bluetooth session.
      * @param handler  A Handler to send messages back to the UI Activity
+     * @param key      Key of the printer in PrinterConnectionManager
      */
-    BluetoothPrintService(Handler handler) {
+    BluetoothPrintService(Handler handler, String key) {
         mState = STATE_NONE;
         mHandler = handler;
+        mKey = key;
     }
 
     private synchronized void setState(int state) {
@@ -44,6 +64,37 @@ class BluetoothPrintService {
         return mState;
     }
 
+    /**
+     * @param listener  Gets the bytes received from the printer, off the main thread; without
+     *                  one they are dropped
+     */
+    void setReceiveListener(ReceiveListener listener) {
+        mReceiveListener = listener;
+    }
+
+    /**
+     * Drop the commands that would not change the printer state, see CommandOptimizer, from
+     * the next connection on. Off by default, so the bytes are sent as they are written.
+     */
+    synchronized void setCommandOptimization(boolean enabled) {
+        mOptimizeCommands = enabled;
+    }
+
+    @Override
+    public String getKey() {
+        return mKey;
+    }
+
+    @Override
+    public synchronized boolean isConnected() {
+        return mState == STATE_CONNECTED;
+    }
+
+    @Override
+    public synchronized String getPrinterId() {
+        return mPrinterId;
+    }
+
     public synchronized void start() {
         // Cancel any thread attempting to make a connection
         if (mConnectThread != null) {
@@ -70,6 +121,11 @@ class BluetoothPrintService {
         setState(STATE_NONE);
     }
 
+    @Override
+    public void close() {
+        stop();
+    }
+
     /**
      * Start the ConnectThread to initiate a connection to a remote device.
      * @param device  The BluetoothDevice to connect
@@ -96,9 +152,9 @@ class BluetoothPrintService {
     /**
      * Start the ConnectedThread to begin managing a Bluetooth connection
      * @param socket  The BluetoothSocket on which the connection was made
-     * @param deviceName  The name of the BluetoothDevice that has been connected
+     * @param device  The BluetoothDevice that has been connected
      */
-    private synchronized void connected(BluetoothSocket socket, String deviceName) {
+    private synchronized void connected(BluetoothSocket socket, BluetoothDevice device) {
         // Cancel the thread that completed the connection
         if (mConnectThread != null) {
             mConnectThread.cancel();
@@ -112,29 +168,50 @@ class BluetoothPrintService {
         // Start the thread to manage the connection and perform transmissions
         mConnectedThread = new ConnectedThread(socket);
         mConnectedThread.start();
+        String deviceName = device.getName();
+        mPrinterId = device.getAddress() + "/" + deviceName;
         // Send the name of the connected device back to the UI Activity
         mHandler.obtainMessage(MainActivity.MESSAGE_DEVICE_NAME, deviceName).sendToTarget();
         setState(STATE_CONNECTED);
     }
 
     /**
-     * Write to the ConnectedThread in an un-synchronized manner
+     * Queue bytes for the writer thread of the current connection. The call returns as soon as
+     * the bytes are queued; it only blocks while the send queue is full.
+     * The array must not be modified until the returned future is completed.
      * @param out The bytes to write
-     * @see ConnectedThread#write(byte[])
+     * @return A future completed when all bytes are written to the socket
+     * @see ConnectedThread#write(byte[], int, int)
+     */
+    @Override
+    public CompletableFuture<Void> write(byte[] out) {
+        return write(out, 0, out.length);
+    }
+
+    /**
+     * Queue length bytes of out starting at offset, e.g. the filled part of a reused buffer.
+     * @see #write(byte[])
      */
-    void write(byte[] out) {
+    @Override
+    public CompletableFuture<Void> write(byte[] out, int offset, int length) {
         // Create temporary object
         ConnectedThread r;
         // Synchronize a copy of the ConnectedThread
         synchronized (this) {
             if (mState != STATE_CONNECTED) {
                 mHandler.obtainMessage(MainActivity.MESSAGE_TOAST, R.string.not_connected, 0).sendToTarget();
-                return;
+                return failedWrite(new IOException("not connected"));
             }
             r = mConnectedThread;
         }
-        // Perform the write un-synchronized
-        r.write(out);
+        // Queue the write un-synchronized
+        return r.write(out, offset, length);
+    }
+
+    private static CompletableFuture<Void> failedWrite(Throwable cause) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        future.completeExceptionally(cause);
+        return future;
     }
 
     private void connectionFailed() {
@@ -200,7 +277,7 @@ class BluetoothPrintService {
                 mConnectThread = null;
             }
             // Start the connected thread
-            connected(mmSocket, mmDevice.getName());
+            connected(mmSocket, mmDevice);
         }
 
         void cancel() {
@@ -220,6 +297,10 @@ class BluetoothPrintService {
         private final BluetoothSocket mmSocket;
         private final InputStream mmInStream;
         private final OutputStream mmOutStream;
+        private final WriterThread mmWriter;
+        private final ReceiveBuffer mmReceived = new ReceiveBuffer(RECEIVE_BUFFER_SIZE);
+        private final ReceiveThread mmReceiver = new ReceiveThread(mmReceived);
+        private volatile boolean mmCanceled;
 
         ConnectedThread(BluetoothSocket socket) {
             mmSocket = socket;
@@ -234,43 +315,45 @@ class BluetoothPrintService {
             }
             mmInStream = tmpIn;
             mmOutStream = tmpOut;
+            mmWriter = new WriterThread(tmpOut, mOptimizeCommands);
         }
 
         public void run() {
             Log.i(TAG, "BEGIN mConnectedThread");
-            byte[] buffer = new byte[1024];
-            int bytes;
-
+            mmWriter.start();
+            mmReceiver.start();
             // Keep listening to the InputStream while connected
             while (true) {
                 try {
-                    // Read from the InputStream
-                    bytes = mmInStream.read(buffer);
-                    // buffer can be over-written by next input stream data, so it should be copied
-                    byte[] rcvData = Arrays.copyOf(buffer, bytes);
-                    // Send the obtained bytes to the UI Activity
-                    mHandler.obtainMessage(MainActivity.MESSAGE_READ, bytes, -1, rcvData).sendToTarget();
+                    // Read from the InputStream straight into the receive ring
+                    if (mmReceived.fill(mmInStream) < 0)
+                        throw new IOException("end of stream");
                 } catch (IOException e) {
-                    Log.e(TAG, "Connection Lost", e);
-                    connectionLost();
+                    mmReceived.close();
+                    // A connection closed by the service is not lost
+                    if (!mmCanceled) {
+                        Log.e(TAG, "Connection Lost", e);
+                        connectionLost();
+                    }
                     break;
                 }
             }
         }
 
         /**
-         * Write to the connected OutStream.
+         * Hand the bytes to the writer thread of this connection.
          * @param buffer  The bytes to write
+         * @param offset  Start of the bytes in buffer
+         * @param length  Number of bytes to write
          */
-        void write(byte[] buffer) {
-            try {
-                mmOutStream.write(buffer);
-            } catch (IOException e) {
-                Log.e(TAG, "Exception during write", e);
-            }
+        CompletableFuture<Void> write(byte[] buffer, int offset, int length) {
+            return mmWriter.enqueue(buffer, offset, length);
         }
 
         void cancel() {
+            mmCanceled = true;
+            mmWriter.cancel();
+            mmReceived.close();
             try {
                 mmInStream.close();
                 mmOutStream.close();
@@ -280,4 +363,176 @@ class BluetoothPrintService {
             }
         }
     }
+
+    /**
+     * This thread hands received bytes to the receive listener, so replies are parsed
+     * off the main thread while the connection keeps reading.
+     */
+    private class ReceiveThread extends Thread {
+        private final ReceiveBuffer mmBuffer;
+
+        ReceiveThread(ReceiveBuffer buffer) {
+            super("BluetoothReceiver");
+            mmBuffer = buffer;
+        }
+
+        public void run() {
+            byte[] data = new byte[1024];
+            try {
+                int bytes;
+                while ((bytes = mmBuffer.drain(data)) > 0) {
+                    ReceiveListener listener = mReceiveListener;
+                    if (listener != null)
+                        listener.onReceive(data, bytes);
+                }
+            } catch (InterruptedException e) {
+                Log.w(TAG, "receive thread interrupted");
+            }
+        }
+    }
+
+    /**
+     * A slice of a queued write. Every chunk of one write shares the same future,
+     * which is completed when the last chunk has been written.
+     */
+    private static class Chunk {
+        final byte[] data;
+        final int offset;
+        final int length;
+        final boolean last;
+        final CompletableFuture<Void> done;
+
+        Chunk(byte[] data, int offset, int length, boolean last, CompletableFuture<Void> done) {
+            this.data = data;
+            this.offset = offset;
+            this.length = length;
+            this.last = last;
+            this.done = done;
+        }
+    }
+
+    /**
+     * This thread drains the send queue of a connection, so the callers of write()
+     * never block on the RFCOMM output stream.
+     */
+    private static class WriterThread extends Thread {
+        private final OutputStream mmOutStream;
+        private final BlockingQueue<Chunk> mmQueue = new LinkedBlockingQueue<>();
+        // One permit per free slot in the send queue
+        private final Semaphore mmSlots = new Semaphore(WRITE_QUEUE_CAPACITY, true);
+        // Keeps the chunks of one write contiguous when several threads write at once
+        private final Object mmEnqueueLock = new Object();
+        // Follows the printer state in send order, so it is only used under mmEnqueueLock
+        private final CommandOptimizer mmOptimizer;
+        private volatile boolean mmCanceled;
+
+        WriterThread(OutputStream out, boolean optimize) {
+            super("BluetoothWriter");
+            mmOutStream = out;
+            mmOptimizer = new CommandOptimizer(optimize);
+        }
+
+        CompletableFuture<Void> enqueue(byte[] data, int start, int size) {
+            CompletableFuture<Void> done = new CompletableFuture<>();
+            if (size == 0) {
+                done.complete(null);
+                return done;
+            }
+            synchronized (mmEnqueueLock) {
+                // Drop the commands that would not change the printer state
+                byte[] out = mmOptimizer.optimize(data, start, size);
+                int outStart = out == data ? start : 0;
+                int outSize = mmOptimizer.getLength();
+                if (outSize < size)
+                    Log.d(TAG, "job of " + size + " bytes, " + (size - outSize) + " saved");
+                if (outSize == 0) {
+                    done.complete(null);
+                    return done;
+                }
+                int chunks = (outSize + WRITE_CHUNK_SIZE - 1) / WRITE_CHUNK_SIZE;
+                try {
+                    // Reserve room for the whole write at once, so a timeout never leaves half a job queued
+                    int reserved = Math.min(chunks, WRITE_QUEUE_CAPACITY);
+                    if (!acquireSlots(reserved)) {
+                        // The optimizer counted the job as sent
+                        mmOptimizer.invalidate();
+                        done.completeExceptionally(new IOException(mmCanceled ? "connection closed" : "send queue is full"));
+                        return done;
+                    }
+                    for (int i = 0; i < chunks; i++) {
+                        // Writes larger than the queue wait for the writer to drain; the chunks
+                        // already queued are skipped by the writer once the write has failed
+                        if (i >= reserved && !acquireSlots(1)) {
+                            mmOptimizer.invalidate();
+                            done.completeExceptionally(new IOException(mmCanceled ? "connection closed" : "send queue is full"));
+                            return done;
+                        }
+                        int offset = i * WRITE_CHUNK_SIZE;
+                        int length = Math.min(WRITE_CHUNK_SIZE, outSize - offset);
+                        mmQueue.add(new Chunk(out, outStart + offset, length, i == chunks - 1, done));
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    mmOptimizer.invalidate();
+                    done.completeExceptionally(e);
+                    return done;
+                }
+            }
+            if (mmCanceled)
+                failPending(new IOException("connection closed"));
+            return done;
+        }
+
+        // Wait for room in the queue, but not longer than the timeout or the connection
+        private boolean acquireSlots(int slots) throws InterruptedException {
+            if (!mmSlots.tryAcquire(slots, WRITE_QUEUE_TIMEOUT_MS, TimeUnit.MILLISECONDS))
+                return false;
+            if (mmCanceled) {
+                mmSlots.release(slots);
+                return false;
+            }
+            return true;
+        }
+
+        public void run() {
+            while (!mmCanceled) {
+                Chunk chunk;
+                try {
+                    chunk = mmQueue.take();
+                } catch (InterruptedException e) {
+                    break;
+                }
+                try {
+                    if (chunk.done.isDone()) continue;
+                    mmOutStream.write(chunk.data, chunk.offset, chunk.length);
+                    if (chunk.last)
+                        chunk.done.complete(null);
+                } catch (IOException e) {
+                    Log.e(TAG, "Exception during write", e);
+                    chunk.done.completeExceptionally(e);
+                    failPending(e);
+                    break;
+                } finally {
+                    mmSlots.release();
+                }
+            }
+            failPending(new IOException("connection closed"));
+        }
+
+        private void failPending(IOException cause) {
+            Chunk chunk;
+            while ((chunk = mmQueue.poll()) != null) {
+                chunk.done.completeExceptionally(cause);
+                mmSlots.release();
+            }
+        }
+
+        void cancel() {
+            mmCanceled = true;
+            interrupt();
+            failPending(new IOException("connection closed"));
+            // Wake the writes waiting for room, the queue is not drained any more
+            mmSlots.release(WRITE_QUEUE_CAPACITY);
+        }
+    }
 }
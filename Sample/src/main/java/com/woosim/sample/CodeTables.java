@@ -0,0 +1,144 @@
+package com.woosim.sample;
+
+import com.woosim.printer.WoosimCmd;
+
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.util.Arrays;
+
+/**
+ * Java charsets of the WoosimCmd.CT_* code tables of RX printers, and which of them can print
+ * a character. The answer is cached per character, so picking code tables for a text costs
+ * an array lookup per character once its script has been seen.
+ */
+final class CodeTables {
+    // Code tables without a charset in Java: CT_POLISH, CT_AZERBAIJANI, CT_CP720, CT_ARABIC_FARSI,
+    // CT_ARABIC_FORMS_B and CT_HINDI_DEVANAGARI
+    private static final int[] TABLES = {
+            WoosimCmd.CT_CP437, WoosimCmd.CT_KATAKANA, WoosimCmd.CT_CP850, WoosimCmd.CT_CP860,
+            WoosimCmd.CT_CP863, WoosimCmd.CT_CP865, WoosimCmd.CT_CP852, WoosimCmd.CT_CP857,
+            WoosimCmd.CT_CP737, WoosimCmd.CT_CP866, WoosimCmd.CT_CP862, WoosimCmd.CT_CP775,
+            WoosimCmd.CT_ISO8859_15, WoosimCmd.CT_WIN1252, WoosimCmd.CT_CP858, WoosimCmd.CT_CP855,
+            WoosimCmd.CT_WIN1251, WoosimCmd.CT_WIN1250, WoosimCmd.CT_WIN1253, WoosimCmd.CT_WIN1254,
+            WoosimCmd.CT_WIN1255, WoosimCmd.CT_WIN1258, WoosimCmd.CT_WIN1257, WoosimCmd.CT_WIN874,
+            WoosimCmd.CT_WIN1256, WoosimCmd.CT_DBCS,
+    };
+    private static final String[] CHARSETS = {
+            "IBM437", "JIS_X0201", "IBM850", "IBM860",
+            "IBM863", "IBM865", "IBM852", "IBM857",
+            "x-IBM737", "IBM866", "IBM862", "IBM775",
+            "ISO-8859-15", "windows-1252", "IBM00858", "IBM855",
+            "windows-1251", "windows-1250", "windows-1253", "windows-1254",
+            "windows-1255", "windows-1258", "windows-1257", "x-windows-874",
+            "windows-1256", "EUC-KR",
+    };
+    // Number of code tables in the masks
+    static final int COUNT = TABLES.length;
+    private static final int DBCS_INDEX = TABLES.length - 1;
+    // Set in a cached mask once it has been computed, so that 0 means not computed yet
+    private static final int COMPUTED = 1 << 31;
+
+    // Index into TABLES by code table number; CT_DBCS is 255
+    private static final byte[] sIndex = new byte[256];
+    private static final Charset[] sCharsets = new Charset[TABLES.length];
+    // Encoders only for canEncode(), used under the class lock
+    private static final CharsetEncoder[] sProbes = new CharsetEncoder[TABLES.length];
+    // Masks of the tables that can print a character, in pages of 256 characters
+    private static final int[][] sMasks = new int[256][];
+
+    static {
+        Arrays.fill(sIndex, (byte) -1);
+        for (int i = 0; i < TABLES.length; i++) {
+            // Missing charsets stay null; their tables can then print nothing
+            if (Charset.isSupported(CHARSETS[i])) {
+                sCharsets[i] = Charset.forName(CHARSETS[i]);
+                sIndex[TABLES[i]] = (byte) i;
+            }
+        }
+    }
+
+    private CodeTables() {
+    }
+
+    /**
+     * Charset of the code table, or null if Java has none for it.
+     * CT_DBCS is EUC-KR unless setDbcsCharset was called.
+     */
+    static synchronized Charset charset(int table) {
+        int index = index(table);
+        return index < 0 ? null : sCharsets[index];
+    }
+
+    /**
+     * Charset of the double byte font of the printer, e.g. GB18030 for the Chinese models.
+     */
+    static synchronized void setDbcsCharset(Charset charset) {
+        if (charset.equals(sCharsets[DBCS_INDEX]))
+            return;
+        sCharsets[DBCS_INDEX] = charset;
+        sIndex[WoosimCmd.CT_DBCS] = (byte) DBCS_INDEX;
+        sProbes[DBCS_INDEX] = null;
+        Arrays.fill(sMasks, null);
+    }
+
+    /**
+     * Bit of the code table in the masks of mask() and mask(int[]), or -1 if it has no charset.
+     */
+    static int index(int table) {
+        return table >= 0 && table < sIndex.length ? sIndex[table] : -1;
+    }
+
+    static int table(int index) {
+        return TABLES[index];
+    }
+
+    /**
+     * Mask of the code tables in the list that have a charset.
+     */
+    static int mask(int[] tables) {
+        int mask = 0;
+        for (int table : tables) {
+            int index = index(table);
+            if (index >= 0)
+                mask |= 1 << index;
+        }
+        return mask;
+    }
+
+    /**
+     * Mask of the code tables that can print the character. Surrogates are reported as
+     * printable in every table, so that a pair is never split; it prints if the table
+     * used for it can encode the pair.
+     */
+    static int mask(char c) {
+        int[] page = sMasks[c >> 8];
+        int mask = page != null ? page[c & 0xFF] : 0;
+        return mask != 0 ? mask & ~COMPUTED : computeMask(c);
+    }
+
+    private static synchronized int computeMask(char c) {
+        int[] page = sMasks[c >> 8];
+        if (page == null) {
+            page = new int[256];
+            sMasks[c >> 8] = page;
+        }
+        int mask = page[c & 0xFF];
+        if (mask == 0) {
+            if (Character.isSurrogate(c)) {
+                mask = (1 << TABLES.length) - 1;
+            } else {
+                for (int i = 0; i < TABLES.length; i++) {
+                    if (sCharsets[i] == null)
+                        continue;
+                    if (sProbes[i] == null)
+                        sProbes[i] = sCharsets[i].newEncoder();
+                    if (sProbes[i].canEncode(c))
+                        mask |= 1 << i;
+                }
+            }
+            mask |= COMPUTED;
+            page[c & 0xFF] = mask;
+        }
+        return mask & ~COMPUTED;
+    }
+}
@@ -0,0 +1,526 @@
+package com.woosim.sample;
+
+/**
+ * Peephole optimizer of the outgoing command stream of one connection. It follows the text
+ * style, alignment, code table and page mode of the printer and drops the commands that would
+ * not change them: settings that are already in effect, settings overridden before anything is
+ * printed with them, and ESC @ when the printer is still in its reset state.
+ * <p>
+ * Settings are held back until the next byte that is not a setting, so only settings directly
+ * following each other can replace one another. The data of images and barcodes is skipped
+ * by its length. Where the data of an unknown command ends is not known, so it is passed
+ * through with all that follows it, also in later jobs, up to the next ESC @. The state of the
+ * printer then counts as unknown until that ESC @.
+ * <p>
+ * Without dropping commands, jobs are only parsed and are passed through unchanged.
+ */
+class CommandOptimizer {
+    private static final byte LF = 0x0A;
+    private static final byte FF = 0x0C;
+    private static final byte CAN = 0x18;
+    private static final byte ESC = 0x1B;
+    private static final byte GS = 0x1D;
+
+    // Tracked settings, in the order held back settings are sent
+    private static final int TABLE = 0;     // ESC t
+    private static final int FONT = 1;      // ESC !
+    private static final int BOLD = 2;      // ESC E
+    private static final int UNDERLINE = 3; // ESC -
+    private static final int REVERSE = 4;   // GS B
+    private static final int SIZE = 5;      // GS !
+    private static final int ALIGN = 6;     // ESC a
+    private static final int SETTINGS = 7;
+    private static final byte[][] SETTING_COMMANDS = {
+            {ESC, 't'}, {ESC, '!'}, {ESC, 'E'}, {ESC, '-'}, {GS, 'B'}, {GS, '!'}, {ESC, 'a'}
+    };
+    private static final int UNKNOWN = -1;
+    // Values after ESC @; the code table and the font come from the memory switches of the printer
+    private static final int[] RESET_VALUES = {UNKNOWN, UNKNOWN, 0, 0, 0, 0, 0};
+
+    // Parser states
+    private static final int IDLE = 0;
+    private static final int HEADER = 1;
+    private static final int DATA = 2;
+    private static final int RLE_DATA = 3;
+    private static final int NUL_DATA = 4;
+    private static final int PASS = 5;
+
+    private static final int MAX_HEADER = 12;
+
+    // Settings in effect on the printer, UNKNOWN if not known
+    private final int[] mActual = new int[SETTINGS];
+    // Settings not changed since ESC @
+    private final boolean[] mAtReset = new boolean[SETTINGS];
+    // Settings received but not sent yet, UNKNOWN if none
+    private final int[] mWanted = new int[SETTINGS];
+    private boolean mHasWanted;
+    // A command that is not tracked changed the printer since ESC @
+    private boolean mUntracked = true;
+    private boolean mModeKnown;
+    private boolean mPageMode;
+    // Text is waiting in the line buffer of the printer
+    private boolean mLinePending = true;
+    // ESC ! may reset the print mode, so the style is sent again after it
+    private boolean mStyleSinceFont = true;
+
+    private int mState = IDLE;
+    private final byte[] mHeader = new byte[MAX_HEADER];
+    private int mHeaderLength;
+    // Bytes of the header that went out with the previous job
+    private int mHeaderSent;
+    private int mDataRemaining;
+    private int mRleRun;
+    private boolean mRleValue;
+    // The last byte passed through was ESC
+    private boolean mPassEsc;
+
+    // The job being optimized
+    private byte[] mIn;
+    private int mInOffset;
+    private int mInLength;
+    private byte[] mOut;
+    private int mOutLength;
+
+    private long mBytesIn;
+    private long mBytesSaved;
+    private final boolean mDropCommands;
+
+    CommandOptimizer() {
+        this(true);
+    }
+
+    /**
+     * @param dropCommands  false to pass every job through unchanged
+     */
+    CommandOptimizer(boolean dropCommands) {
+        mDropCommands = dropCommands;
+        for (int i = 0; i < SETTINGS; i++) {
+            mActual[i] = UNKNOWN;
+            mWanted[i] = UNKNOWN;
+        }
+    }
+
+    /**
+     * Optimize the next job of the connection. Jobs must be passed in the order they are sent.
+     * @return The array holding the optimized job: data itself, starting at offset, when the
+     *         result is the job or a prefix of it, otherwise a new array starting at 0.
+     *         Its length is returned by getLength().
+     */
+    byte[] optimize(byte[] data, int offset, int length) {
+        mIn = data;
+        mInOffset = offset;
+        mInLength = length;
+        mOut = null;
+        mOutLength = 0;
+        for (int i = offset; i < offset + length; i++) {
+            process(data[i]);
+        }
+        finishJob();
+        if (!mDropCommands)
+            mOutLength = length;
+        mBytesIn += length;
+        mBytesSaved += length - mOutLength;
+        byte[] out = mOut != null ? mOut : data;
+        mIn = null;
+        mOut = null;
+        return out;
+    }
+
+    /**
+     * Length of the last optimized job.
+     */
+    int getLength() {
+        return mOutLength;
+    }
+
+    long getBytesIn() {
+        return mBytesIn;
+    }
+
+    long getBytesSaved() {
+        return mBytesSaved;
+    }
+
+    /**
+     * Forget the state of the printer, e.g. after an optimized job could not be sent. Bytes
+     * after an unknown command are still passed through up to the next ESC @.
+     */
+    void invalidate() {
+        for (int i = 0; i < SETTINGS; i++) {
+            mActual[i] = UNKNOWN;
+            mWanted[i] = UNKNOWN;
+            mAtReset[i] = false;
+        }
+        mHasWanted = false;
+        mUntracked = true;
+        mModeKnown = false;
+        mLinePending = true;
+        mStyleSinceFont = true;
+        if (mState != PASS)
+            mState = IDLE;
+        mHeaderLength = 0;
+        mHeaderSent = 0;
+    }
+
+    private void process(byte b) {
+        switch (mState) {
+            case IDLE:
+                processIdle(b);
+                break;
+            case HEADER:
+                mHeader[mHeaderLength++] = b;
+                int length = headerLength();
+                if (length < 0 || length > MAX_HEADER) {
+                    passRest();
+                } else if (mHeaderLength == length) {
+                    mState = IDLE;
+                    command();
+                }
+                break;
+            case DATA:
+                emit(b);
+                if (--mDataRemaining == 0)
+                    mState = IDLE;
+                break;
+            case RLE_DATA:
+                emit(b);
+                processRle(b & 0xFF);
+                break;
+            case NUL_DATA:
+                emit(b);
+                if (b == 0)
+                    mState = IDLE;
+                break;
+            default:
+                emit(b);
+                processPass(b);
+                break;
+        }
+    }
+
+    // ESC @ ends the bytes of an unknown command; it has been passed through already
+    private void processPass(byte b) {
+        if (mPassEsc && b == '@') {
+            mHeader[0] = ESC;
+            mHeader[1] = b;
+            mHeaderLength = 2;
+            mHeaderSent = 2;
+            mState = IDLE;
+            initialize();
+        }
+        mPassEsc = b == ESC;
+    }
+
+    private void processIdle(byte b) {
+        if (b == ESC || b == GS) {
+            mHeader[0] = b;
+            mHeaderLength = 1;
+            mHeaderSent = 0;
+            mState = HEADER;
+            return;
+        }
+        int c = b & 0xFF;
+        if (c >= 0x20 || b == 0x09 || b == 0x0D) {
+            flushWanted();
+            emit(b);
+            mLinePending = true;
+        } else if (b == LF) {
+            flushWanted();
+            emit(b);
+            mLinePending = false;
+        } else if (b == FF) {
+            // Prints the page and returns to standard mode
+            flushWanted();
+            emit(b);
+            mLinePending = false;
+            mPageMode = false;
+        } else if (b == CAN) {
+            flushWanted();
+            emit(b);
+        } else {
+            mHeaderLength = 0;
+            mHeaderSent = 0;
+            passRest();
+            emit(b);
+            mPassEsc = false;
+        }
+    }
+
+    // Length of the command in mHeader before its data, -1 if it is not known
+    private int headerLength() {
+        if (mHeaderLength < 2)
+            return 2;
+        int cmd = mHeader[1] & 0xFF;
+        if (mHeader[0] == ESC) {
+            switch (cmd) {
+                case '@': case 'L': case 'S': case '2': case 'z': case 'y': case 'v': case 0x0C:
+                    return 2;
+                case 'E': case '-': case 'a': case 't': case '!': case 'd': case 'J': case '3': case ' ':
+                case 'T': case 'Y': case 0x00:
+                    return 3;
+                case 'P':
+                    return 4;
+                case 'p':
+                    return 5;
+                case 'O':
+                    return 6;
+                case 'Z':
+                    return 7;
+                case 'W':
+                    return 10;
+                case 'g':
+                    return 12;
+                case 'X':
+                    if (mHeaderLength < 3)
+                        return 3;
+                    if (mHeader[2] == '2')
+                        return 4;
+                    if (mHeader[2] == '3' || mHeader[2] == '4')
+                        return 5;
+                    return -1;
+                default:
+                    return -1;
+            }
+        }
+        switch (cmd) {
+            case 'B': case '!': case 'w': case 'h': case 'H': case 'Z': case 'V':
+                return 3;
+            case '1':
+                return 4;
+            case 'i':
+                return 7;
+            case 'k':
+                // Function B has a length byte, function A ends with NUL
+                if (mHeaderLength < 3)
+                    return 3;
+                return (mHeader[2] & 0xFF) >= 65 ? 4 : 3;
+            default:
+                return -1;
+        }
+    }
+
+    private void command() {
+        int setting = setting();
+        if (setting >= 0) {
+            int value = mHeader[2] & 0xFF;
+            if (mHeaderSent > 0) {
+                // Partly sent with the previous job, so it has to go out as it is
+                flushWanted();
+                emitHeader();
+                applied(setting, value);
+            } else {
+                if (setting == FONT && (mWanted[BOLD] != UNKNOWN || mWanted[UNDERLINE] != UNKNOWN
+                        || mWanted[SIZE] != UNKNOWN))
+                    flushWanted();
+                mWanted[setting] = value;
+                mHasWanted = true;
+            }
+            return;
+        }
+        if (mHeader[0] == ESC && mHeader[1] == '@') {
+            initialize();
+            return;
+        }
+
+        flushWanted();
+        emitHeader();
+        int cmd = mHeader[1] & 0xFF;
+        if (mHeader[0] == ESC) {
+            switch (cmd) {
+                case 'L':
+                    mPageMode = true;
+                    mModeKnown = true;
+                    break;
+                case 'S':
+                    mPageMode = false;
+                    mModeKnown = true;
+                    break;
+                case 'd': case 'J': case 'z': case 'y':
+                    mLinePending = false;
+                    break;
+                case '2': case '3': case ' ': case 'T': case 'W': case 'O': case 'P':
+                    mUntracked = true;
+                    break;
+                case 'Z':
+                    startData((mHeader[5] & 0xFF) | (mHeader[6] & 0xFF) << 8);
+                    mLinePending = true;
+                    break;
+                case 'X':
+                    int size = (mHeader[3] & 0xFF) * (mHeader[4] & 0xFF);
+                    if (mHeader[2] == '4') {
+                        startData(size);
+                    } else if (mHeader[2] == '3' && size > 0) {
+                        mDataRemaining = size;
+                        mRleRun = 0;
+                        mRleValue = false;
+                        mState = RLE_DATA;
+                    }
+                    break;
+                default:
+                    // Queries, drawings and the cash drawer do not change the settings
+                    break;
+            }
+        } else {
+            switch (cmd) {
+                case 'w': case 'h': case 'H':
+                    mUntracked = true;
+                    break;
+                case 'k':
+                    if (mHeaderLength == 4)
+                        startData(mHeader[3] & 0xFF);
+                    else
+                        mState = NUL_DATA;
+                    mLinePending = true;
+                    break;
+                case '1':
+                    mState = NUL_DATA;
+                    mLinePending = true;
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    private int setting() {
+        for (int i = 0; i < SETTINGS; i++) {
+            if (mHeader[0] == SETTING_COMMANDS[i][0] && mHeader[1] == SETTING_COMMANDS[i][1])
+                return i;
+        }
+        return -1;
+    }
+
+    // ESC @ cancels the held back settings, and is not needed if nothing changed since the last one
+    private void initialize() {
+        for (int i = 0; i < SETTINGS; i++) {
+            mWanted[i] = UNKNOWN;
+        }
+        mHasWanted = false;
+        boolean reset = mHeaderSent == 0 && !mUntracked && mModeKnown && !mPageMode && !mLinePending;
+        for (int i = 0; i < SETTINGS && reset; i++) {
+            reset = mAtReset[i];
+        }
+        if (!reset)
+            emitHeader();
+        for (int i = 0; i < SETTINGS; i++) {
+            mActual[i] = RESET_VALUES[i];
+            mAtReset[i] = true;
+        }
+        mUntracked = false;
+        mModeKnown = true;
+        mPageMode = false;
+        mLinePending = false;
+        mStyleSinceFont = false;
+    }
+
+    private void flushWanted() {
+        if (!mHasWanted)
+            return;
+        mHasWanted = false;
+        for (int i = 0; i < SETTINGS; i++) {
+            int value = mWanted[i];
+            if (value == UNKNOWN)
+                continue;
+            mWanted[i] = UNKNOWN;
+            if (mActual[i] == value && (i != FONT || !mStyleSinceFont))
+                continue;
+            emit(SETTING_COMMANDS[i][0]);
+            emit(SETTING_COMMANDS[i][1]);
+            emit((byte) value);
+            applied(i, value);
+        }
+    }
+
+    // Record a setting that was sent
+    private void applied(int setting, int value) {
+        mActual[setting] = value;
+        mAtReset[setting] = value == RESET_VALUES[setting];
+        if (setting == FONT) {
+            mActual[BOLD] = UNKNOWN;
+            mActual[UNDERLINE] = UNKNOWN;
+            mActual[SIZE] = UNKNOWN;
+            mAtReset[BOLD] = false;
+            mAtReset[UNDERLINE] = false;
+            mAtReset[SIZE] = false;
+            mStyleSinceFont = false;
+        } else if (setting == BOLD || setting == UNDERLINE || setting == SIZE) {
+            mStyleSinceFont = true;
+        } else if (setting == ALIGN && (mLinePending || mPageMode || !mModeKnown)) {
+            // Alignment is only taken at the start of a line in standard mode
+            mActual[ALIGN] = UNKNOWN;
+            mAtReset[ALIGN] = false;
+        }
+    }
+
+    private void startData(int length) {
+        if (length > 0) {
+            mDataRemaining = length;
+            mState = DATA;
+        }
+    }
+
+    // Run-length coded raster: 0xC0 + n and a byte repeats it, 0x80 + n and n bytes are literal
+    private void processRle(int b) {
+        if (mRleValue) {
+            mRleValue = false;
+            mDataRemaining -= mRleRun;
+            mRleRun = 0;
+        } else if (mRleRun > 0) {
+            mRleRun--;
+            mDataRemaining--;
+        } else if ((b & 0xC0) == 0xC0) {
+            mRleRun = b - 0xC0;
+            mRleValue = true;
+            return;
+        } else if ((b & 0xC0) == 0x80) {
+            mRleRun = b - 0x80;
+            return;
+        } else {
+            mState = PASS;
+            mPassEsc = b == ESC;
+            return;
+        }
+        if (mDataRemaining <= 0)
+            mState = IDLE;
+    }
+
+    // Send the collected header and what follows it as they are
+    private void passRest() {
+        flushWanted();
+        emitHeader();
+        mState = PASS;
+        mPassEsc = mHeaderLength > 0 && mHeader[mHeaderLength - 1] == ESC;
+    }
+
+    private void emitHeader() {
+        for (int i = mHeaderSent; i < mHeaderLength; i++) {
+            emit(mHeader[i]);
+        }
+        mHeaderSent = mHeaderLength;
+    }
+
+    private void finishJob() {
+        if (mState == HEADER) {
+            // The rest of the command comes with the next job
+            flushWanted();
+            emitHeader();
+        } else {
+            flushWanted();
+        }
+    }
+
+    // Output is never longer than the input read so far, so it is only copied once it differs
+    private void emit(byte b) {
+        if (!mDropCommands)
+            return;
+        if (mOut == null) {
+            if (mIn[mInOffset + mOutLength] == b) {
+                mOutLength++;
+                return;
+            }
+            mOut = new byte[mInLength];
+            System.arraycopy(mIn, mInOffset, mOut, 0, mOutLength);
+        }
+        mOut[mOutLength++] = b;
+    }
+}
@@ -0,0 +1,121 @@
+package com.woosim.sample;
+
+import android.graphics.Bitmap;
+
+import java.util.Arrays;
+
+/**
+ * Floyd-Steinberg dithering of color bitmaps to the 1 bit per pixel raster of the printer.
+ * Gives the same dots as WoosimImage.drawColorBitmap, but works on one row of int pixels at
+ * a time and carries the error in two int rows instead of creating color objects per pixel.
+ * The row buffers are kept between images, so one engine should be reused.
+ */
+class DitheringEngine {
+    private static final byte ESC = 0x1B;
+    // ESC W (page mode area) and ESC X '4' (raster image) headers of drawBitmap
+    private static final int HEADER_SIZE = 15;
+
+    private int[] mPixels = new int[0];
+    // Error added to the current and to the next row, three channels per pixel
+    // with one spare pixel on each side so the edges need no bounds checks
+    private int[] mError = new int[0];
+    private int[] mNextError = new int[0];
+
+    static int widthBytes(int width) {
+        return (width + 7) / 8;
+    }
+
+    /**
+     * Same output as WoosimImage.drawColorBitmap: the image is drawn at x, y in page mode.
+     */
+    byte[] drawBitmap(int x, int y, Bitmap bmp) {
+        int width = bmp.getWidth();
+        int height = bmp.getHeight();
+        int widthBytes = widthBytes(width);
+        byte[] out = new byte[HEADER_SIZE + widthBytes * height];
+        out[0] = ESC;
+        out[1] = 'W';
+        out[2] = (byte) x;
+        out[3] = (byte) (x >> 8);
+        out[4] = (byte) y;
+        out[5] = (byte) (y >> 8);
+        out[6] = (byte) width;
+        out[7] = (byte) (width >> 8);
+        out[8] = (byte) height;
+        out[9] = (byte) (height >> 8);
+        out[10] = ESC;
+        out[11] = 'X';
+        out[12] = '4';
+        out[13] = (byte) widthBytes;
+        out[14] = (byte) height;
+        dither(bmp, 0, height, out, HEADER_SIZE);
+        return out;
+    }
+
+    /**
+     * Dither rows [top, bottom) of the bitmap into out, widthBytes(width) bytes per row, MSB first.
+     * A set bit is a black dot. Transparent pixels are never printed. The error carries over
+     * between calls, so a bitmap can be converted in consecutive bands starting at row 0.
+     */
+    void dither(Bitmap bmp, int top, int bottom, byte[] out, int offset) {
+        int width = bmp.getWidth();
+        int widthBytes = widthBytes(width);
+        if (top == 0)
+            reset(width);
+        for (int y = top; y < bottom; y++) {
+            bmp.getPixels(mPixels, 0, width, 0, y, width, 1);
+            ditherRow(width, out, offset + (y - top) * widthBytes);
+        }
+    }
+
+    private void reset(int width) {
+        int errorSize = (width + 2) * 3;
+        if (mPixels.length < width) {
+            mPixels = new int[width];
+        }
+        if (mError.length < errorSize) {
+            mError = new int[errorSize];
+            mNextError = new int[errorSize];
+        } else {
+            Arrays.fill(mNextError, 0, errorSize, 0);
+        }
+    }
+
+    private void ditherRow(int width, byte[] out, int offset) {
+        // The error pushed down by the previous row becomes the current one
+        int[] error = mNextError;
+        int[] next = mError;
+        mError = error;
+        mNextError = next;
+        Arrays.fill(next, 0, (width + 2) * 3, 0);
+        Arrays.fill(out, offset, offset + widthBytes(width), (byte) 0);
+
+        for (int x = 0, i = 3; x < width; x++, i += 3) {
+            int pixel = mPixels[x];
+            int r = ((pixel >> 16) & 0xFF) + error[i];
+            int g = ((pixel >> 8) & 0xFF) + error[i + 1];
+            int b = (pixel & 0xFF) + error[i + 2];
+            // Nearest of black and white; a tie goes to black
+            int toBlack = Math.abs(r) + Math.abs(g) + Math.abs(b);
+            int toWhite = Math.abs(r - 255) + Math.abs(g - 255) + Math.abs(b - 255);
+            if (toWhite < toBlack) {
+                r -= 255;
+                g -= 255;
+                b -= 255;
+            } else if (pixel != 0) {
+                out[offset + (x >> 3)] |= (byte) (0x80 >> (x & 7));
+            }
+            diffuse(error, i + 3, r, g, b, 7);
+            diffuse(next, i - 3, r, g, b, 3);
+            diffuse(next, i, r, g, b, 5);
+            diffuse(next, i + 3, r, g, b, 1);
+        }
+    }
+
+    // Add weight/16 of the error, truncated toward zero like the library does
+    private static void diffuse(int[] error, int i, int r, int g, int b, int weight) {
+        error[i] += r * weight / 16;
+        error[i + 1] += g * weight / 16;
+        error[i + 2] += b * weight / 16;
+    }
+}
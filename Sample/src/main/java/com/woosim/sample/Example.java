@@ -1,6 +1,8 @@
 package com.woosim.sample;
 
 import android.Manifest;
+import android.app.ActivityManager;
+import android.app.AlertDialog;
 import android.content.Intent;
 import android.content.pm.PackageManager;
 import android.graphics.Bitmap;
@@ -13,6 +15,7 @@ import android.os.Environment;
 import android.os.ParcelFileDescriptor;
 import android.util.Log;
 import android.view.View;
+import android.widget.CheckBox;
 import android.widget.Toast;
 
 import androidx.activity.result.ActivityResultLauncher;
@@ -31,10 +34,31 @@ import java.io.IOException;
 public class Example extends AppCompatActivity {
     private static final String TAG = "Example";
 
+    // Layout of printLabel, compiled once
+    private static final ReceiptTemplate LABEL_TEMPLATE = createLabelTemplate();
+
+    // Logos stored in the NV memory of the printers and the number of the Woosim logo, 0 if it failed to load
+    private static LogoRegistry sLogos;
+    private static int sLogo;
+
+    private final DitheringEngine mDitheringEngine = new DitheringEngine();
+
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.example);
+        if (sLogos == null) {
+            sLogos = new LogoRegistry(getSharedPreferences("logos", MODE_PRIVATE));
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inScaled = false;
+            Bitmap bmp = BitmapFactory.decodeResource(getResources(), R.drawable.logo, options);
+            if (bmp != null) {
+                sLogo = sLogos.add(bmp);
+                bmp.recycle();
+            }
+        }
+        CheckBox download = findViewById(R.id.checkBoxLogoDownload);
+        download.setChecked(sLogos.isDownloadEnabled());
     }
 
     public void printLines(View v) throws IOException {
@@ -56,7 +80,7 @@ public class Example extends AppCompatActivity {
         byteStream.write(WoosimImage.drawLine(384, 120, 120, height, 4));
         byteStream.write(WoosimCmd.PM_printStdMode());
         byteStream.write(WoosimCmd.printLineFeed(4));
-        MainActivity.mPrintService.write(byteStream.toByteArray());
+        printer().write(byteStream.toByteArray());
     }
 
     public void printBoxes(View v) throws IOException {
@@ -74,7 +98,7 @@ public class Example extends AppCompatActivity {
         byteStream.write(WoosimImage.drawBox(384/2+40, 300, 384/2-60, height-320, 1));
         byteStream.write(WoosimCmd.PM_printStdMode());
         byteStream.write(WoosimCmd.printLineFeed(4));
-        MainActivity.mPrintService.write(byteStream.toByteArray());
+        printer().write(byteStream.toByteArray());
     }
 
     public void printEllipse(View v) throws IOException {
@@ -99,7 +123,7 @@ public class Example extends AppCompatActivity {
         }
         byteStream.write(WoosimCmd.PM_printStdMode());
         byteStream.write(WoosimCmd.printLineFeed(4));
-        MainActivity.mPrintService.write(byteStream.toByteArray());
+        printer().write(byteStream.toByteArray());
     }
 
     public void printDirection(View v) throws IOException {
@@ -124,80 +148,136 @@ public class Example extends AppCompatActivity {
         byteStream.write("TOP to BOTTOM".getBytes());
         byteStream.write(WoosimCmd.PM_printStdMode());
         byteStream.write(WoosimCmd.printLineFeed(4));
-        MainActivity.mPrintService.write(byteStream.toByteArray());
+        printer().write(byteStream.toByteArray());
     }
 
     public void printImageText(View v) {
-        MainActivity.mPrintService.write(WoosimCmd.initPrinter());
-        MainActivity.mPrintService.write(WoosimCmd.setPageMode());
+        PrinterConnection printer = printer();
+        printer.write(WoosimCmd.initPrinter());
+        printer.write(WoosimCmd.setPageMode());
 
-        sendImg(0, 0, R.drawable.logo, false);
-        sendImg(280, 10, R.drawable.android, true);
+        sendImg(printer, 0, 0, R.drawable.logo, false);
+        sendImg(printer, 280, 10, R.drawable.android, true);
 
-        MainActivity.mPrintService.write(WoosimCmd.PM_setArea(0, 0, 384, 150));
-        MainActivity.mPrintService.write(WoosimCmd.PM_setPosition(70, 75));
-        MainActivity.mPrintService.write(WoosimCmd.setCodeTable(WoosimCmd.MCU_RX, WoosimCmd.CT_CP437, WoosimCmd.FONT_LARGE));
-        MainActivity.mPrintService.write("Hello, Woosim!".getBytes());
-        MainActivity.mPrintService.write(WoosimCmd.PM_printStdMode());
+        printer.write(WoosimCmd.PM_setArea(0, 0, 384, 150));
+        printer.write(WoosimCmd.PM_setPosition(70, 75));
+        printer.write(WoosimCmd.setCodeTable(WoosimCmd.MCU_RX, WoosimCmd.CT_CP437, WoosimCmd.FONT_LARGE));
+        printer.write("Hello, Woosim!".getBytes());
+        printer.write(WoosimCmd.PM_printStdMode());
     }
 
-    public void printLabel(View v) throws IOException {
-        MainActivity.mPrintService.write(WoosimCmd.initPrinter());
-        sendImg(0, 0, R.drawable.logo, false);
-        MainActivity.mPrintService.write(WoosimCmd.printData());
+    public void printLabel(View v) {
+        PrinterConnection printer = printer();
+        printer.write(WoosimCmd.initPrinter());
+        String printerId = printer.getPrinterId();
+        if (printerId != null && sLogo > 0 && sLogos.isStored(printerId)) {
+            // The printer holds the logo in NV memory, so the label does not carry the raster.
+            // It is only stored once the test print of storeLogo() was confirmed
+            printer.write(WoosimImage.printStoredImage(sLogo));
+        } else {
+            sendImg(printer, 0, 0, R.drawable.logo, false);
+        }
+        printer.write(WoosimCmd.printData());
 
-        String str1 = "SHIP TO:\n";
-        String str2 = "        #60, Sandan-ro 388beon-gil\n" +
-                      "        Galsan-myeon, Hongseong-gun,\n" +
-                      "        Chungcheongnam-do, Rep. of Korea\n";
-        String str3 = "http://www.woosim.com/";
-        String str4 = "ITEM    : Printer";
-        String str5 = "Quantity: 10";
-        String str6 = "TRACKING NUMBER:";
-        String str7 = "134 35490 7564";
+        String address = "        #60, Sandan-ro 388beon-gil\n" +
+                         "        Galsan-myeon, Hongseong-gun,\n" +
+                         "        Chungcheongnam-do, Rep. of Korea\n";
+        String tracking = "134 35490 7564";
+        LABEL_TEMPLATE.fill(ReceiptEncoder.obtain(), address, "http://www.woosim.com/",
+                "ITEM    : Printer", "Quantity: 10", tracking, tracking)
+                .send(printer::write);
+    }
 
-        ByteArrayOutputStream byteStream = new ByteArrayOutputStream(512);
-        byteStream.write(WoosimCmd.setCodeTable(WoosimCmd.MCU_RX, WoosimCmd.CT_CP437, WoosimCmd.FONT_LARGE));
-        byteStream.write(WoosimCmd.setTextStyle(true, false, false, 1, 1));
-        byteStream.write(str1.getBytes());
-        byteStream.write(WoosimCmd.setCodeTable(WoosimCmd.MCU_RX, WoosimCmd.CT_CP437, WoosimCmd.FONT_MEDIUM));
-        byteStream.write(WoosimCmd.setTextStyle(false, false, false, 1, 1));
-        byteStream.write(str2.getBytes());
-        byteStream.write(WoosimCmd.setPageMode());
-        byteStream.write(WoosimCmd.PM_setArea(0, 0, 384, 300));
-        byteStream.write(WoosimImage.drawBox(2, 1, 370, 0, 4));
-        byteStream.write(WoosimCmd.PM_setPosition(0, 7));
-        byteStream.write(WoosimBarcode.create2DBarcodeQRCode(0, (byte)0x4D, 3, str3.getBytes()));
-        byteStream.write(WoosimCmd.setCodeTable(WoosimCmd.MCU_RX, WoosimCmd.CT_CP437, WoosimCmd.FONT_LARGE));
-        byteStream.write(WoosimCmd.setTextStyle(true, false, false, 1, 1));
-        byteStream.write(WoosimCmd.PM_setPosition(100, 20));
-        byteStream.write(str4.getBytes());
-        byteStream.write(WoosimCmd.PM_setPosition(100, 55));
-        byteStream.write(str5.getBytes());
-        byteStream.write(WoosimImage.drawBox(2, 90, 370, 0, 4));
-        byteStream.write(WoosimCmd.setTextStyle(false, false, false, 1, 1));
-        byteStream.write(WoosimCmd.PM_setPosition(0, 100));
-        byteStream.write(str6.getBytes());
-        byteStream.write(WoosimCmd.setCodeTable(WoosimCmd.MCU_RX, WoosimCmd.CT_CP437, WoosimCmd.FONT_MEDIUM));
-        byteStream.write(WoosimCmd.setTextStyle(false, false, false, 1, 1));
-        byteStream.write(WoosimCmd.PM_setPosition(130, 130));
-        byteStream.write(str7.getBytes());
-        byteStream.write(WoosimCmd.PM_setPosition(20, 160));
-        byteStream.write(WoosimBarcode.createBarcode(WoosimBarcode.CODE128, 2, 100, false, str7.getBytes()));
-        byteStream.write(WoosimCmd.PM_printStdMode());
-        byteStream.write(WoosimCmd.feedToMark());
-        MainActivity.mPrintService.write(byteStream.toByteArray());
+    // The download replaces all NV images of the printer, so it has to be turned on by the user
+    public void setLogoDownload(View v) {
+        sLogos.setDownloadEnabled(((CheckBox) v).isChecked());
+    }
+
+    // Download the logo, print it from NV memory and ask whether it came out right
+    public void storeLogo(View v) {
+        PrinterConnection printer = printer();
+        String printerId = printer.getPrinterId();
+        if (printerId == null || sLogo == 0) {
+            Toast.makeText(this, R.string.not_connected, Toast.LENGTH_SHORT).show();
+            return;
+        }
+        if (!sLogos.isDownloadEnabled()) {
+            Toast.makeText(this, R.string.logo_download_off, Toast.LENGTH_SHORT).show();
+            return;
+        }
+        sLogos.download(printerId, printer::write).whenComplete((result, e) -> runOnUiThread(() -> {
+            if (e != null) {
+                Log.e(TAG, "logo download failed", e);
+                Toast.makeText(this, R.string.logo_download_failed, Toast.LENGTH_SHORT).show();
+                return;
+            }
+            printer.write(WoosimCmd.initPrinter());
+            printer.write(WoosimImage.printStoredImage(sLogo));
+            printer.write(WoosimCmd.printLineFeed(3));
+            if (isFinishing())
+                return;
+            new AlertDialog.Builder(this)
+                    .setMessage(R.string.logo_confirm)
+                    .setPositiveButton(R.string.logo_printed, (dialog, which) -> sLogos.confirmStored(printerId))
+                    .setNegativeButton(R.string.logo_not_printed, (dialog, which) -> sLogos.forget(printerId))
+                    .show();
+        }));
+    }
+
+    // The printer chosen in MainActivity
+    private static PrinterConnection printer() {
+        return PrinterConnectionManager.getInstance().getActive();
     }
 
-    private void sendImg(int x, int y, int id, boolean dithering) {
+    // Shipping label with slots for the address, web page, item, quantity and tracking number
+    private static ReceiptTemplate createLabelTemplate() {
+        ReceiptTemplate.Builder label = new ReceiptTemplate.Builder();
+        label.commands()
+                .setCodeTable(WoosimCmd.MCU_RX, WoosimCmd.CT_CP437, WoosimCmd.FONT_LARGE)
+                .setTextStyle(true, false, false, 1, 1)
+                .text("SHIP TO:\n")
+                .setCodeTable(WoosimCmd.MCU_RX, WoosimCmd.CT_CP437, WoosimCmd.FONT_MEDIUM)
+                .setTextStyle(false, false, false, 1, 1);
+        label.textSlot();
+        label.commands()
+                .setPageMode()
+                .PM_setArea(0, 0, 384, 300)
+                .bytes(WoosimImage.drawBox(2, 1, 370, 0, 4))
+                .PM_setPosition(0, 7);
+        label.qrCodeSlot(0, (byte)0x4D, 3);
+        label.commands()
+                .setCodeTable(WoosimCmd.MCU_RX, WoosimCmd.CT_CP437, WoosimCmd.FONT_LARGE)
+                .setTextStyle(true, false, false, 1, 1)
+                .PM_setPosition(100, 20);
+        label.textSlot();
+        label.commands().PM_setPosition(100, 55);
+        label.textSlot();
+        label.commands()
+                .bytes(WoosimImage.drawBox(2, 90, 370, 0, 4))
+                .setTextStyle(false, false, false, 1, 1)
+                .PM_setPosition(0, 100)
+                .text("TRACKING NUMBER:")
+                .setCodeTable(WoosimCmd.MCU_RX, WoosimCmd.CT_CP437, WoosimCmd.FONT_MEDIUM)
+                .setTextStyle(false, false, false, 1, 1)
+                .PM_setPosition(130, 130);
+        label.textSlot();
+        label.commands().PM_setPosition(20, 160);
+        label.barcodeSlot(WoosimBarcode.CODE128, 2, 100, false);
+        label.commands()
+                .PM_printStdMode()
+                .feedToMark();
+        return label.build();
+    }
+
+    private void sendImg(PrinterConnection printer, int x, int y, int id, boolean dithering) {
         BitmapFactory.Options options = new BitmapFactory.Options();
         options.inScaled = false;
         Bitmap bmp = BitmapFactory.decodeResource(getResources(), id, options);
         if (bmp == null)
             return;
-        byte[] data = dithering ? WoosimImage.drawColorBitmap(x, y, bmp) : WoosimImage.drawBitmap(x, y, bmp);
+        byte[] data = dithering ? mDitheringEngine.drawBitmap(x, y, bmp) : WoosimImage.drawBitmap(x, y, bmp);
         bmp.recycle();
-        MainActivity.mPrintService.write(data);
+        printer.write(data);
     }
 
     public void printPDF(View v) {
@@ -257,26 +337,29 @@ public class Example extends AppCompatActivity {
     }
 
     private void printPFD(ParcelFileDescriptor pfd) {
+        PrinterConnection printer = printer();
         new Thread(() -> {
-            MainActivity.mPrintService.write(WoosimCmd.initPrinter());
+            printer.write(WoosimCmd.initPrinter());
+            // Original page is resized to fit 2 inch roll paper width (384 dot).
+            // It can be changed to WIDTH_3INCH and WIDTH_4INCH for 3 and 4 inch roll paper.
+            // Pages are rendered, converted and sent in bands by overlapping stages,
+            // or one small band at a time on devices short of memory.
+            ActivityManager am = (ActivityManager) getSystemService(ACTIVITY_SERVICE);
+            PdfPrintPipeline pipeline = am.isLowRamDevice()
+                    ? PdfPrintPipeline.lowMemory(PdfPrintPipeline.WIDTH_2INCH, printer::write)
+                    : new PdfPrintPipeline(PdfPrintPipeline.WIDTH_2INCH, BandedRaster.DEFAULT_BAND_HEIGHT,
+                            printer::write);
             try {
                 PdfRenderer renderer = new PdfRenderer(pfd);
-                for (int i=0 ; i < renderer.getPageCount() ; i++) {
-                    PdfRenderer.Page page = renderer.openPage(i);
-                    // Original page is resized to fit 2 inch roll paper width (384 dot).
-                    // It can be changed to 576 and 832 for 3 and 4 inch roll paper respectively.
-                    Bitmap bmp = Bitmap.createBitmap(384, page.getHeight() * 384 / page.getWidth(), Bitmap.Config.ARGB_8888);
-                    page.render(bmp, null, null, PdfRenderer.Page.RENDER_MODE_FOR_PRINT);
-                    MainActivity.mPrintService.write(WoosimImage.printStdModeBitmap(bmp));
-                    bmp.recycle();
-                    page.close();
-                }
+                pipeline.print(renderer);
                 renderer.close();
                 pfd.close();
             } catch (IOException e) {
                 e.printStackTrace();
+            } finally {
+                pipeline.release();
             }
-            MainActivity.mPrintService.write(WoosimCmd.printLineFeed(2));
+            printer.write(WoosimCmd.printLineFeed(2));
         }).start();
     }
 }
@@ -0,0 +1,205 @@
+package com.woosim.sample;
+
+import android.content.SharedPreferences;
+import android.graphics.Bitmap;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.zip.CRC32;
+
+/**
+ * Logos kept in the NV memory of the printers. The logos are downloaded to a printer once,
+ * after which a receipt only carries the few bytes of WoosimImage.printStoredImage instead of
+ * the raster. The registry remembers per printer which version of the logos it holds; a
+ * version is the checksum of all logos, so changing the artwork downloads them again.
+ * <p>
+ * The download is the ESC/POS FS q command, while printStoredImage prints with the Woosim
+ * ESC f command, and no download is documented for the ESC f images. FS q also erases every
+ * NV image of the printer. So the download is off unless setDownloadEnabled() is called for
+ * printers known to print FS q images with ESC f, and a printer only counts as holding the
+ * logos once confirmStored() is called, e.g. after a test print. Example does both on request
+ * of the user.
+ */
+class LogoRegistry {
+    private static final String TAG = "LogoRegistry";
+    private static final byte FS = 0x1C;
+    // Limits of the image size in bytes of 8 dots
+    private static final int MAX_WIDTH_BYTES = 1023;
+    private static final int MAX_HEIGHT_BYTES = 288;
+
+    // Versions of the logos by printer, also kept in the preferences if there are any
+    private final Map<String, String> mStored = new HashMap<>();
+    private final SharedPreferences mPrefs;
+    // Downloads that have not been sent yet, so that a second job does not start another one
+    private final Map<String, CompletableFuture<Void>> mDownloads = new HashMap<>();
+    // Versions of the logos by printer that were sent but are not confirmed yet
+    private final Map<String, String> mSent = new HashMap<>();
+    private boolean mDownloadEnabled;
+    // NV bit images in their column format, image n + 1 at index n
+    private final List<byte[]> mImages = new ArrayList<>();
+    private final CRC32 mChecksum = new CRC32();
+    private String mVersion;
+
+    /**
+     * @param prefs  Where the logos held by each printer are remembered across restarts, or null
+     */
+    LogoRegistry(SharedPreferences prefs) {
+        mPrefs = prefs;
+    }
+
+    /**
+     * Add a logo; dark pixels are printed, transparent ones are not.
+     * @return The number of the logo for WoosimImage.printStoredImage
+     */
+    synchronized int add(Bitmap bmp) {
+        int width = bmp.getWidth();
+        int height = bmp.getHeight();
+        int widthBytes = (width + 7) / 8;
+        byte[] raster = new byte[widthBytes * height];
+        int[] row = new int[width];
+        for (int y = 0; y < height; y++) {
+            bmp.getPixels(row, 0, width, 0, y, width, 1);
+            BandedRaster.thresholdRow(row, width, raster, y * widthBytes);
+        }
+        return add(raster, width, height);
+    }
+
+    /**
+     * Add a logo given as a raster of (width + 7) / 8 bytes per row, MSB first, set bits black.
+     * @return The number of the logo for WoosimImage.printStoredImage
+     * @throws IllegalArgumentException if the logo is too large for the NV memory
+     */
+    synchronized int add(byte[] raster, int width, int height) {
+        int widthBytes = (width + 7) / 8;
+        int heightBytes = (height + 7) / 8;
+        if (widthBytes < 1 || widthBytes > MAX_WIDTH_BYTES || heightBytes < 1 || heightBytes > MAX_HEIGHT_BYTES) {
+            throw new IllegalArgumentException("logo of " + width + "x" + height + " dots does not fit");
+        }
+        // xL xH yL yH in bytes of 8 dots, then the columns from left to right,
+        // each from top to bottom with the top dot in the MSB
+        byte[] image = new byte[4 + widthBytes * 8 * heightBytes];
+        image[0] = (byte) widthBytes;
+        image[1] = (byte) (widthBytes >> 8);
+        image[2] = (byte) heightBytes;
+        image[3] = (byte) (heightBytes >> 8);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                if ((raster[y * widthBytes + (x >> 3)] & (0x80 >> (x & 7))) != 0) {
+                    image[4 + x * heightBytes + (y >> 3)] |= (byte) (0x80 >> (y & 7));
+                }
+            }
+        }
+        mImages.add(image);
+        mChecksum.update(image, 0, image.length);
+        mVersion = Long.toHexString(mChecksum.getValue()) + "/" + mImages.size();
+        return mImages.size();
+    }
+
+    /**
+     * Allow download() to send FS q, which replaces all NV images of the printer.
+     */
+    synchronized void setDownloadEnabled(boolean enabled) {
+        mDownloadEnabled = enabled;
+    }
+
+    synchronized boolean isDownloadEnabled() {
+        return mDownloadEnabled;
+    }
+
+    /**
+     * Whether the printer holds the current version of the logos, as confirmed by confirmStored().
+     * @param printer  Identifies the printer and its model, see BluetoothPrintService.getPrinterId
+     */
+    synchronized boolean isStored(String printer) {
+        if (mVersion == null)
+            return true;
+        return mVersion.equals(storedVersion(printer));
+    }
+
+    /**
+     * Download the logos to the printer unless it already holds them or they were sent to it
+     * already. The printer is not recorded as holding them until confirmStored() is called.
+     * @return A future completed when the download is written, failed if the download is
+     *         not enabled or could not be sent
+     */
+    CompletableFuture<Void> download(String printer, ReceiptEncoder.Writer writer) {
+        ReceiptEncoder encoder;
+        String version;
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        synchronized (this) {
+            if (!mDownloadEnabled) {
+                done.completeExceptionally(new IllegalStateException("logo download not enabled"));
+                return done;
+            }
+            if (isStored(printer) || mVersion.equals(mSent.get(printer)))
+                return CompletableFuture.completedFuture(null);
+            CompletableFuture<Void> pending = mDownloads.get(printer);
+            if (pending != null)
+                return pending;
+            mDownloads.put(printer, done);
+            version = mVersion;
+            encoder = ReceiptEncoder.obtain();
+            // FS q replaces all NV images of the printer at once
+            encoder.put(FS).put((byte) 'q').put((byte) mImages.size());
+            for (byte[] image : mImages) {
+                encoder.bytes(image);
+            }
+            Log.d(TAG, "downloading " + mImages.size() + " logos, " + encoder.size() + " bytes to " + printer);
+        }
+        encoder.send(writer).whenComplete((result, e) -> {
+            synchronized (this) {
+                mDownloads.remove(printer);
+                if (e == null)
+                    mSent.put(printer, version);
+            }
+            if (e == null)
+                done.complete(null);
+            else
+                done.completeExceptionally(e);
+        });
+        return done;
+    }
+
+    /**
+     * Record that the printer holds the logos of the last download sent to it, e.g. once a
+     * test print of them came out right.
+     * @return false if no download of the current logos was sent to the printer
+     */
+    synchronized boolean confirmStored(String printer) {
+        String version = mSent.remove(printer);
+        if (version == null || !version.equals(mVersion))
+            return false;
+        stored(printer, version);
+        return true;
+    }
+
+    /**
+     * Forget what the printer holds, e.g. after its NV images were replaced by another tool.
+     */
+    synchronized void forget(String printer) {
+        mSent.remove(printer);
+        mStored.remove(printer);
+        if (mPrefs != null)
+            mPrefs.edit().remove(printer).apply();
+    }
+
+    private String storedVersion(String printer) {
+        String version = mStored.get(printer);
+        if (version == null && mPrefs != null) {
+            version = mPrefs.getString(printer, null);
+            if (version != null)
+                mStored.put(printer, version);
+        }
+        return version;
+    }
+
+    private void stored(String printer, String version) {
+        mStored.put(printer, version);
+        if (mPrefs != null)
+            mPrefs.edit().putString(printer, version).apply();
+    }
+}
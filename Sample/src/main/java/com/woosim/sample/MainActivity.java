@@ -27,13 +27,12 @@ import java.util.Map;
 public class MainActivity extends AppCompatActivity {
     public static final int MESSAGE_DEVICE_NAME = 1;
     public static final int MESSAGE_TOAST = 2;
-    public static final int MESSAGE_READ = 3;
     public static final int PERMISSION_REQUEST = 100;
 
     public static final String DEVICE_ADDRESS = "device_address";
 
     private BluetoothAdapter mBluetoothAdapter = null;
-    protected static  BluetoothPrintService mPrintService = null;
+    private final PrinterConnectionManager mPrinters = PrinterConnectionManager.getInstance();
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -108,8 +107,7 @@ public class MainActivity extends AppCompatActivity {
         super.onStart();
         // If Bluetooth is not on, request that it be enabled.
         if (mBluetoothAdapter.isEnabled()) {
-            if (mPrintService == null)
-                setupPrintService();
+            setupPrintService();
         } else {
             Intent intent = new Intent(BluetoothAdapter.ACTION_REQUEST_ENABLE);
             mBluetoothLauncher.launch(intent);
@@ -126,40 +124,24 @@ public class MainActivity extends AppCompatActivity {
     });
 
     private void setupPrintService() {
-        // Initialize the BluetoothPrintService to perform bluetooth connections
-        mPrintService = new BluetoothPrintService(mHandler);
-    }
-
-    @Override
-    public synchronized void onResume() {
-        super.onResume();
-        if (mPrintService != null) {
-            // Only if the state is STATE_NONE, do we know that we haven't started already
-            if (mPrintService.getState() == BluetoothPrintService.STATE_NONE) {
-                // Start the Bluetooth print services
-                mPrintService.start();
-            }
-        }
+        // The print services of the printers report back to this activity
+        mPrinters.setHandler(mHandler);
     }
 
     @Override
     public void onDestroy() {
-        // Stop the Bluetooth print services
-        if (mPrintService != null)
-            mPrintService.stop();
+        // Stop the print services of all printers
+        mPrinters.closeAll();
+        mPrinters.setHandler(null);
         super.onDestroy();
     }
 
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         getMenuInflater().inflate(R.menu.main, menu);
-        if (mPrintService != null && mPrintService.getState() == BluetoothPrintService.STATE_CONNECTED) {
-            menu.findItem(R.id.search).setVisible(false);
-            menu.findItem(R.id.disconnect).setVisible(true);
-        } else {
-            menu.findItem(R.id.search).setVisible(true);
-            menu.findItem(R.id.disconnect).setVisible(false);
-        }
+        // Search stays available to connect more printers next to the active one
+        menu.findItem(R.id.search).setVisible(true);
+        menu.findItem(R.id.disconnect).setVisible(mPrinters.getActive().isConnected());
         return super.onCreateOptionsMenu(menu);
     }
 
@@ -170,8 +152,8 @@ public class MainActivity extends AppCompatActivity {
             mConnectLauncher.launch(intent);
             return true;
         } else if (item.getItemId() == R.id.disconnect) {
-            if (mPrintService != null)
-                mPrintService.start();
+            // The other printers stay connected, the one connected before becomes active
+            mPrinters.close(mPrinters.getActive().getKey());
             invalidateOptionsMenu();
             return true;
         }
@@ -186,8 +168,8 @@ public class MainActivity extends AppCompatActivity {
                 String address = intent.getExtras().getString(DEVICE_ADDRESS);
                 // Get the Bluetooth device object
                 BluetoothDevice device = mBluetoothAdapter.getRemoteDevice(address);
-                // Attempt to connect to the device
-                mPrintService.connect(device);
+                // Attempt to connect to the device, next to the printers already connected
+                mPrinters.connect(device);
             }
         }
     });
@@ -7,10 +7,13 @@ import androidx.appcompat.app.AppCompatActivity;
 
 import com.woosim.printer.WoosimCmd;
 
-import java.io.UnsupportedEncodingException;
-import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 
 public class MultiLanguage extends AppCompatActivity {
+    // Code tables the mixed text may use, CP437 first for the plain ASCII parts
+    private static final int[] MIXED_TABLES = {
+            WoosimCmd.CT_CP437, WoosimCmd.CT_WIN1252, WoosimCmd.CT_WIN1253, WoosimCmd.CT_WIN1251, WoosimCmd.CT_WIN1255
+    };
 
     @Override
     public void onCreate(Bundle savedInstanceState) {
@@ -18,102 +21,100 @@ public class MultiLanguage extends AppCompatActivity {
         setContentView(R.layout.multi_language);
     }
 
-    public void printGreek(View v) throws UnsupportedEncodingException {
+    public void printGreek(View v) {
         String str1 = "Windows 1253: Greek\n";
         String str2 = "ABCDEFGHIJKLMNOPQRSTUVWXYZ!#$%&*()<>ΑΒΓΔΕΖΗΘΛΠΣΦΨΩ\n";
 
-        ByteBuffer buffer = ByteBuffer.allocate(512);
-        buffer.put(WoosimCmd.initPrinter());
-        buffer.put(WoosimCmd.setCodeTable(WoosimCmd.MCU_RX, WoosimCmd.CT_WIN1253, WoosimCmd.FONT_LARGE));
-        buffer.put(str1.getBytes());
-        buffer.put(str2.getBytes("windows-1253"));
-        buffer.put(WoosimCmd.setCodeTable(WoosimCmd.MCU_RX, WoosimCmd.CT_CP437, WoosimCmd.FONT_LARGE));
-        buffer.put(WoosimCmd.printLineFeed(2));
-        printBuffer(buffer);
+        print(ReceiptEncoder.obtain()
+                .initPrinter()
+                .setCodeTable(WoosimCmd.MCU_RX, WoosimCmd.CT_WIN1253, WoosimCmd.FONT_LARGE)
+                .text(str1)
+                .text(str2, WoosimCmd.CT_WIN1253)
+                .setCodeTable(WoosimCmd.MCU_RX, WoosimCmd.CT_CP437, WoosimCmd.FONT_LARGE)
+                .printLineFeed(2));
     }
 
     public void printLatin9(View v) {
         String str1 = "ISO-8859-15: Latin9\n";
         String str2 = "ABCDEFGHIJKLMNOPQRSTUVWXYZ!#$%&*()<>€¢£¥ŠŒ¿ÀÁÂÃÄÅÐÑÝÞßæøý\n";
 
-        ByteBuffer buffer = ByteBuffer.allocate(512);
-        buffer.put(WoosimCmd.initPrinter());
-        buffer.put(WoosimCmd.setCodeTable(WoosimCmd.MCU_RX, WoosimCmd.CT_ISO8859_15, WoosimCmd.FONT_LARGE));
-        buffer.put(str1.getBytes());
-        try {
-            buffer.put(str2.getBytes("ISO-8859-15"));
-        } catch (UnsupportedEncodingException e) {
-            e.printStackTrace();
-        }
-        buffer.put(WoosimCmd.setCodeTable(WoosimCmd.MCU_RX, WoosimCmd.CT_CP437, WoosimCmd.FONT_LARGE));
-        buffer.put(WoosimCmd.printLineFeed(2));
-        printBuffer(buffer);
+        print(ReceiptEncoder.obtain()
+                .initPrinter()
+                .setCodeTable(WoosimCmd.MCU_RX, WoosimCmd.CT_ISO8859_15, WoosimCmd.FONT_LARGE)
+                .text(str1)
+                .text(str2, WoosimCmd.CT_ISO8859_15)
+                .setCodeTable(WoosimCmd.MCU_RX, WoosimCmd.CT_CP437, WoosimCmd.FONT_LARGE)
+                .printLineFeed(2));
     }
 
     public void printRussian(View v) {
         String str1 = "Windows 1251: Russian(Cyrillic)\n";
         String str2 = "ABCDEFGHIJKLMNOPQRSTUVWXYZ!#$%&*()<>ЂЉГДЕЖЗИЙКЛПЦШЩЫЮЯ\n";
 
-        ByteBuffer buffer = ByteBuffer.allocate(512);
-        buffer.put(WoosimCmd.initPrinter());
-        buffer.put(WoosimCmd.setCodeTable(WoosimCmd.MCU_RX, WoosimCmd.CT_WIN1251, WoosimCmd.FONT_LARGE));
-        buffer.put(str1.getBytes());
-        try {
-            buffer.put(str2.getBytes("windows-1251"));
-        } catch (UnsupportedEncodingException e) {
-            e.printStackTrace();
-        }
-        buffer.put(WoosimCmd.setCodeTable(WoosimCmd.MCU_RX, WoosimCmd.CT_CP437, WoosimCmd.FONT_LARGE));
-        buffer.put(WoosimCmd.printLineFeed(2));
-        printBuffer(buffer);
+        print(ReceiptEncoder.obtain()
+                .initPrinter()
+                .setCodeTable(WoosimCmd.MCU_RX, WoosimCmd.CT_WIN1251, WoosimCmd.FONT_LARGE)
+                .text(str1)
+                .text(str2, WoosimCmd.CT_WIN1251)
+                .setCodeTable(WoosimCmd.MCU_RX, WoosimCmd.CT_CP437, WoosimCmd.FONT_LARGE)
+                .printLineFeed(2));
     }
 
-    public void printHebrew(View v) throws UnsupportedEncodingException {
+    public void printHebrew(View v) {
         String str1 = "Windows 1255: Hebrew\n";
         String str2 = "ABCDEFGHIJKLMNOPQRSTUVWXYZ!#$%&*()<>€£§©®†אבגהזטמףצקשת\n";
 
-        ByteBuffer buffer = ByteBuffer.allocate(512);
-        buffer.put(WoosimCmd.initPrinter());
-        buffer.put(WoosimCmd.setCodeTable(WoosimCmd.MCU_RX, WoosimCmd.CT_WIN1255, WoosimCmd.FONT_LARGE));
-        buffer.put(str1.getBytes());
-        buffer.put(str2.getBytes("windows-1255"));
-        buffer.put(WoosimCmd.setCodeTable(WoosimCmd.MCU_RX, WoosimCmd.CT_CP437, WoosimCmd.FONT_LARGE));
-        buffer.put(WoosimCmd.printLineFeed(2));
-        printBuffer(buffer);
+        print(ReceiptEncoder.obtain()
+                .initPrinter()
+                .setCodeTable(WoosimCmd.MCU_RX, WoosimCmd.CT_WIN1255, WoosimCmd.FONT_LARGE)
+                .text(str1)
+                .text(str2, WoosimCmd.CT_WIN1255)
+                .setCodeTable(WoosimCmd.MCU_RX, WoosimCmd.CT_CP437, WoosimCmd.FONT_LARGE)
+                .printLineFeed(2));
     }
 
-    public void printHangul(View v) throws UnsupportedEncodingException {
+    public void printHangul(View v) {
         String str1 = "EUC-KR: Korean\n";
         String str2 = "가나다라마바사아자차카타파하\n";
 
-        ByteBuffer buffer = ByteBuffer.allocate(512);
-        buffer.put(WoosimCmd.initPrinter());
-        buffer.put(WoosimCmd.setCodeTable(WoosimCmd.MCU_RX, WoosimCmd.CT_DBCS, WoosimCmd.FONT_LARGE));
-        buffer.put(str1.getBytes());
-        buffer.put(str2.getBytes("EUC-KR"));
-        buffer.put(WoosimCmd.setCodeTable(WoosimCmd.MCU_RX, WoosimCmd.CT_CP437, WoosimCmd.FONT_LARGE));
-        buffer.put(WoosimCmd.printLineFeed(2));
-        printBuffer(buffer);
+        CodeTables.setDbcsCharset(Charset.forName("EUC-KR"));
+        print(ReceiptEncoder.obtain()
+                .initPrinter()
+                .setCodeTable(WoosimCmd.MCU_RX, WoosimCmd.CT_DBCS, WoosimCmd.FONT_LARGE)
+                .text(str1)
+                .text(str2, WoosimCmd.CT_DBCS)
+                .setCodeTable(WoosimCmd.MCU_RX, WoosimCmd.CT_CP437, WoosimCmd.FONT_LARGE)
+                .printLineFeed(2));
     }
 
-    public void printChinese(View v) throws UnsupportedEncodingException {
+    public void printChinese(View v) {
         String str1 = "GB18030: Chinese\n";
         String str2 = "您好，见到您很高兴。\n";
 
-        ByteBuffer buffer = ByteBuffer.allocate(512);
-        buffer.put(WoosimCmd.initPrinter());
-        buffer.put(WoosimCmd.setCodeTable(WoosimCmd.MCU_RX, WoosimCmd.CT_DBCS, WoosimCmd.FONT_LARGE));
-        buffer.put(str1.getBytes());
-        buffer.put(str2.getBytes("GB18030"));
-        buffer.put(WoosimCmd.setCodeTable(WoosimCmd.MCU_RX, WoosimCmd.CT_CP437, WoosimCmd.FONT_LARGE));
-        buffer.put(WoosimCmd.printLineFeed(2));
-        printBuffer(buffer);
+        CodeTables.setDbcsCharset(Charset.forName("GB18030"));
+        print(ReceiptEncoder.obtain()
+                .initPrinter()
+                .setCodeTable(WoosimCmd.MCU_RX, WoosimCmd.CT_DBCS, WoosimCmd.FONT_LARGE)
+                .text(str1)
+                .text(str2, WoosimCmd.CT_DBCS)
+                .setCodeTable(WoosimCmd.MCU_RX, WoosimCmd.CT_CP437, WoosimCmd.FONT_LARGE)
+                .printLineFeed(2));
     }
 
-    private void printBuffer(ByteBuffer buffer) {
-        byte[] byteArray = new byte[buffer.position()];
-        buffer.position(0);
-        buffer.get(byteArray);
-        MainActivity.mPrintService.write(byteArray);
+    public void printMixed(View v) {
+        String str1 = "Code tables picked per run\n";
+        String str2 = "Café Ωμέγα Привет שלום 10€\n";
+
+        print(ReceiptEncoder.obtain()
+                .initPrinter()
+                .setCodeTable(WoosimCmd.MCU_RX, WoosimCmd.CT_CP437, WoosimCmd.FONT_LARGE)
+                .text(str1)
+                .text(str2, MIXED_TABLES)
+                .setCodeTable(WoosimCmd.MCU_RX, WoosimCmd.CT_CP437, WoosimCmd.FONT_LARGE)
+                .printLineFeed(2));
+    }
+
+    private void print(ReceiptEncoder encoder) {
+        encoder.send(PrinterConnectionManager.getInstance().getActive()::write);
     }
 }
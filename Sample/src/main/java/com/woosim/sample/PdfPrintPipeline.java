@@ -0,0 +1,179 @@
+package com.woosim.sample;
+
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.graphics.Matrix;
+import android.graphics.pdf.PdfRenderer;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Prints PDF documents as a render -> convert -> transmit pipeline. The calling thread renders
+ * bands of the pages, a converter thread compresses them and the print service sends them,
+ * so rendering the next band overlaps with converting and sending the previous ones.
+ * The stages are joined by bounded queues and the band bitmaps are allocated once and reused.
+ * The low memory mode renders and converts one small band at a time on the calling thread.
+ */
+class PdfPrintPipeline {
+    private static final String TAG = "PdfPrintPipeline";
+    // Print widths in dots of 2, 3 and 4 inch roll paper
+    static final int WIDTH_2INCH = 384;
+    static final int WIDTH_3INCH = 576;
+    static final int WIDTH_4INCH = 832;
+    // Band bitmaps shared by the render and convert stages
+    static final int BAND_BUFFERS = 3;
+    static final int LOW_MEMORY_BAND_HEIGHT = 32;
+
+    private final int mWidth;
+    private final BandedRaster mRaster;
+    private final BandedRaster.BandWriter mWriter;
+    private final Band[] mBands;
+    private final BlockingQueue<Band> mFree;
+    private final BlockingQueue<Band> mRendered;
+    private final Matrix mMatrix = new Matrix();
+    // Converts the rendered bands, null in the low memory mode
+    private Thread mConverter;
+    // First failure of the converter, the renderer stops when it is set
+    private volatile IOException mError;
+
+    // A rendered band and the number of lines of it that belong to the page
+    private static class Band {
+        final Bitmap bitmap;
+        int lines;
+
+        Band(Bitmap bitmap) {
+            this.bitmap = bitmap;
+        }
+    }
+
+    // Marks the end of the document in mRendered
+    private static final Band END = new Band(null);
+
+    /**
+     * @param width  Width in dots pages are scaled to, one of the WIDTH_ constants
+     * @param bandHeight  Lines rendered and converted at once, up to 255
+     */
+    PdfPrintPipeline(int width, int bandHeight, BandedRaster.BandWriter writer) {
+        this(width, bandHeight, BAND_BUFFERS, writer);
+    }
+
+    private PdfPrintPipeline(int width, int bandHeight, int buffers, BandedRaster.BandWriter writer) {
+        if (width != WIDTH_2INCH && width != WIDTH_3INCH && width != WIDTH_4INCH) {
+            throw new IllegalArgumentException("unsupported paper width " + width);
+        }
+        mWidth = width;
+        mRaster = new BandedRaster(bandHeight);
+        mWriter = writer;
+        mBands = new Band[buffers];
+        mFree = new ArrayBlockingQueue<>(buffers);
+        mRendered = new ArrayBlockingQueue<>(buffers + 1);
+        for (int i = 0; i < buffers; i++) {
+            mBands[i] = new Band(Bitmap.createBitmap(width, bandHeight, Bitmap.Config.ARGB_8888));
+            mFree.add(mBands[i]);
+        }
+    }
+
+    /**
+     * Pipeline for devices short of memory: one band bitmap of LOW_MEMORY_BAND_HEIGHT lines,
+     * thresholded row by row into a 1 bit per pixel raster right after it is rendered.
+     */
+    static PdfPrintPipeline lowMemory(int width, BandedRaster.BandWriter writer) {
+        return new PdfPrintPipeline(width, LOW_MEMORY_BAND_HEIGHT, 1, writer);
+    }
+
+    /**
+     * Print all pages of the document. Returns when the last band is sent.
+     */
+    void print(PdfRenderer renderer) throws IOException {
+        if (mBands.length > 1) {
+            mConverter = new Thread(this::convert, "PdfConverter");
+            mConverter.start();
+        }
+        try {
+            for (int i = 0; i < renderer.getPageCount() && mError == null; i++) {
+                PdfRenderer.Page page = renderer.openPage(i);
+                try {
+                    renderPage(page);
+                } finally {
+                    page.close();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            if (mConverter != null)
+                mConverter.interrupt();
+            throw new IOException("interrupted", e);
+        } finally {
+            if (mConverter != null)
+                mRendered.add(END);
+        }
+        if (mConverter != null) {
+            try {
+                mConverter.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted", e);
+            }
+            mConverter = null;
+        } else {
+            mRaster.flush();
+        }
+        if (mError != null)
+            throw mError;
+    }
+
+    void release() {
+        for (Band band : mBands) {
+            band.bitmap.recycle();
+        }
+    }
+
+    private void renderPage(PdfRenderer.Page page) throws InterruptedException, IOException {
+        int height = page.getHeight() * mWidth / page.getWidth();
+        float scale = (float) mWidth / page.getWidth();
+        int bandHeight = mRaster.getBandHeight();
+        for (int top = 0; top < height && mError == null; top += bandHeight) {
+            Band band = mFree.take();
+            band.bitmap.eraseColor(Color.TRANSPARENT);
+            mMatrix.setScale(scale, scale);
+            mMatrix.postTranslate(0, -top);
+            page.render(band.bitmap, null, mMatrix, PdfRenderer.Page.RENDER_MODE_FOR_PRINT);
+            band.lines = Math.min(bandHeight, height - top);
+            if (mConverter == null) {
+                // Converted on this thread, so the band is free again before the next take()
+                mFree.put(band);
+                mRaster.printBand(band.bitmap, band.lines, mWriter);
+            } else {
+                mRendered.put(band);
+            }
+        }
+    }
+
+    private void convert() {
+        try {
+            Band band;
+            while ((band = mRendered.take()) != END) {
+                // After a failure the bands are only handed back, so the renderer can stop
+                if (mError == null) {
+                    try {
+                        mRaster.printBand(band.bitmap, band.lines, mWriter);
+                    } catch (IOException e) {
+                        Log.e(TAG, "print failed", e);
+                        mError = e;
+                    }
+                }
+                mFree.put(band);
+            }
+            if (mError == null)
+                mRaster.flush();
+        } catch (InterruptedException e) {
+            mError = new IOException("interrupted", e);
+        } catch (IOException e) {
+            Log.e(TAG, "print failed", e);
+            mError = e;
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package com.woosim.sample;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Treats the connected printers of a PrinterConnectionManager as one pool. Each job goes to the
+ * printer that is estimated to finish it first: the bytes already queued for a printer and the
+ * job itself, divided by the rate the printer has drained its jobs at so far. A job that fails
+ * on one printer is sent whole to the next; the failed printer is skipped for a while, and so
+ * is a printer that reports an error status.
+ * <p>
+ * Nothing in the sample creates a dispatcher: its activities print to the active printer, and
+ * the dispatcher is only exercised by PrintDispatcherTest. An app that drives several printers
+ * creates one over PrinterConnectionManager.getInstance(), submits whole jobs to it, and passes
+ * the status it polls from each printer to setPrinterError().
+ */
+class PrintDispatcher {
+    private static final String TAG = "PrintDispatcher";
+
+    // Drain rates in bytes per millisecond assumed until a printer has finished a job
+    private static final double BLUETOOTH_RATE = 20;
+    private static final double TCP_RATE = 500;
+    private static final double USB_RATE = 200;
+    // Weight of the newest job in the measured drain rate
+    private static final double RATE_SMOOTHING = 0.3;
+    // How long a printer whose write failed gets no jobs
+    static final long FAILURE_BACKOFF_MS = 5000;
+
+    // Queue and drain rate of one printer, guarded by the dispatcher
+    private static class Load {
+        long queuedBytes;
+        double bytesPerMs;
+        // When the printer finished its previous job, the next one drains from then on
+        long lastDone;
+        long failedUntil;
+        boolean error;
+        int jobs;
+
+        Load(double bytesPerMs) {
+            this.bytesPerMs = bytesPerMs;
+        }
+
+        double drainMs(long bytes) {
+            return (queuedBytes + bytes) / bytesPerMs;
+        }
+    }
+
+    private final PrinterConnectionManager mPrinters;
+    private final Map<String, Load> mLoads = new HashMap<>();
+
+    PrintDispatcher(PrinterConnectionManager printers) {
+        mPrinters = printers;
+    }
+
+    /**
+     * Send a job to the printer of the pool that is estimated to finish it first.
+     * The array must not be modified until the returned future is completed.
+     * @return A future completed with the key of the printer that got the whole job, or failed
+     *         if no printer of the pool could take it
+     */
+    CompletableFuture<String> submit(byte[] job) {
+        CompletableFuture<String> result = new CompletableFuture<>();
+        dispatch(job, new HashSet<>(), null, result);
+        return result;
+    }
+
+    /**
+     * Keep jobs away from a printer while its status reports an error, e.g. paper out.
+     */
+    synchronized void setPrinterError(String key, boolean error) {
+        load(key).error = error;
+    }
+
+    /**
+     * @return Bytes sent to the printer whose jobs are not finished yet
+     */
+    synchronized long getQueuedBytes(String key) {
+        Load load = mLoads.get(key);
+        return load != null ? load.queuedBytes : 0;
+    }
+
+    /**
+     * @return Number of jobs the printer has finished
+     */
+    synchronized int getJobCount(String key) {
+        Load load = mLoads.get(key);
+        return load != null ? load.jobs : 0;
+    }
+
+    private void dispatch(byte[] job, Set<String> tried, Throwable lastError, CompletableFuture<String> result) {
+        PrinterConnection printer;
+        long sent;
+        synchronized (this) {
+            printer = choose(job.length, tried);
+            if (printer == null) {
+                result.completeExceptionally(lastError != null ? lastError : new IOException("no printer available"));
+                return;
+            }
+            tried.add(printer.getKey());
+            load(printer.getKey()).queuedBytes += job.length;
+            sent = System.currentTimeMillis();
+        }
+        // Written outside the lock, the write may wait for room in the send queue
+        printer.write(job).whenComplete((r, e) -> {
+            if (finished(printer.getKey(), job.length, sent, e)) {
+                result.complete(printer.getKey());
+            } else {
+                Log.e(TAG, "job of " + job.length + " bytes failed on " + printer.getKey(), e);
+                dispatch(job, tried, e, result);
+            }
+        });
+    }
+
+    private PrinterConnection choose(int bytes, Set<String> tried) {
+        long now = System.currentTimeMillis();
+        PrinterConnection best = null;
+        double bestMs = 0;
+        for (PrinterConnection printer : mPrinters.getConnections()) {
+            if (tried.contains(printer.getKey()) || !printer.isConnected())
+                continue;
+            Load load = load(printer.getKey());
+            if (load.error || load.failedUntil > now)
+                continue;
+            double drainMs = load.drainMs(bytes);
+            if (best == null || drainMs < bestMs) {
+                best = printer;
+                bestMs = drainMs;
+            }
+        }
+        return best;
+    }
+
+    private synchronized boolean finished(String key, int bytes, long sent, Throwable error) {
+        Load load = load(key);
+        load.queuedBytes -= bytes;
+        long now = System.currentTimeMillis();
+        if (error != null) {
+            load.failedUntil = now + FAILURE_BACKOFF_MS;
+            return false;
+        }
+        load.jobs++;
+        // Jobs drain one after the other, so this one started when the previous was done
+        long drainMs = now - Math.max(sent, load.lastDone);
+        load.lastDone = now;
+        if (drainMs > 0)
+            load.bytesPerMs += RATE_SMOOTHING * ((double) bytes / drainMs - load.bytesPerMs);
+        return true;
+    }
+
+    private Load load(String key) {
+        Load load = mLoads.get(key);
+        if (load == null) {
+            load = new Load(initialRate(key));
+            mLoads.put(key, load);
+        }
+        return load;
+    }
+
+    private static double initialRate(String key) {
+        if (key.startsWith("tcp:"))
+            return TCP_RATE;
+        if (key.startsWith("usb:"))
+            return USB_RATE;
+        return BLUETOOTH_RATE;
+    }
+}
@@ -0,0 +1,39 @@
+package com.woosim.sample;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A connection to one printer with its own send queue, so writes to different printers never
+ * wait for each other. Connections are kept by PrinterConnectionManager under their key.
+ */
+interface PrinterConnection {
+    /**
+     * Identifies the printer, e.g. "bt:00:15:0E:00:00:01".
+     * @see PrinterConnectionManager#bluetoothKey(String)
+     */
+    String getKey();
+
+    boolean isConnected();
+
+    /**
+     * Identifies the connected printer and its model, e.g. for what is stored in its NV memory.
+     * @return Address and name of the device, or null if no printer has been connected
+     */
+    String getPrinterId();
+
+    /**
+     * Queue bytes for the printer. The array must not be modified until the returned future
+     * is completed.
+     * @return A future completed when all bytes are written, or failed if they cannot be
+     */
+    CompletableFuture<Void> write(byte[] data, int offset, int length);
+
+    default CompletableFuture<Void> write(byte[] data) {
+        return write(data, 0, data.length);
+    }
+
+    /**
+     * Close the connection and fail the writes still queued.
+     */
+    void close();
+}
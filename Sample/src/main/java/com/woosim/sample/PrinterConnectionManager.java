@@ -0,0 +1,182 @@
+package com.woosim.sample;
+
+import android.bluetooth.BluetoothDevice;
+import android.os.Handler;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Keeps the connections to all printers of the process, keyed by Bluetooth address, IP address
+ * and port, or USB device, so one handheld can drive several printers at the same time. Each
+ * connection has its own send pipeline. The activities print on the active printer, which is
+ * the one connected last unless another is chosen with setActive.
+ */
+final class PrinterConnectionManager {
+    private static final PrinterConnectionManager sInstance = new PrinterConnectionManager();
+
+    /**
+     * Creates the connection for a key that has none yet.
+     */
+    interface Factory {
+        PrinterConnection create(String key);
+    }
+
+    // In the order the connections were opened
+    private final Map<String, PrinterConnection> mConnections = new LinkedHashMap<>();
+    private String mActiveKey;
+    private Handler mHandler;
+
+    // Stands in for the active printer while there is none
+    private final PrinterConnection mNone = new PrinterConnection() {
+        @Override
+        public String getKey() {
+            return "none";
+        }
+
+        @Override
+        public boolean isConnected() {
+            return false;
+        }
+
+        @Override
+        public String getPrinterId() {
+            return null;
+        }
+
+        @Override
+        public CompletableFuture<Void> write(byte[] data, int offset, int length) {
+            Handler handler = getHandler();
+            if (handler != null)
+                handler.obtainMessage(MainActivity.MESSAGE_TOAST, R.string.not_connected, 0).sendToTarget();
+            CompletableFuture<Void> future = new CompletableFuture<>();
+            future.completeExceptionally(new IOException("not connected"));
+            return future;
+        }
+
+        @Override
+        public void close() {
+        }
+    };
+
+    static PrinterConnectionManager getInstance() {
+        return sInstance;
+    }
+
+    static String bluetoothKey(String address) {
+        return "bt:" + address;
+    }
+
+    static String tcpKey(String host, int port) {
+        return "tcp:" + host + ":" + port;
+    }
+
+    static String usbKey(String deviceName) {
+        return "usb:" + deviceName;
+    }
+
+    /**
+     * @param handler  Gets the messages of the connections opened from now on, for the UI
+     */
+    synchronized void setHandler(Handler handler) {
+        mHandler = handler;
+    }
+
+    private synchronized Handler getHandler() {
+        return mHandler;
+    }
+
+    /**
+     * Connect to a Bluetooth printer, or to the same printer again if its connection was lost.
+     * The connections to other printers stay open. The printer becomes the active one.
+     */
+    PrinterConnection connect(BluetoothDevice device) {
+        Handler handler = getHandler();
+        BluetoothPrintService service = (BluetoothPrintService) open(bluetoothKey(device.getAddress()),
+                key -> {
+                    BluetoothPrintService created = new BluetoothPrintService(handler, key);
+                    // The printer is followed over the connection, so a style command a job
+                    // repeats is dropped while it is still in effect, up to an unknown command
+                    created.setCommandOptimization(true);
+                    return created;
+                });
+        if (!service.isConnected())
+            service.connect(device);
+        return service;
+    }
+
+    /**
+     * Get the connection of the key, created by the factory if there is none, and make it the
+     * active one.
+     */
+    synchronized PrinterConnection open(String key, Factory factory) {
+        PrinterConnection connection = mConnections.get(key);
+        if (connection == null) {
+            connection = factory.create(key);
+            mConnections.put(key, connection);
+        }
+        mActiveKey = key;
+        return connection;
+    }
+
+    /**
+     * @return The connection of the key, or null if there is none
+     */
+    synchronized PrinterConnection get(String key) {
+        return mConnections.get(key);
+    }
+
+    /**
+     * @return The printer the activities print on. While there is none, a connection that
+     *         fails all writes is returned, so the callers need no check.
+     */
+    synchronized PrinterConnection getActive() {
+        PrinterConnection connection = mActiveKey != null ? mConnections.get(mActiveKey) : null;
+        return connection != null ? connection : mNone;
+    }
+
+    synchronized void setActive(String key) {
+        if (mConnections.containsKey(key))
+            mActiveKey = key;
+    }
+
+    synchronized List<PrinterConnection> getConnections() {
+        return new ArrayList<>(mConnections.values());
+    }
+
+    /**
+     * Close the connection of the key. If it was the active one, the connection opened last
+     * of the others becomes active.
+     */
+    void close(String key) {
+        PrinterConnection connection;
+        synchronized (this) {
+            connection = mConnections.remove(key);
+            if (key.equals(mActiveKey)) {
+                mActiveKey = null;
+                for (String k : mConnections.keySet()) {
+                    mActiveKey = k;
+                }
+            }
+        }
+        // Closed outside the lock, a connection may wait for its threads
+        if (connection != null)
+            connection.close();
+    }
+
+    void closeAll() {
+        List<PrinterConnection> connections;
+        synchronized (this) {
+            connections = new ArrayList<>(mConnections.values());
+            mConnections.clear();
+            mActiveKey = null;
+        }
+        for (PrinterConnection connection : connections) {
+            connection.close();
+        }
+    }
+}
@@ -0,0 +1,450 @@
+package com.woosim.sample;
+
+import android.util.Log;
+
+import com.woosim.printer.WoosimCmd;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Fluent builder of print jobs. Writes the same ESC/GS sequences as WoosimCmd and WoosimBarcode
+ * straight into a reused buffer, so building a receipt creates no command arrays and sending it
+ * needs no copy. Encoders are pooled: take one with obtain(), it goes back to the pool by itself
+ * when send() has finished, or through recycle() if it is not sent.
+ */
+class ReceiptEncoder {
+    private static final String TAG = "ReceiptEncoder";
+    private static final int INITIAL_CAPACITY = 512;
+    // Buffers grown beyond this are dropped instead of pooled
+    private static final int MAX_POOLED_CAPACITY = 64 * 1024;
+    private static final int MAX_POOL_SIZE = 4;
+    private static final byte LF = 0x0A;
+    private static final byte FF = 0x0C;
+    private static final byte ESC = 0x1B;
+    private static final byte GS = 0x1D;
+    private static final int UNKNOWN_TABLE = -1;
+
+    private static final Object sPoolLock = new Object();
+    private static ReceiptEncoder sPool;
+    private static int sPoolSize;
+
+    /**
+     * Destination of a finished job, e.g. BluetoothPrintService::write.
+     */
+    interface Writer {
+        CompletableFuture<Void> write(byte[] data, int offset, int length);
+    }
+
+    private ByteBuffer mBuffer = ByteBuffer.allocate(INITIAL_CAPACITY);
+    private ReceiptEncoder mNext;
+    // Code table selected by the last setCodeTable, in the numbering of RX printers
+    private int mCodeTable = UNKNOWN_TABLE;
+    // Encoders by CodeTables index, kept while the encoder is pooled
+    private final CharsetEncoder[] mCharsetEncoders = new CharsetEncoder[CodeTables.COUNT];
+    // Characters of the text being encoded; an array backed buffer lets the encoder run on arrays
+    private CharBuffer mChars = CharBuffer.allocate(INITIAL_CAPACITY);
+    // Tables that can print the run found by runEnd()
+    private int mRunTables;
+
+    private ReceiptEncoder() {
+    }
+
+    /**
+     * Take an empty encoder from the pool, or create one if the pool is empty.
+     */
+    static ReceiptEncoder obtain() {
+        synchronized (sPoolLock) {
+            if (sPool != null) {
+                ReceiptEncoder encoder = sPool;
+                sPool = encoder.mNext;
+                encoder.mNext = null;
+                sPoolSize--;
+                return encoder;
+            }
+        }
+        return new ReceiptEncoder();
+    }
+
+    /**
+     * Return the encoder to the pool. It must not be used afterwards.
+     */
+    void recycle() {
+        mBuffer.clear();
+        mCodeTable = UNKNOWN_TABLE;
+        if (mBuffer.capacity() > MAX_POOLED_CAPACITY) {
+            mBuffer = ByteBuffer.allocate(INITIAL_CAPACITY);
+        }
+        if (mChars.capacity() > MAX_POOLED_CAPACITY) {
+            mChars = CharBuffer.allocate(INITIAL_CAPACITY);
+        }
+        synchronized (sPoolLock) {
+            if (sPoolSize < MAX_POOL_SIZE) {
+                mNext = sPool;
+                sPool = this;
+                sPoolSize++;
+            }
+        }
+    }
+
+    /**
+     * Hand the encoded bytes to the writer without copying them. The encoder is recycled
+     * when the returned future completes, so it must not be used after this call.
+     */
+    CompletableFuture<Void> send(Writer writer) {
+        CompletableFuture<Void> done = writer.write(mBuffer.array(), mBuffer.arrayOffset(), mBuffer.position());
+        if (done.isDone())
+            recycle();
+        else
+            done.whenComplete((result, e) -> recycle());
+        return done;
+    }
+
+    int size() {
+        return mBuffer.position();
+    }
+
+    /**
+     * Copy of the encoded bytes, for tests and for writers that keep the data.
+     */
+    byte[] toByteArray() {
+        byte[] data = new byte[mBuffer.position()];
+        System.arraycopy(mBuffer.array(), mBuffer.arrayOffset(), data, 0, data.length);
+        return data;
+    }
+
+    ReceiptEncoder initPrinter() {
+        // The printer goes back to its default table, which is a setting of the printer
+        mCodeTable = UNKNOWN_TABLE;
+        return put(ESC, (byte) '@');
+    }
+
+    ReceiptEncoder printData() {
+        return put(LF);
+    }
+
+    ReceiptEncoder printLineFeed(int lines) {
+        return put(ESC, (byte) 'd', (byte) lines);
+    }
+
+    /**
+     * Same as WoosimCmd.setTextStyle: width and height are multiples of the font size, 1 to 8.
+     */
+    ReceiptEncoder setTextStyle(boolean bold, boolean underline, boolean reverse, int width, int height) {
+        int w = Math.max(0, Math.min(7, width - 1));
+        int h = Math.max(0, Math.min(7, height - 1));
+        put(ESC, (byte) 'E', (byte) (bold ? 1 : 0));
+        put(ESC, (byte) '-', (byte) (underline ? 1 : 0));
+        put(GS, (byte) 'B', (byte) (reverse ? 1 : 0));
+        return put(GS, (byte) '!', (byte) (w | h << 4));
+    }
+
+    ReceiptEncoder setTextAlign(int align) {
+        return put(ESC, (byte) 'a', (byte) align);
+    }
+
+    /**
+     * Same as WoosimCmd.setCodeTable, including its mapping of the code tables of older MCUs.
+     * Invalid arguments are logged and nothing is written.
+     */
+    ReceiptEncoder setCodeTable(int mcu, int table, int font) {
+        if (mcu < 1 || mcu > 3) {
+            Log.e(TAG, "Invalid MCU type: " + mcu);
+            return this;
+        }
+        if ((table < 0 || table > 50) && table != 255) {
+            Log.e(TAG, "Invalid code table: " + table);
+            return this;
+        }
+        if (font < 0 || font > 2)
+            font = 0;
+        mCodeTable = mcu == WoosimCmd.MCU_RX ? table : UNKNOWN_TABLE;
+        if (mcu != WoosimCmd.MCU_RX) {
+            if (table > 3 && table != 12 && table != 13 && table != 255) {
+                Log.e(TAG, "Invalid code table for specific MCU: " + table);
+                return this;
+            }
+            if (table == 13)
+                table = 4;
+            else if (table == 12)
+                table = 5;
+            if (font == 2)
+                font = 1;
+        }
+        put(ESC, (byte) 't', (byte) table);
+        return put(ESC, (byte) '!', (byte) font);
+    }
+
+    ReceiptEncoder feedToMark() {
+        return put(ESC, (byte) 'z').put(ESC, (byte) 'y');
+    }
+
+    ReceiptEncoder setPageMode() {
+        return put(ESC, (byte) 'L');
+    }
+
+    ReceiptEncoder PM_setArea(int x, int y, int width, int height) {
+        put(ESC, (byte) 'W');
+        return putShort(x).putShort(y).putShort(width).putShort(height);
+    }
+
+    ReceiptEncoder PM_setPosition(int x, int y) {
+        put(ESC, (byte) 'O');
+        return putShort(x).putShort(y);
+    }
+
+    ReceiptEncoder PM_printStdMode() {
+        return put(FF);
+    }
+
+    /**
+     * Text in US-ASCII, characters outside of it are sent as '?' like String.getBytes does.
+     */
+    ReceiptEncoder text(String text) {
+        int length = text.length();
+        ensure(length);
+        byte[] array = mBuffer.array();
+        int pos = mBuffer.arrayOffset() + mBuffer.position();
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(text.charAt(i + 1)))
+                i++;
+            array[pos++] = c < 0x80 ? (byte) c : (byte) '?';
+        }
+        mBuffer.position(pos - mBuffer.arrayOffset());
+        return this;
+    }
+
+    /**
+     * Text in the charset of the code table, e.g. windows-1253 for CT_WIN1253. The table is
+     * not selected; characters it cannot print are sent as '?'.
+     */
+    ReceiptEncoder text(String text, int codeTable) {
+        int index = CodeTables.index(codeTable);
+        if (index < 0) {
+            Log.e(TAG, "No charset for code table: " + codeTable);
+            return this;
+        }
+        encode(text, 0, text.length(), index);
+        return this;
+    }
+
+    /**
+     * Text in as few code tables as possible out of the given ones, selecting a table with
+     * ESC t where the text needs another one. RX printers only. Each switch goes to the table
+     * that prints the longest run from there, the earlier one in the list on a tie. The table
+     * selected by setCodeTable before is kept if it is in the list and that saves a switch.
+     * Characters none of the tables can print are sent as '?'.
+     */
+    ReceiptEncoder text(String text, int[] codeTables) {
+        int candidates = CodeTables.mask(codeTables);
+        if (candidates == 0) {
+            Log.e(TAG, "No charset for any of the code tables");
+            return this;
+        }
+        int length = text.length();
+        int start = 0;
+        int current = CodeTables.index(mCodeTable);
+        if (current >= 0) {
+            // Staying in the current table first only pays if the rest needs no more switches
+            int end = runEnd(text, 0, 1 << current, candidates);
+            if (end > 0 && countRuns(text, end, candidates) <= countRuns(text, 0, candidates)) {
+                encode(text, 0, end, current);
+                start = end;
+            }
+        }
+        while (start < length) {
+            int end = runEnd(text, start, candidates, candidates);
+            int index = current >= 0 && (mRunTables & 1 << current) != 0 ? current : first(codeTables, mRunTables);
+            if (index != current) {
+                current = index;
+                mCodeTable = CodeTables.table(index);
+                put(ESC, (byte) 't', (byte) mCodeTable);
+            }
+            encode(text, start, end, index);
+            start = end;
+        }
+        return this;
+    }
+
+    // End of the run from start that one of the tables can print; the tables left are in mRunTables.
+    // Characters no candidate can print fit into any run.
+    private int runEnd(String text, int start, int tables, int candidates) {
+        int length = text.length();
+        int end = start;
+        while (end < length) {
+            int printable = CodeTables.mask(text.charAt(end)) & candidates;
+            if (printable != 0) {
+                if ((tables & printable) == 0)
+                    break;
+                tables &= printable;
+            }
+            end++;
+        }
+        mRunTables = tables;
+        return end;
+    }
+
+    private int countRuns(String text, int start, int candidates) {
+        int runs = 0;
+        while (start < text.length()) {
+            start = runEnd(text, start, candidates, candidates);
+            runs++;
+        }
+        return runs;
+    }
+
+    private static int first(int[] codeTables, int tables) {
+        for (int table : codeTables) {
+            int index = CodeTables.index(table);
+            if (index >= 0 && (tables & 1 << index) != 0)
+                return index;
+        }
+        return Integer.numberOfTrailingZeros(tables);
+    }
+
+    // Encode straight into the buffer, growing it whenever the encoder runs out of room
+    private void encode(String text, int start, int end, int index) {
+        CharsetEncoder encoder = charsetEncoder(index);
+        if (mChars.capacity() < end - start) {
+            mChars = CharBuffer.allocate(Math.max(end - start, mChars.capacity() * 2));
+        }
+        CharBuffer in = mChars;
+        in.clear();
+        text.getChars(start, end, in.array(), 0);
+        in.limit(end - start);
+        ensure(end - start);
+        encoder.reset();
+        while (encoder.encode(in, mBuffer, true).isOverflow()) {
+            ensure(mBuffer.remaining() + 1);
+        }
+        while (encoder.flush(mBuffer).isOverflow()) {
+            ensure(mBuffer.remaining() + 1);
+        }
+    }
+
+    private CharsetEncoder charsetEncoder(int index) {
+        Charset charset = CodeTables.charset(CodeTables.table(index));
+        CharsetEncoder encoder = mCharsetEncoders[index];
+        // The charset of CT_DBCS can change
+        if (encoder == null || !encoder.charset().equals(charset)) {
+            encoder = charset.newEncoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+            mCharsetEncoders[index] = encoder;
+        }
+        return encoder;
+    }
+
+    /**
+     * Number of bytes text() writes for the text.
+     */
+    static int textLength(String text) {
+        int length = text.length();
+        int bytes = length;
+        for (int i = 0; i < length - 1; i++) {
+            if (Character.isHighSurrogate(text.charAt(i)) && Character.isLowSurrogate(text.charAt(i + 1))) {
+                bytes--;
+                i++;
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Raw bytes, e.g. the output of a WoosimImage or WoosimBarcode method. null is ignored.
+     */
+    ReceiptEncoder bytes(byte[] data) {
+        if (data != null) {
+            ensure(data.length);
+            mBuffer.put(data);
+        }
+        return this;
+    }
+
+    ReceiptEncoder bytes(byte[] data, int offset, int length) {
+        ensure(length);
+        mBuffer.put(data, offset, length);
+        return this;
+    }
+
+    /**
+     * Same sequence as WoosimBarcode.createBarcode. The data is not checked against
+     * the symbology here, only its length.
+     * @param type  One of the 1D types of WoosimBarcode, e.g. WoosimBarcode.CODE128
+     */
+    ReceiptEncoder barcode(int type, int width, int height, boolean hri, byte[] data) {
+        if (data.length < 1 || data.length > 255) {
+            Log.e(TAG, "Invalid barcode length");
+            return this;
+        }
+        barcodeHeader(type, width, height, hri);
+        put((byte) data.length);
+        return bytes(data);
+    }
+
+    // Barcode command up to the length of the data
+    ReceiptEncoder barcodeHeader(int type, int width, int height, boolean hri) {
+        put(GS, (byte) 'w', (byte) width);
+        put(GS, (byte) 'h', (byte) height);
+        put(GS, (byte) 'H', (byte) (hri ? 1 : 0));
+        return put(GS, (byte) 'k', (byte) type);
+    }
+
+    /**
+     * Same sequence as WoosimBarcode.create2DBarcodeQRCode.
+     */
+    ReceiptEncoder qrCode(int version, byte errorCorrection, int size, byte[] data) {
+        qrCodeHeader(version, errorCorrection, size);
+        putShort(data.length);
+        return bytes(data);
+    }
+
+    // QR code command up to the length of the data
+    ReceiptEncoder qrCodeHeader(int version, byte errorCorrection, int size) {
+        put(GS, (byte) 'Z', (byte) 2);
+        put(ESC, (byte) 'Z', (byte) version);
+        return put(errorCorrection, (byte) size);
+    }
+
+    ReceiptEncoder put(byte b) {
+        ensure(1);
+        mBuffer.put(b);
+        return this;
+    }
+
+    private ReceiptEncoder put(byte b1, byte b2) {
+        ensure(2);
+        mBuffer.put(b1).put(b2);
+        return this;
+    }
+
+    private ReceiptEncoder put(byte b1, byte b2, byte b3) {
+        ensure(3);
+        mBuffer.put(b1).put(b2).put(b3);
+        return this;
+    }
+
+    // Little endian, the order of all 16 bit arguments of the printer
+    ReceiptEncoder putShort(int value) {
+        return put((byte) value, (byte) (value >> 8));
+    }
+
+    // Grow by doubling; the grown buffer is kept when the encoder is pooled
+    private void ensure(int length) {
+        if (mBuffer.remaining() < length) {
+            int capacity = mBuffer.capacity();
+            while (capacity - mBuffer.position() < length) {
+                capacity *= 2;
+            }
+            ByteBuffer grown = ByteBuffer.allocate(capacity);
+            mBuffer.flip();
+            grown.put(mBuffer);
+            mBuffer = grown;
+        }
+    }
+}
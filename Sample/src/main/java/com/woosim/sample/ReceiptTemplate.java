@@ -0,0 +1,124 @@
+package com.woosim.sample;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A print job layout compiled once into a frozen byte image and a table of slots for the
+ * parts that change, e.g. the address and tracking number of a shipping label. fill() copies
+ * the fixed bytes between the slots and writes the values into the slots, so a job is produced
+ * without encoding any command again.
+ */
+class ReceiptTemplate {
+    // Length prefix written in front of the value of a slot
+    private static final int PREFIX_NONE = 0;
+    private static final int PREFIX_BYTE = 1;
+    private static final int PREFIX_SHORT = 2;
+
+    private final byte[] mImage;
+    // End of the fixed bytes in front of each slot; the bytes after the last slot follow
+    private final int[] mSlotOffsets;
+    private final int[] mPrefixes;
+    private final int[] mMinLengths;
+    private final int[] mMaxLengths;
+
+    private ReceiptTemplate(Builder builder) {
+        mImage = builder.mFixed.toByteArray();
+        int slots = builder.mSlots.size();
+        mSlotOffsets = new int[slots];
+        mPrefixes = new int[slots];
+        mMinLengths = new int[slots];
+        mMaxLengths = new int[slots];
+        for (int i = 0; i < slots; i++) {
+            int[] slot = builder.mSlots.get(i);
+            mSlotOffsets[i] = slot[0];
+            mPrefixes[i] = slot[1];
+            mMinLengths[i] = slot[2];
+            mMaxLengths[i] = slot[3];
+        }
+    }
+
+    int getSlotCount() {
+        return mSlotOffsets.length;
+    }
+
+    /**
+     * Append one job to the encoder, with the values in the order the slots were added.
+     * Values are written as text; characters outside of US-ASCII become '?'.
+     * @throws IllegalArgumentException if the number of values or the length of a value does not fit
+     */
+    ReceiptEncoder fill(ReceiptEncoder encoder, String... values) {
+        if (values.length != mSlotOffsets.length) {
+            throw new IllegalArgumentException(mSlotOffsets.length + " values expected, got " + values.length);
+        }
+        for (int i = 0; i < values.length; i++) {
+            int length = ReceiptEncoder.textLength(values[i]);
+            if (length < mMinLengths[i] || length > mMaxLengths[i]) {
+                throw new IllegalArgumentException("value " + i + " must be " + mMinLengths[i]
+                        + " to " + mMaxLengths[i] + " characters long");
+            }
+        }
+        int from = 0;
+        for (int i = 0; i < values.length; i++) {
+            encoder.bytes(mImage, from, mSlotOffsets[i] - from);
+            from = mSlotOffsets[i];
+            if (mPrefixes[i] == PREFIX_BYTE)
+                encoder.put((byte) ReceiptEncoder.textLength(values[i]));
+            else if (mPrefixes[i] == PREFIX_SHORT)
+                encoder.putShort(ReceiptEncoder.textLength(values[i]));
+            encoder.text(values[i]);
+        }
+        return encoder.bytes(mImage, from, mImage.length - from);
+    }
+
+    /**
+     * Records the fixed commands of a layout and the slots between them.
+     * The builder is used once; build() releases its encoder.
+     */
+    static class Builder {
+        private final ReceiptEncoder mFixed = ReceiptEncoder.obtain();
+        // Offset, prefix, minimum and maximum length of each slot
+        private final List<int[]> mSlots = new ArrayList<>();
+
+        /**
+         * Encoder for the fixed part of the layout at the current position.
+         */
+        ReceiptEncoder commands() {
+            return mFixed;
+        }
+
+        /**
+         * Text of any length.
+         */
+        Builder textSlot() {
+            return slot(PREFIX_NONE, 0, Integer.MAX_VALUE);
+        }
+
+        /**
+         * 1D barcode, same command as ReceiptEncoder.barcode with the data left open.
+         */
+        Builder barcodeSlot(int type, int width, int height, boolean hri) {
+            mFixed.barcodeHeader(type, width, height, hri);
+            return slot(PREFIX_BYTE, 1, 255);
+        }
+
+        /**
+         * QR code, same command as ReceiptEncoder.qrCode with the data left open.
+         */
+        Builder qrCodeSlot(int version, byte errorCorrection, int size) {
+            mFixed.qrCodeHeader(version, errorCorrection, size);
+            return slot(PREFIX_SHORT, 0, 0xFFFF);
+        }
+
+        ReceiptTemplate build() {
+            ReceiptTemplate template = new ReceiptTemplate(this);
+            mFixed.recycle();
+            return template;
+        }
+
+        private Builder slot(int prefix, int minLength, int maxLength) {
+            mSlots.add(new int[] {mFixed.size(), prefix, minLength, maxLength});
+            return this;
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package com.woosim.sample;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Fixed-size byte ring between the thread reading the printer and the thread handling the replies.
+ * The reading thread fills free space directly, so receiving data allocates nothing.
+ */
+class ReceiveBuffer {
+    private final byte[] mBuffer;
+    private int mHead;      // index of the oldest byte
+    private int mCount;     // number of bytes stored
+    private boolean mClosed;
+
+    ReceiveBuffer(int capacity) {
+        mBuffer = new byte[capacity];
+    }
+
+    /**
+     * Read once from the stream into the free space of the ring.
+     * Waits while the ring is full, so a slow consumer holds back the stream.
+     * @return Number of bytes read, or -1 at the end of the stream or when the ring is closed
+     */
+    int fill(InputStream in) throws IOException {
+        int tail;
+        int space;
+        synchronized (this) {
+            while (mCount == mBuffer.length && !mClosed) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return -1;
+                }
+            }
+            if (mClosed) return -1;
+            tail = (mHead + mCount) % mBuffer.length;
+            space = Math.min(mBuffer.length - mCount, mBuffer.length - tail);
+        }
+        // Only this thread writes to the free space, so the blocking read is done unlocked
+        int bytes = in.read(mBuffer, tail, space);
+        if (bytes > 0) {
+            synchronized (this) {
+                mCount += bytes;
+                notifyAll();
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Move up to dst.length bytes out of the ring, waiting until some are available.
+     * @return Number of bytes copied, or -1 when the ring is closed and empty
+     */
+    synchronized int drain(byte[] dst) throws InterruptedException {
+        while (mCount == 0 && !mClosed) {
+            wait();
+        }
+        if (mCount == 0) return -1;
+        int bytes = Math.min(dst.length, mCount);
+        int first = Math.min(bytes, mBuffer.length - mHead);
+        System.arraycopy(mBuffer, mHead, dst, 0, first);
+        System.arraycopy(mBuffer, 0, dst, first, bytes - first);
+        mHead = (mHead + bytes) % mBuffer.length;
+        mCount -= bytes;
+        notifyAll();
+        return bytes;
+    }
+
+    synchronized void close() {
+        mClosed = true;
+        notifyAll();
+    }
+}
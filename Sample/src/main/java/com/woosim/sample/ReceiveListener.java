@@ -0,0 +1,13 @@
+package com.woosim.sample;
+
+/**
+ * Callback for bytes received from the printer.
+ * It is called on the receive thread of the print service, never on the main thread.
+ */
+interface ReceiveListener {
+    /**
+     * @param buffer  Received bytes. The array is reused once this method returns.
+     * @param length  Number of valid bytes in the buffer
+     */
+    void onReceive(byte[] buffer, int length);
+}
@@ -48,11 +48,12 @@ public class SignPad extends AppCompatActivity {
         byte[] data = WoosimImage.printCompressedBitmap(0, 0, 0, 0, bmp);
         bmp.recycle();
 
-        MainActivity.mPrintService.write(WoosimCmd.initPrinter());
-        MainActivity.mPrintService.write(WoosimCmd.setPageMode());
-        MainActivity.mPrintService.write(data);
-        MainActivity.mPrintService.write(WoosimCmd.PM_setStdMode());
-        MainActivity.mPrintService.write(WoosimCmd.printLineFeed(2));
+        PrinterConnection printer = PrinterConnectionManager.getInstance().getActive();
+        printer.write(WoosimCmd.initPrinter());
+        printer.write(WoosimCmd.setPageMode());
+        printer.write(data);
+        printer.write(WoosimCmd.PM_setStdMode());
+        printer.write(WoosimCmd.printLineFeed(2));
     }
 
     public void clearSignature(View v) {
@@ -0,0 +1,137 @@
+package com.woosim.sample;
+
+import com.woosim.printer.WoosimCmd;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Text of MultiLanguage through the cached charset encoders of {@link ReceiptEncoder}, and the
+ * code tables picked for mixed scripts. The time to build the multi-language jobs is measured
+ * by CodeTableTextBenchmark on a device.
+ */
+public class CodeTableTextTest {
+    private static final String GREEK = "ABCDEFGHIJKLMNOPQRSTUVWXYZ!#$%&*()<>ΑΒΓΔΕΖΗΘΛΠΣΦΨΩ\n";
+    private static final String LATIN9 = "ABCDEFGHIJKLMNOPQRSTUVWXYZ!#$%&*()<>€¢£¥ŠŒ¿ÀÁÂÃÄÅÐÑÝÞßæøý\n";
+    private static final String RUSSIAN = "ABCDEFGHIJKLMNOPQRSTUVWXYZ!#$%&*()<>ЂЉГДЕЖЗИЙКЛПЦШЩЫЮЯ\n";
+    private static final String HEBREW = "ABCDEFGHIJKLMNOPQRSTUVWXYZ!#$%&*()<>€£§©®†אבגהזטמףצקשת\n";
+    private static final String HANGUL = "가나다라마바사아자차카타파하\n";
+    private static final String CHINESE = "您好，见到您很高兴。\n";
+    private static final int[] TABLES = {
+            WoosimCmd.CT_CP437, WoosimCmd.CT_WIN1252, WoosimCmd.CT_WIN1253, WoosimCmd.CT_WIN1251, WoosimCmd.CT_WIN1255
+    };
+
+    @Test
+    public void singleTable_matchesGetBytes() throws Exception {
+        assertText(GREEK, WoosimCmd.CT_WIN1253, "windows-1253");
+        assertText(LATIN9, WoosimCmd.CT_ISO8859_15, "ISO-8859-15");
+        assertText(RUSSIAN, WoosimCmd.CT_WIN1251, "windows-1251");
+        assertText(HEBREW, WoosimCmd.CT_WIN1255, "windows-1255");
+        assertText(HANGUL, WoosimCmd.CT_DBCS, "EUC-KR");
+        CodeTables.setDbcsCharset(Charset.forName("GB18030"));
+        try {
+            assertText(CHINESE, WoosimCmd.CT_DBCS, "GB18030");
+        } finally {
+            CodeTables.setDbcsCharset(Charset.forName("EUC-KR"));
+        }
+        // Unmappable characters become '?' like getBytes does
+        assertText(RUSSIAN, WoosimCmd.CT_WIN1253, "windows-1253");
+    }
+
+    @Test
+    public void longText_growsTheBuffer() throws Exception {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 40; i++) {
+            text.append(HEBREW);
+        }
+        assertText(text.toString(), WoosimCmd.CT_WIN1255, "windows-1255");
+    }
+
+    @Test
+    public void mixedText_usesFewestSwitches() {
+        String text = "Café Ωμέγα Привет שלום 10€\n";
+        assertMixed(text, WoosimCmd.CT_CP437);
+        assertMixed(text, WoosimCmd.CT_WIN1251);
+
+        // Only ASCII, the current table stays
+        byte[] out = ReceiptEncoder.obtain()
+                .setCodeTable(WoosimCmd.MCU_RX, WoosimCmd.CT_WIN1253, WoosimCmd.FONT_LARGE)
+                .text("TOTAL 10.00\n", TABLES)
+                .toByteArray();
+        assertEquals(6 + 12, out.length);
+
+        Random random = new Random(14);
+        String alphabet = GREEK + LATIN9 + RUSSIAN + HEBREW;
+        for (int n = 0; n < 300; n++) {
+            StringBuilder mixed = new StringBuilder();
+            int length = 1 + random.nextInt(30);
+            for (int i = 0; i < length; i++) {
+                mixed.append(alphabet.charAt(random.nextInt(alphabet.length())));
+            }
+            assertMixed(mixed.toString(), TABLES[random.nextInt(TABLES.length)]);
+        }
+    }
+
+    private static void assertText(String text, int table, String charset) throws Exception {
+        ReceiptEncoder encoder = ReceiptEncoder.obtain().text(text, table);
+        assertArrayEquals(text.getBytes(charset), encoder.toByteArray());
+        encoder.recycle();
+    }
+
+    // Decodes the output with the selected tables and compares the switches with the fewest possible
+    private static void assertMixed(String text, int initialTable) {
+        ReceiptEncoder encoder = ReceiptEncoder.obtain()
+                .setCodeTable(WoosimCmd.MCU_RX, initialTable, WoosimCmd.FONT_LARGE);
+        int header = encoder.size();
+        byte[] out = encoder.text(text, TABLES).toByteArray();
+        encoder.recycle();
+
+        StringBuilder decoded = new StringBuilder();
+        ByteArrayOutputStream run = new ByteArrayOutputStream();
+        int table = initialTable;
+        int switches = 0;
+        for (int i = header; i < out.length; i++) {
+            if (out[i] == 0x1B && i + 2 < out.length && out[i + 1] == 't') {
+                decoded.append(new String(run.toByteArray(), CodeTables.charset(table)));
+                run.reset();
+                table = out[i + 2];
+                switches++;
+                i += 2;
+            } else {
+                run.write(out[i]);
+            }
+        }
+        decoded.append(new String(run.toByteArray(), CodeTables.charset(table)));
+        assertEquals(text, decoded.toString());
+        assertEquals(text, fewestSwitches(text, initialTable), switches);
+    }
+
+    private static int fewestSwitches(String text, int initialTable) {
+        int[] cost = new int[TABLES.length];
+        for (int t = 0; t < TABLES.length; t++) {
+            cost[t] = TABLES[t] == initialTable ? 0 : 1;
+        }
+        for (int i = 0; i < text.length(); i++) {
+            int best = Integer.MAX_VALUE;
+            for (int c : cost) {
+                best = Math.min(best, c);
+            }
+            for (int t = 0; t < TABLES.length; t++) {
+                if (!CodeTables.charset(TABLES[t]).newEncoder().canEncode(text.charAt(i)))
+                    cost[t] = Integer.MAX_VALUE;
+                else
+                    cost[t] = Math.min(cost[t], best + 1);
+            }
+        }
+        int best = Integer.MAX_VALUE;
+        for (int c : cost) {
+            best = Math.min(best, c);
+        }
+        return best;
+    }
+}
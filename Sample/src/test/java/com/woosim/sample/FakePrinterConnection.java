@@ -0,0 +1,116 @@
+package com.woosim.sample;
+
+import java.io.IOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A printer on a local thread that drains its jobs at a fixed rate, in place of a Bluetooth,
+ * Wi-Fi or USB link, so a pool of printers can be tested on the JVM.
+ */
+class FakePrinterConnection implements PrinterConnection {
+    private static final byte[] STOP = new byte[0];
+
+    private static class Job {
+        final byte[] data;
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        Job(byte[] data) {
+            this.data = data;
+        }
+    }
+
+    private final String mKey;
+    private final double mBytesPerMs;
+    private final BlockingQueue<Job> mQueue = new LinkedBlockingQueue<>();
+    private final AtomicLong mPrinted = new AtomicLong();
+    private final Thread mThread = new Thread(this::drain, "FakePrinter");
+    private volatile boolean mConnected = true;
+
+    FakePrinterConnection(String key, double bytesPerMs) {
+        mKey = key;
+        mBytesPerMs = bytesPerMs;
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    @Override
+    public String getKey() {
+        return mKey;
+    }
+
+    @Override
+    public boolean isConnected() {
+        return mConnected;
+    }
+
+    @Override
+    public String getPrinterId() {
+        return mKey + "/FAKE";
+    }
+
+    @Override
+    public CompletableFuture<Void> write(byte[] data, int offset, int length) {
+        byte[] copy = new byte[length];
+        System.arraycopy(data, offset, copy, 0, length);
+        Job job = new Job(copy);
+        if (!mConnected) {
+            job.done.completeExceptionally(new IOException("not connected"));
+            return job.done;
+        }
+        mQueue.add(job);
+        // The drain thread may have stopped in between
+        if (!mConnected && mQueue.remove(job))
+            job.done.completeExceptionally(new IOException("not connected"));
+        return job.done;
+    }
+
+    /**
+     * Drop the link, like a printer that was switched off: the queued jobs fail.
+     */
+    void disconnect() {
+        mConnected = false;
+        mQueue.add(new Job(STOP));
+    }
+
+    @Override
+    public void close() {
+        disconnect();
+    }
+
+    long getPrintedBytes() {
+        return mPrinted.get();
+    }
+
+    private void drain() {
+        try {
+            while (true) {
+                Job job = mQueue.take();
+                if (job.data == STOP || !mConnected) {
+                    failAll(job);
+                    return;
+                }
+                Thread.sleep((long) (job.data.length / mBytesPerMs));
+                if (!mConnected) {
+                    failAll(job);
+                    return;
+                }
+                mPrinted.addAndGet(job.data.length);
+                job.done.complete(null);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void failAll(Job first) {
+        IOException cause = new IOException("connection lost");
+        first.done.completeExceptionally(cause);
+        Job job;
+        while ((job = mQueue.poll()) != null) {
+            job.done.completeExceptionally(cause);
+        }
+    }
+}
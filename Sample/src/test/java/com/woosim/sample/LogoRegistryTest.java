@@ -0,0 +1,118 @@
+package com.woosim.sample;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.Assert.*;
+
+/**
+ * NV image format and download bookkeeping of {@link LogoRegistry}.
+ */
+public class LogoRegistryTest {
+    private static final String PRINTER = "00:15:0E:00:00:01/WOOSIM";
+
+    private final List<byte[]> mSent = new ArrayList<>();
+    private final List<CompletableFuture<Void>> mWrites = new ArrayList<>();
+
+    @Test
+    public void image_isInColumnFormat() {
+        LogoRegistry logos = new LogoRegistry(null);
+        // 10 x 3 dots: top left dot, the bottom right dot and the whole second row
+        byte[] raster = {
+                (byte) 0x80, 0x00,
+                (byte) 0xFF, (byte) 0xC0,
+                0x00, 0x40,
+        };
+        assertEquals(1, logos.add(raster, 10, 3));
+        logos.setDownloadEnabled(true);
+        logos.download(PRINTER, this::write);
+        byte[] job = mSent.get(0);
+        // FS q, one image of 2 x 1 bytes of 8 dots, 16 columns of one byte
+        assertEquals(3 + 4 + 16, job.length);
+        assertArrayEquals(new byte[] {0x1C, 'q', 1, 2, 0, 1, 0}, Arrays.copyOf(job, 7));
+        assertEquals((byte) 0xC0, job[7]);
+        for (int x = 1; x < 9; x++) {
+            assertEquals(0x40, job[7 + x]);
+        }
+        assertEquals(0x60, job[7 + 9]);
+        for (int x = 10; x < 16; x++) {
+            assertEquals(0, job[7 + x]);
+        }
+    }
+
+    @Test
+    public void logos_areDownloadedOncePerPrinter() {
+        LogoRegistry logos = new LogoRegistry(null);
+        logos.add(new byte[48 * 60], 384, 60);
+        logos.setDownloadEnabled(true);
+        assertFalse(logos.isStored(PRINTER));
+
+        CompletableFuture<Void> first = logos.download(PRINTER, this::write);
+        // A second job while the first download is still queued does not send it again
+        assertSame(first, logos.download(PRINTER, this::write));
+        assertEquals(1, mSent.size());
+        assertEquals(3 + 4 + 384 * 8, mSent.get(0).length);
+        mWrites.get(0).complete(null);
+        assertTrue(first.isDone());
+        // Sent is not stored until it is confirmed, but it is not sent again either
+        assertFalse(logos.isStored(PRINTER));
+        logos.download(PRINTER, this::write);
+        assertEquals(1, mSent.size());
+        assertTrue(logos.confirmStored(PRINTER));
+        assertTrue(logos.isStored(PRINTER));
+
+        logos.download(PRINTER, this::write);
+        assertEquals(1, mSent.size());
+        // Another printer, or the same one after a new logo was added, needs a download
+        assertFalse(logos.isStored("00:15:0E:00:00:02/WOOSIM"));
+        logos.add(new byte[4 * 8], 32, 8);
+        assertFalse(logos.isStored(PRINTER));
+        assertFalse(logos.confirmStored(PRINTER));
+    }
+
+    @Test
+    public void download_isOffUntilEnabled() {
+        LogoRegistry logos = new LogoRegistry(null);
+        logos.add(new byte[4 * 8], 32, 8);
+        assertTrue(logos.download(PRINTER, this::write).isCompletedExceptionally());
+        assertTrue(mSent.isEmpty());
+        assertFalse(logos.confirmStored(PRINTER));
+        assertFalse(logos.isStored(PRINTER));
+    }
+
+    @Test
+    public void failedDownload_isNotRecorded() {
+        LogoRegistry logos = new LogoRegistry(null);
+        logos.add(new byte[4 * 8], 32, 8);
+        logos.setDownloadEnabled(true);
+        CompletableFuture<Void> download = logos.download(PRINTER, this::write);
+        mWrites.get(0).completeExceptionally(new IOException("connection lost"));
+        assertTrue(download.isCompletedExceptionally());
+        assertFalse(logos.confirmStored(PRINTER));
+        logos.download(PRINTER, this::write);
+        assertEquals(2, mSent.size());
+    }
+
+    @Test
+    public void tooLargeLogo_isRejected() {
+        try {
+            new LogoRegistry(null).add(new byte[128 * 8], 1024 * 8, 8);
+            fail("too wide logo accepted");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    private CompletableFuture<Void> write(byte[] data, int offset, int length) {
+        byte[] copy = new byte[length];
+        System.arraycopy(data, offset, copy, 0, length);
+        mSent.add(copy);
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        mWrites.add(future);
+        return future;
+    }
+}
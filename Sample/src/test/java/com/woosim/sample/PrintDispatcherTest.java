@@ -0,0 +1,115 @@
+package com.woosim.sample;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Routing of {@link PrintDispatcher} over a pool of {@link FakePrinterConnection}s.
+ */
+public class PrintDispatcherTest {
+    private static final String BT = PrinterConnectionManager.bluetoothKey("00:15:0E:00:00:01");
+    private static final String TCP = PrinterConnectionManager.tcpKey("192.168.0.20", 9100);
+    private static final String USB = PrinterConnectionManager.usbKey("/dev/bus/usb/001/002");
+
+    private final PrinterConnectionManager mPrinters = new PrinterConnectionManager();
+    private final Map<String, FakePrinterConnection> mFakes = new HashMap<>();
+
+    @Test
+    public void jobs_goToTheFastestPrinterFirst() throws Exception {
+        addPrinter(BT, 20);
+        addPrinter(TCP, 200);
+        PrintDispatcher dispatcher = new PrintDispatcher(mPrinters);
+        assertEquals(TCP, dispatcher.submit(new byte[1000]).get(1, TimeUnit.SECONDS));
+        assertEquals(1, dispatcher.getJobCount(TCP));
+        assertEquals(0, dispatcher.getQueuedBytes(TCP));
+    }
+
+    @Test
+    public void load_isSpreadByDrainTime() throws Exception {
+        addPrinter(BT, 20);
+        addPrinter(TCP, 200);
+        addPrinter(USB, 100);
+        PrintDispatcher dispatcher = new PrintDispatcher(mPrinters);
+        int jobs = 120;
+        int size = 2000;
+        List<CompletableFuture<String>> results = new ArrayList<>();
+        List<Thread> clients = new ArrayList<>();
+        for (int c = 0; c < 4; c++) {
+            Thread client = new Thread(() -> {
+                for (int i = 0; i < jobs / 4; i++) {
+                    CompletableFuture<String> result = dispatcher.submit(new byte[size]);
+                    synchronized (results) {
+                        results.add(result);
+                    }
+                }
+            });
+            clients.add(client);
+            client.start();
+        }
+        for (Thread client : clients) {
+            client.join();
+        }
+        for (CompletableFuture<String> result : results) {
+            result.get(10, TimeUnit.SECONDS);
+        }
+        assertEquals(jobs, dispatcher.getJobCount(BT) + dispatcher.getJobCount(TCP) + dispatcher.getJobCount(USB));
+        assertTrue(dispatcher.getJobCount(TCP) > dispatcher.getJobCount(USB));
+        assertTrue(dispatcher.getJobCount(USB) > dispatcher.getJobCount(BT));
+    }
+
+    @Test
+    public void disconnectedPrinter_failsOver() throws Exception {
+        addPrinter(TCP, 20);
+        addPrinter(BT, 10);
+        PrintDispatcher dispatcher = new PrintDispatcher(mPrinters);
+        List<CompletableFuture<String>> results = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            results.add(dispatcher.submit(new byte[1000]));
+        }
+        mFakes.get(TCP).disconnect();
+        for (CompletableFuture<String> result : results) {
+            result.get(5, TimeUnit.SECONDS);
+        }
+        // Every job was printed whole on one printer
+        assertEquals(6000, mFakes.get(TCP).getPrintedBytes() + mFakes.get(BT).getPrintedBytes());
+        assertEquals(BT, dispatcher.submit(new byte[10]).get(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void printerWithErrorStatus_getsNoJobs() throws Exception {
+        addPrinter(BT, 20);
+        addPrinter(TCP, 200);
+        PrintDispatcher dispatcher = new PrintDispatcher(mPrinters);
+        dispatcher.setPrinterError(TCP, true);
+        assertEquals(BT, dispatcher.submit(new byte[100]).get(1, TimeUnit.SECONDS));
+        dispatcher.setPrinterError(TCP, false);
+        assertEquals(TCP, dispatcher.submit(new byte[100]).get(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void noPrinterLeft_failsTheJob() throws Exception {
+        addPrinter(BT, 20);
+        mFakes.get(BT).disconnect();
+        try {
+            new PrintDispatcher(mPrinters).submit(new byte[100]).get(1, TimeUnit.SECONDS);
+            fail("printed without a printer");
+        } catch (ExecutionException e) {
+            assertEquals("no printer available", e.getCause().getMessage());
+        }
+    }
+
+    private void addPrinter(String key, double bytesPerMs) {
+        FakePrinterConnection fake = new FakePrinterConnection(key, bytesPerMs);
+        mFakes.put(key, fake);
+        mPrinters.open(key, k -> fake);
+    }
+}
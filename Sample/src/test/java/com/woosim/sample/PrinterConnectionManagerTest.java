@@ -0,0 +1,108 @@
+package com.woosim.sample;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Keys, the active printer and closing of {@link PrinterConnectionManager}.
+ */
+public class PrinterConnectionManagerTest {
+    private static final String RECEIPT = PrinterConnectionManager.bluetoothKey("00:15:0E:00:00:01");
+    private static final String LABEL = PrinterConnectionManager.tcpKey("192.168.0.20", 9100);
+
+    private static class FakeConnection implements PrinterConnection {
+        final String key;
+        final ByteArrayOutputStream sent = new ByteArrayOutputStream();
+        boolean closed;
+
+        FakeConnection(String key) {
+            this.key = key;
+        }
+
+        @Override
+        public String getKey() {
+            return key;
+        }
+
+        @Override
+        public boolean isConnected() {
+            return !closed;
+        }
+
+        @Override
+        public String getPrinterId() {
+            return key;
+        }
+
+        @Override
+        public CompletableFuture<Void> write(byte[] data, int offset, int length) {
+            sent.write(data, offset, length);
+            return CompletableFuture.completedFuture(null);
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+
+    @Test
+    public void open_keepsOneConnectionPerKey() {
+        PrinterConnectionManager printers = new PrinterConnectionManager();
+        PrinterConnection receipt = printers.open(RECEIPT, FakeConnection::new);
+        PrinterConnection label = printers.open(LABEL, FakeConnection::new);
+        assertNotSame(receipt, label);
+        assertSame(receipt, printers.open(RECEIPT, key -> {
+            throw new AssertionError("created twice");
+        }));
+        assertSame(label, printers.get(LABEL));
+        assertEquals(2, printers.getConnections().size());
+    }
+
+    @Test
+    public void writes_goToTheActivePrinterOnly() {
+        PrinterConnectionManager printers = new PrinterConnectionManager();
+        FakeConnection receipt = (FakeConnection) printers.open(RECEIPT, FakeConnection::new);
+        FakeConnection label = (FakeConnection) printers.open(LABEL, FakeConnection::new);
+        // The printer opened last is active
+        printers.getActive().write(new byte[] {'L'});
+        printers.setActive(RECEIPT);
+        printers.getActive().write(new byte[] {'R'});
+        assertArrayEquals(new byte[] {'R'}, receipt.sent.toByteArray());
+        assertArrayEquals(new byte[] {'L'}, label.sent.toByteArray());
+    }
+
+    @Test
+    public void close_makesThePreviousPrinterActive() {
+        PrinterConnectionManager printers = new PrinterConnectionManager();
+        FakeConnection receipt = (FakeConnection) printers.open(RECEIPT, FakeConnection::new);
+        FakeConnection label = (FakeConnection) printers.open(LABEL, FakeConnection::new);
+        printers.close(LABEL);
+        assertTrue(label.closed);
+        assertFalse(receipt.closed);
+        assertSame(receipt, printers.getActive());
+        assertNull(printers.get(LABEL));
+
+        printers.closeAll();
+        assertTrue(receipt.closed);
+        assertTrue(printers.getConnections().isEmpty());
+    }
+
+    @Test
+    public void noPrinter_failsTheWrites() throws Exception {
+        PrinterConnectionManager printers = new PrinterConnectionManager();
+        PrinterConnection none = printers.getActive();
+        assertFalse(none.isConnected());
+        try {
+            none.write(new byte[] {0x1B, '@'}).get();
+            fail("written without a printer");
+        } catch (ExecutionException e) {
+            assertEquals("not connected", e.getCause().getMessage());
+        }
+    }
+}
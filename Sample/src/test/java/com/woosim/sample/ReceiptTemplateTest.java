@@ -0,0 +1,94 @@
+package com.woosim.sample;
+
+import com.woosim.printer.WoosimBarcode;
+import com.woosim.printer.WoosimCmd;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Shipping labels from a {@link ReceiptTemplate} match encoding every command of the label
+ * again. The throughput of both is measured by ReceiptTemplateBenchmark on a device.
+ */
+public class ReceiptTemplateTest {
+    private static final String[] ADDRESSES = {
+            "        #60, Sandan-ro 388beon-gil\n        Galsan-myeon, Hongseong-gun\n",
+            "        1 Main Street\n        Springfield\n",
+    };
+    @Test
+    public void template_matchesEncoder() {
+        ReceiptTemplate template = createTemplate();
+        assertEquals(4, template.getSlotCount());
+        for (String address : ADDRESSES) {
+            byte[] expected = encode(ReceiptEncoder.obtain(), address, "http://www.woosim.com/", "Quantity: 10",
+                    "134 35490 7564").toByteArray();
+            byte[] filled = template.fill(ReceiptEncoder.obtain(), address, "http://www.woosim.com/", "Quantity: 10",
+                    "134 35490 7564").toByteArray();
+            assertArrayEquals(expected, filled);
+        }
+    }
+
+    @Test
+    public void template_rejectsValuesThatDoNotFit() {
+        ReceiptTemplate template = createTemplate();
+        try {
+            template.fill(ReceiptEncoder.obtain(), ADDRESSES[0], "", "Quantity: 10", "");
+            fail("empty barcode accepted");
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            template.fill(ReceiptEncoder.obtain(), ADDRESSES[0]);
+            fail("missing values accepted");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    private static ReceiptTemplate createTemplate() {
+        ReceiptTemplate.Builder label = new ReceiptTemplate.Builder();
+        label.commands()
+                .setCodeTable(WoosimCmd.MCU_RX, WoosimCmd.CT_CP437, WoosimCmd.FONT_LARGE)
+                .setTextStyle(true, false, false, 1, 1)
+                .text("SHIP TO:\n")
+                .setCodeTable(WoosimCmd.MCU_RX, WoosimCmd.CT_CP437, WoosimCmd.FONT_MEDIUM)
+                .setTextStyle(false, false, false, 1, 1);
+        label.textSlot();
+        label.commands()
+                .setPageMode()
+                .PM_setArea(0, 0, 384, 300)
+                .PM_setPosition(0, 7);
+        label.qrCodeSlot(0, (byte) 0x4D, 3);
+        label.commands()
+                .setTextStyle(true, false, false, 1, 1)
+                .PM_setPosition(100, 55);
+        label.textSlot();
+        label.commands().PM_setPosition(20, 160);
+        label.barcodeSlot(WoosimBarcode.CODE128, 2, 100, false);
+        label.commands()
+                .PM_printStdMode()
+                .feedToMark();
+        return label.build();
+    }
+
+    private static ReceiptEncoder encode(ReceiptEncoder encoder, String address, String url, String quantity,
+                                         String tracking) {
+        return encoder
+                .setCodeTable(WoosimCmd.MCU_RX, WoosimCmd.CT_CP437, WoosimCmd.FONT_LARGE)
+                .setTextStyle(true, false, false, 1, 1)
+                .text("SHIP TO:\n")
+                .setCodeTable(WoosimCmd.MCU_RX, WoosimCmd.CT_CP437, WoosimCmd.FONT_MEDIUM)
+                .setTextStyle(false, false, false, 1, 1)
+                .text(address)
+                .setPageMode()
+                .PM_setArea(0, 0, 384, 300)
+                .PM_setPosition(0, 7)
+                .qrCode(0, (byte) 0x4D, 3, url.getBytes())
+                .setTextStyle(true, false, false, 1, 1)
+                .PM_setPosition(100, 55)
+                .text(quantity)
+                .PM_setPosition(20, 160)
+                .barcode(WoosimBarcode.CODE128, 2, 100, false, tracking.getBytes())
+                .PM_printStdMode()
+                .feedToMark();
+    }
+}
@@ -0,0 +1,218 @@
+package com.woosim.usbprint;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Merges small writes into frames of up to the link MTU in front of a print service, so a
+ * caller that sends a job as many small commands causes one socket write per frame instead of
+ * one per command. A frame is sent when it is full, when the flush delay has passed since its
+ * first byte, or on flush(). Writes of a frame or more are passed on as they are, after the
+ * bytes buffered before them. The order of the bytes is never changed.
+ * <p>
+ * Frames are handed to the sink outside the lock of the writer, one at a time and in order,
+ * so a sink that blocks while its queue is full does not block the callers that only buffer.
+ * flush() does wait for them, since what follows it, e.g. the end of a job, must come after
+ * its frames.
+ */
+class CoalescingWriter {
+    private static final CompletableFuture<Void> DONE = CompletableFuture.completedFuture(null);
+
+    // One timer thread for all writers; it only starts the flushes of frames that waited too long
+    private static final ScheduledExecutorService sTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "CoalescingWriter");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // Runs those flushes, so a sink that blocks does not delay the frames of the other writers
+    private static final Executor sFlusher = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "CoalescingFlush");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Destination of the frames, e.g. the write method of a print service.
+     */
+    interface Sink {
+        CompletableFuture<Void> write(byte[] data, int offset, int length);
+    }
+
+    private final Sink mSink;
+    private final byte[] mFrame;
+    private final long mFlushDelayMs;
+    private final Runnable mDeadline = () -> sFlusher.execute(this::flush);
+    private int mLength;
+    // Completed when the frame being filled has been written
+    private CompletableFuture<Void> mFrameDone;
+    private CompletableFuture<Void> mLastSent = DONE;
+    private ScheduledFuture<?> mScheduled;
+    // Frames taken from the buffer that the sink has not got yet, and whether a thread hands them over
+    private final ArrayDeque<Frame> mOutgoing = new ArrayDeque<>();
+    private boolean mSending;
+    private int mWrites;
+    private int mFrames;
+    // Frames the sink has got, or failed to take
+    private int mHandedOver;
+
+    // Bytes for the sink and the future of the writes in them
+    private static class Frame {
+        final byte[] data;
+        final int offset;
+        final int length;
+        final CompletableFuture<Void> done;
+
+        Frame(byte[] data, int offset, int length, CompletableFuture<Void> done) {
+            this.data = data;
+            this.offset = offset;
+            this.length = length;
+            this.done = done;
+        }
+    }
+
+    /**
+     * @param frameSize     Largest frame, e.g. the MTU of the link
+     * @param flushDelayMs  Longest time the first byte of a frame waits for more
+     */
+    CoalescingWriter(Sink sink, int frameSize, long flushDelayMs) {
+        mSink = sink;
+        mFrame = new byte[frameSize];
+        mFlushDelayMs = flushDelayMs;
+    }
+
+    CompletableFuture<Void> write(byte[] data) {
+        return write(data, 0, data.length);
+    }
+
+    /**
+     * Buffer the bytes, or pass them on if they fill a frame by themselves. The bytes are copied
+     * unless they are passed on, then the array must not be modified until the future completes.
+     * @return A future completed when the bytes have been written by the sink
+     */
+    CompletableFuture<Void> write(byte[] data, int offset, int length) {
+        if (length == 0)
+            return DONE;
+        CompletableFuture<Void> done;
+        synchronized (this) {
+            mWrites++;
+            if (mLength + length > mFrame.length)
+                takeFrame();
+            if (length >= mFrame.length) {
+                done = new CompletableFuture<>();
+                queue(new Frame(data, offset, length, done));
+            } else {
+                System.arraycopy(data, offset, mFrame, mLength, length);
+                mLength += length;
+                if (mFrameDone == null)
+                    mFrameDone = new CompletableFuture<>();
+                done = mFrameDone;
+                if (mLength == mFrame.length)
+                    takeFrame();
+                else if (mScheduled == null)
+                    mScheduled = sTimer.schedule(mDeadline, mFlushDelayMs, TimeUnit.MILLISECONDS);
+            }
+        }
+        send();
+        return done;
+    }
+
+    /**
+     * Send the buffered bytes now, e.g. at the end of a job. Returns once the sink has got all
+     * bytes written so far, so it waits while another thread hands frames to the sink.
+     * @return A future completed when everything written so far has been written by the sink
+     */
+    CompletableFuture<Void> flush() {
+        CompletableFuture<Void> sent;
+        int frames;
+        synchronized (this) {
+            takeFrame();
+            sent = mLastSent;
+            frames = mFrames;
+        }
+        while (true) {
+            send();
+            synchronized (this) {
+                if (mHandedOver - frames >= 0)
+                    return sent;
+                // Otherwise another thread hands over the frames, or it failed and left them
+                if (mSending) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return sent;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Number of writes and of frames handed to the sink so far.
+     */
+    synchronized int getWriteCount() {
+        return mWrites;
+    }
+
+    synchronized int getFrameCount() {
+        return mFrames;
+    }
+
+    // Move the buffered bytes to the outgoing frames; called with the lock held
+    private void takeFrame() {
+        if (mScheduled != null) {
+            mScheduled.cancel(false);
+            mScheduled = null;
+        }
+        if (mLength == 0)
+            return;
+        // The sink keeps the array until it is written, so the frame buffer is not handed out
+        byte[] frame = Arrays.copyOf(mFrame, mLength);
+        CompletableFuture<Void> done = mFrameDone;
+        mLength = 0;
+        mFrameDone = null;
+        queue(new Frame(frame, 0, frame.length, done));
+    }
+
+    private void queue(Frame frame) {
+        mFrames++;
+        mOutgoing.add(frame);
+        mLastSent = frame.done;
+    }
+
+    // Hand the outgoing frames to the sink without the lock. A thread that finds another one
+    // handing them over leaves its frames to it, which keeps them in order.
+    private void send() {
+        while (true) {
+            Frame frame;
+            synchronized (this) {
+                if (mSending || mOutgoing.isEmpty())
+                    return;
+                frame = mOutgoing.poll();
+                mSending = true;
+            }
+            CompletableFuture<Void> sent;
+            try {
+                sent = mSink.write(frame.data, frame.offset, frame.length);
+            } finally {
+                synchronized (this) {
+                    mSending = false;
+                    mHandedOver++;
+                    notifyAll();
+                }
+            }
+            sent.whenComplete((result, e) -> {
+                if (e == null)
+                    frame.done.complete(null);
+                else
+                    frame.done.completeExceptionally(e);
+            });
+        }
+    }
+}
@@ -35,8 +35,8 @@ import java.io.InputStream;
 public class MainActivity extends AppCompatActivity {
     private static final String TAG = "MainActivity";
     private static final String ACTION_USB_PERMISSION = "com.android.woosim.USB_PERMISSION";
-
-    public static final int MESSAGE_READ = 3;
+    // Flush delay of the write coalescing, short enough not to be noticed on a printout
+    private static final long FLUSH_DELAY_MS = 10;
 
     private PendingIntent mPermissionIntent;
     private UsbManager mManager;
@@ -44,7 +44,9 @@ public class MainActivity extends AppCompatActivity {
     private UsbDeviceConnection mDeviceConnection;
     private UsbInterface mInterface;
     private UsbPrintService mPrintService = null;
-    private WoosimService mWoosim = null;
+    // Merges the small writes of a job into frames of one OUT transfer
+    private CoalescingWriter mWriter = null;
+    private ReceiveService mReceiveService = null;
 
     private TextView mTrack1View;
     private TextView mTrack2View;
@@ -61,7 +63,7 @@ public class MainActivity extends AppCompatActivity {
         else
             mPermissionIntent = PendingIntent.getBroadcast(this, 0, new Intent(ACTION_USB_PERMISSION), PendingIntent.FLAG_UPDATE_CURRENT);
 
-        mWoosim = new WoosimService(mHandler);
+        mReceiveService = new ReceiveService(mHandler);
         mTrack1View = findViewById(R.id.textViewTrack1);
         mTrack2View = findViewById(R.id.textViewTrack2);
         mTrack3View = findViewById(R.id.textViewTrack3);
@@ -84,6 +86,7 @@ public class MainActivity extends AppCompatActivity {
     public void onDestroy() {
         unregisterReceiver(mUsbReceiver);
         setDeviceInterface(null, null);
+        mReceiveService.stop();
         super.onDestroy();
     }
 
@@ -137,7 +140,8 @@ public class MainActivity extends AppCompatActivity {
                     mDevice = device;
                     mDeviceConnection = connection;
                     mInterface = intf;
-                    mPrintService = new UsbPrintService(mDeviceConnection, intf, mHandler);
+                    mPrintService = new UsbPrintService(mDeviceConnection, intf, mReceiveListener);
+                    mWriter = new CoalescingWriter(mPrintService::send, mPrintService.getSegmentSize(), FLUSH_DELAY_MS);
                     mPrintService.start();
                     return;
                 } else {
@@ -151,16 +155,17 @@ public class MainActivity extends AppCompatActivity {
         if (mDeviceConnection == null && mPrintService != null) {
             mPrintService.stop();
             mPrintService = null;
+            mWriter = null;
         }
     }
 
+    // Called on the receive thread of the print service; ReceiveService copies the bytes
+    private final ReceiveListener mReceiveListener = (buffer, length) -> mReceiveService.processRcvData(buffer, length);
+
     private final Handler mHandler = new Handler(Looper.getMainLooper()) {
         @Override
         public void handleMessage(Message msg) {
             switch (msg.what) {
-                case MESSAGE_READ:
-                    mWoosim.processRcvData((byte[])msg.obj, msg.arg1);
-                    break;
                 case WoosimService.MESSAGE_PRINTER:
                     if (msg.arg1 == WoosimService.MSR) {
                         if (msg.arg2 == 0) {
@@ -191,8 +196,13 @@ public class MainActivity extends AppCompatActivity {
             Toast.makeText(this, R.string.connect_failure, Toast.LENGTH_SHORT).show();
             return;
         }
-        if (data.length > 0)
-            mPrintService.send(data);
+        mWriter.write(data);
+    }
+
+    // Send what sendData buffered without waiting for the flush delay, at the end of a job
+    private void flushData() {
+        if (mWriter != null)
+            mWriter.flush();
     }
 
     /**
@@ -207,6 +217,7 @@ public class MainActivity extends AppCompatActivity {
             {
                 sendData(data);
             }
+            flushData();
         } catch (IOException e) {
             Log.e(TAG, "sample 2inch receipt print fail.", e);
         } finally {
@@ -230,6 +241,7 @@ public class MainActivity extends AppCompatActivity {
         sendData(WoosimImage.printBitmap(0, 0, 384, 200, bmp));
         bmp.recycle();
         sendData(WoosimCmd.PM_setStdMode());
+        flushData();
     }
 
     public void print1DBarcode(View v) {
@@ -348,13 +360,13 @@ public class MainActivity extends AppCompatActivity {
 
     public void setMSRDoubleTrackMode(View v) {
         clearMSRInfo();
-        mWoosim.clearRcvBuffer();
+        mReceiveService.clearRcvBuffer();
         sendData(WoosimCmd.MSR_doubleTrackMode());
     }
 
     public void setMSRTripleTrackMode(View v) {
         clearMSRInfo();
-        mWoosim.clearRcvBuffer();
+        mReceiveService.clearRcvBuffer();
         sendData(WoosimCmd.MSR_tripleTrackMode());
     }
 
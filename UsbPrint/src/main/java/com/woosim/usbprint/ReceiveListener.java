@@ -0,0 +1,14 @@
+package com.woosim.usbprint;
+
+/**
+ * Callback for bytes received from the printer.
+ * It is called on the thread reading the connection, never on the main thread, and the next
+ * read waits for it, so it only hands the bytes on.
+ */
+interface ReceiveListener {
+    /**
+     * @param buffer  Received bytes. The array is reused once this method returns.
+     * @param length  Number of valid bytes in the buffer
+     */
+    void onReceive(byte[] buffer, int length);
+}
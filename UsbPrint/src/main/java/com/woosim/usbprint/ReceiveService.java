@@ -0,0 +1,180 @@
+package com.woosim.usbprint;
+
+import android.os.Handler;
+import android.util.Log;
+
+import com.woosim.printer.WoosimService;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Replacement for the receive side of {@link WoosimService}.
+ * The thread reading the connection puts the received bytes straight into a lock-free
+ * {@link ByteRing}, from which one long-lived parsing thread takes them; it parks while
+ * there is nothing to parse. Results are sent to the handler as
+ * {@link WoosimService#MESSAGE_PRINTER} messages, exactly like WoosimService does.
+ */
+class ReceiveService {
+    private static final String TAG = "ReceiveService";
+    // Same queue size as WoosimService
+    private static final int QUEUE_SIZE = 1024;
+    // Time the printer needs to finish a reply after its first byte, as in WoosimService
+    private static final long MSR_SETTLE_MS = 700;
+    private static final long ESC_SETTLE_MS = 300;
+    private static final long DATA_SETTLE_MS = 500;
+
+    private static final int STX = 0x02;
+    private static final int ETX = 0x03;
+    private static final int LF = 0x0A;
+    private static final int CR = 0x0D;
+    private static final int ESC = 0x1B;
+    private static final int FS = 0x1C;
+
+    private static final int TRACK1_LENGTH = 76;
+    private static final int TRACK2_LENGTH = 37;
+    private static final int TRACK3_LENGTH = 104;
+
+    private final Handler mHandler;
+    private final ByteRing mRing = new ByteRing(QUEUE_SIZE);
+    private ParsingThread mParsingThread;
+    // Ring position up to which received data is to be dropped
+    private volatile long mClearTo;
+
+    ReceiveService(Handler handler) {
+        mHandler = handler;
+    }
+
+    /**
+     * Queue received bytes for parsing. Can be called from any thread; the calls are
+     * serialized, since each connection reads on a thread of its own.
+     */
+    synchronized void processRcvData(byte[] data, int length) {
+        if (!mRing.offer(data, 0, length)) {
+            Log.e(TAG, "Queue buffer is not enough");
+            return;
+        }
+        if (mParsingThread == null) {
+            mParsingThread = new ParsingThread();
+            mParsingThread.start();
+        }
+    }
+
+    /**
+     * Drop the data received so far. Can be called from any thread.
+     */
+    void clearRcvBuffer() {
+        mClearTo = mRing.written();
+    }
+
+    /**
+     * Stop the parsing thread. Data received afterwards is ignored.
+     */
+    void stop() {
+        mRing.close();
+    }
+
+    private class ParsingThread extends Thread {
+        private final byte[] mmData = new byte[TRACK3_LENGTH + 1];
+
+        ParsingThread() {
+            super("ReceiveParser");
+        }
+
+        public void run() {
+            try {
+                while (true) {
+                    mRing.discardTo(mClearTo);
+                    int b = mRing.read();
+                    if (b < 0) {
+                        if (!mRing.await() || isInterrupted())
+                            return;
+                    } else if (b == STX) {
+                        Thread.sleep(MSR_SETTLE_MS);
+                        int mode = readByte();
+                        if ((mode >= 'C' && mode <= 'G') || mode == 'n') {
+                            decodeMSRBlock(mode);
+                        } else {
+                            sendUnprescribed(b, mode);
+                        }
+                    } else if (b == ESC) {
+                        Thread.sleep(ESC_SETTLE_MS);
+                        int b2 = readByte();
+                        int b3 = readByte();
+                        if ((b2 == 'M' || b2 == 'n') && b3 == '1') {
+                            // Reading the card failed
+                            mHandler.obtainMessage(WoosimService.MESSAGE_PRINTER, WoosimService.MSR, 0).sendToTarget();
+                        } else {
+                            sendUnprescribed(b, b2, b3);
+                        }
+                    } else if (b != 0) {
+                        Thread.sleep(DATA_SETTLE_MS);
+                        sendUnprescribed(b);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Log.w(TAG, "parsing thread interrupted");
+            }
+        }
+
+        // An empty queue reads as 0, like WoosimService
+        private int readByte() {
+            int b = mRing.read();
+            return b < 0 ? 0 : b;
+        }
+
+        // Forward the leading bytes and everything received until now
+        private void sendUnprescribed(int... head) {
+            int remain = mRing.available();
+            ByteBuffer buffer = ByteBuffer.allocate(head.length + remain);
+            for (int b : head) {
+                buffer.put((byte) b);
+            }
+            mRing.read(buffer.array(), head.length, remain);
+            buffer.position(head.length + remain);
+            mHandler.obtainMessage(WoosimService.MESSAGE_PRINTER, WoosimService.UNPRESCRIBED,
+                    buffer.capacity(), buffer).sendToTarget();
+        }
+
+        private void decodeMSRBlock(int mode) {
+            if (mRing.available() < 3)
+                return;
+            mRing.skip(2);
+            byte[][] track = new byte[3][];
+            int length = 0;
+            int b;
+            while ((b = mRing.read()) >= 0) {
+                if (b == ETX) {
+                    if (length == TRACK2_LENGTH) {
+                        track[1] = copyTrack(length);
+                    } else if (length == TRACK3_LENGTH) {
+                        track[2] = copyTrack(length);
+                    }
+                    mHandler.obtainMessage(WoosimService.MESSAGE_PRINTER, WoosimService.MSR, mode, track).sendToTarget();
+                } else if (b == LF) {
+                    return;
+                } else if (b == FS) {
+                    if (length == TRACK1_LENGTH) {
+                        track[0] = copyTrack(length);
+                    } else if (length == TRACK2_LENGTH) {
+                        track[1] = copyTrack(length);
+                    } else if (length == TRACK3_LENGTH) {
+                        track[2] = copyTrack(length);
+                    } else {
+                        continue;
+                    }
+                    length = 0;
+                } else if (b != CR) {
+                    mmData[length++] = (byte) b;
+                    if (length > TRACK3_LENGTH)
+                        return;
+                }
+            }
+        }
+
+        private byte[] copyTrack(int length) {
+            byte[] data = new byte[length];
+            System.arraycopy(mmData, 0, data, 0, length);
+            return data;
+        }
+    }
+}
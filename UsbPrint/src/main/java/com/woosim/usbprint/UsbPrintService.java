@@ -5,24 +5,55 @@ import android.hardware.usb.UsbDeviceConnection;
 import android.hardware.usb.UsbEndpoint;
 import android.hardware.usb.UsbInterface;
 import android.hardware.usb.UsbRequest;
-import android.os.Handler;
+import android.os.Build;
 import android.util.Log;
 
+import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 
 public class UsbPrintService {
     private static final String TAG = "UsbPrintService";
     static final int VID = 0x2A92;
+    // Number of OUT transfers kept in flight on the bulk endpoint by default
+    static final int DEFAULT_OUT_REQUESTS = 4;
+    // before Android 9 (API 28), max data length is 16KB
+    private static final int MAX_SEGMENT_LEGACY = 16 * 1024;
+    private static final int MAX_SEGMENT = 64 * 1024;
+    // How long send() waits for a free OUT request
+    private static final long OUT_REQUEST_TIMEOUT_MS = 2000;
 
     private final UsbDeviceConnection mDeviceConnection;
     private final UsbEndpoint mEndpointOut;
     private final UsbEndpoint mEndpointIn;
-    private final Handler mHandler;
     private final WaiterThread mWaiterThread = new WaiterThread();
+    private final ReceiveListener mReceiveListener;
+    // Largest payload of a single OUT transfer
+    private final int mSegmentSize;
+    // Pre-initialized OUT requests, each backed by its own direct buffer
+    private final OutSlot[] mOutSlots;
+    private final BlockingQueue<OutSlot> mFreeOutSlots;
+    // Queued OUT transfers in the order they were queued
+    private final ArrayDeque<OutSlot> mInFlight = new ArrayDeque<>();
+
+    UsbPrintService(UsbDeviceConnection connection, UsbInterface intf, ReceiveListener listener) {
+        this(connection, intf, listener, DEFAULT_OUT_REQUESTS);
+    }
 
-    UsbPrintService(UsbDeviceConnection connection, UsbInterface intf, Handler handler) {
+    /**
+     * @param listener  Listener for received bytes, called off the main thread
+     * @param outRequests  Number of OUT transfers that can be queued on the endpoint at once
+     */
+    UsbPrintService(UsbDeviceConnection connection, UsbInterface intf, ReceiveListener listener, int outRequests) {
+        if (outRequests < 1) {
+            throw new IllegalArgumentException("at least one out request is needed");
+        }
         mDeviceConnection = connection;
-        mHandler = handler;
+        mReceiveListener = listener;
         UsbEndpoint epOut = null;
         UsbEndpoint epIn = null;
 
@@ -42,6 +73,36 @@ public class UsbPrintService {
         }
         mEndpointOut = epOut;
         mEndpointIn = epIn;
+        mSegmentSize = segmentSize(Build.VERSION.SDK_INT, epOut.getMaxPacketSize());
+
+        mOutSlots = new OutSlot[outRequests];
+        mFreeOutSlots = new ArrayBlockingQueue<>(outRequests);
+        for (int i = 0; i < outRequests; i++) {
+            UsbRequest request = new UsbRequest();
+            request.initialize(mDeviceConnection, mEndpointOut);
+            OutSlot slot = new OutSlot(request, ByteBuffer.allocateDirect(mSegmentSize));
+            request.setClientData(slot);
+            mOutSlots[i] = slot;
+            mFreeOutSlots.add(slot);
+        }
+    }
+
+    /**
+     * Largest transfer the platform accepts, rounded down to whole packets
+     * so only the last segment of a payload ends with a short packet.
+     */
+    static int segmentSize(int sdkInt, int maxPacketSize) {
+        int limit = sdkInt >= Build.VERSION_CODES.P ? MAX_SEGMENT : MAX_SEGMENT_LEGACY;
+        if (maxPacketSize <= 0 || maxPacketSize > limit)
+            return limit;
+        return limit - limit % maxPacketSize;
+    }
+
+    /**
+     * Bytes of one OUT transfer, the frame size for CoalescingWriter.
+     */
+    int getSegmentSize() {
+        return mSegmentSize;
     }
 
     void start() {
@@ -54,25 +115,101 @@ public class UsbPrintService {
         }
     }
 
-    // before Android 9 (API 28), max data length is 16KB
-    void send(byte[] data) {
-        ByteBuffer buffer = ByteBuffer.wrap(data);
+    /**
+     * Queue data on the OUT endpoint. Data larger than one transfer is split into segments
+     * and up to the pool size of segments are in flight at once.
+     * @return A future completed when the last segment is transferred
+     */
+    CompletableFuture<Void> send(byte[] data) {
+        return send(data, 0, data.length);
+    }
+
+    /**
+     * Queue size bytes of data starting at start.
+     * @see #send(byte[])
+     */
+    CompletableFuture<Void> send(byte[] data, int start, int size) {
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        if (size == 0) {
+            done.complete(null);
+            return done;
+        }
+        int end = start + size;
+        // Keep the segments of one payload together
         synchronized (this) {
-            UsbRequest request = new UsbRequest();
-            request.initialize(mDeviceConnection, mEndpointOut);
-            if (!request.queue(buffer)) {
-                Log.e(TAG, "out request queue failed");
+            for (int offset = start; offset < end; offset += mSegmentSize) {
+                OutSlot slot;
+                try {
+                    // Wait for the WaiterThread to hand back a completed request
+                    slot = mFreeOutSlots.poll(OUT_REQUEST_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    done.completeExceptionally(e);
+                    return done;
+                }
+                if (slot == null) {
+                    Log.e(TAG, "no out request is available");
+                    done.completeExceptionally(new IOException("no out request is available"));
+                    return done;
+                }
+                int length = Math.min(mSegmentSize, end - offset);
+                slot.buffer.clear();
+                slot.buffer.put(data, offset, length);
+                slot.buffer.flip();
+                slot.done = done;
+                slot.last = offset + length >= end;
+                slot.finished = false;
+                synchronized (mInFlight) {
+                    mInFlight.add(slot);
+                    if (!slot.request.queue(slot.buffer)) {
+                        Log.e(TAG, "out request queue failed");
+                        mInFlight.removeLast();
+                        slot.done = null;
+                        mFreeOutSlots.offer(slot);
+                        done.completeExceptionally(new IOException("out request queue failed"));
+                        return done;
+                    }
+                }
+            }
+        }
+        return done;
+    }
+
+    // Complete OUT transfers in queue order and give their requests back to the pool
+    private void outRequestDone(OutSlot slot) {
+        synchronized (mInFlight) {
+            slot.finished = true;
+            while (!mInFlight.isEmpty() && mInFlight.peek().finished) {
+                OutSlot head = mInFlight.poll();
+                CompletableFuture<Void> done = head.done;
+                boolean last = head.last;
+                head.done = null;
+                mFreeOutSlots.offer(head);
+                if (last && done != null)
+                    done.complete(null);
             }
         }
     }
 
+    // The listener copies what it keeps, so the buffer is queued again at once
     private void receive(ByteBuffer buffer) {
-        int bytes = buffer.position();
-        if (bytes > 0) {
-            byte[] data = new byte[bytes];
-            buffer.position(0);
-            buffer.get(data);
-            mHandler.obtainMessage(MainActivity.MESSAGE_READ, bytes, 0, data).sendToTarget();
+        if (mReceiveListener != null)
+            mReceiveListener.onReceive(buffer.array(), buffer.position());
+    }
+
+    /**
+     * A pooled OUT request and the segment it currently carries.
+     */
+    private static class OutSlot {
+        final UsbRequest request;
+        final ByteBuffer buffer;
+        CompletableFuture<Void> done;
+        boolean last;
+        boolean finished;
+
+        OutSlot(UsbRequest request, ByteBuffer buffer) {
+            this.request = request;
+            this.buffer = buffer;
         }
     }
 
@@ -88,7 +225,7 @@ public class UsbPrintService {
             }
             while (true) {
                 synchronized (this) {
-                    if (mStop)  return;
+                    if (mStop)  break;
                 }
                 UsbRequest request = mDeviceConnection.requestWait();
                 if (request == null) {
@@ -102,9 +239,20 @@ public class UsbPrintService {
                         Log.e(TAG, "inner request queue failed");
                     }
                 } else {
-                    // Receive data from OutEp
-                    request.close();
+                    // OutEp transfer is done, the request can be reused
+                    outRequestDone((OutSlot) request.getClientData());
+                }
+            }
+            requestIn.close();
+            synchronized (mInFlight) {
+                for (OutSlot slot : mInFlight) {
+                    if (slot.done != null)
+                        slot.done.completeExceptionally(new IOException("connection closed"));
                 }
+                mInFlight.clear();
+            }
+            for (OutSlot slot : mOutSlots) {
+                slot.request.close();
             }
         }
     }
@@ -31,10 +31,14 @@ public class MainActivity extends AppCompatActivity {
 
     public static final int MESSAGE_DEVICE = 1;
     public static final int MESSAGE_TOAST = 2;
-    public static final int MESSAGE_READ = 3;
+
+    // Flush delay of the write coalescing, short enough not to be noticed on a printout
+    private static final long FLUSH_DELAY_MS = 10;
 
     private WifiPrintService mPrintService = null;
-    private WoosimService mWoosim = null;
+    // Merges the small writes of a job into frames of one TCP packet
+    private CoalescingWriter mWriter = null;
+    private ReceiveService mReceiveService = null;
 
     private TextView mTrack1View;
     private TextView mTrack2View;
@@ -45,7 +49,7 @@ public class MainActivity extends AppCompatActivity {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_main);
 
-        mWoosim = new WoosimService(mHandler);
+        mReceiveService = new ReceiveService(mHandler);
         mTrack1View = findViewById(R.id.textViewTrack1);
         mTrack2View = findViewById(R.id.textViewTrack2);
         mTrack3View = findViewById(R.id.textViewTrack3);
@@ -55,7 +59,8 @@ public class MainActivity extends AppCompatActivity {
     public void onStart() {
         super.onStart();
         if (mPrintService == null) {
-            mPrintService = new WifiPrintService(mHandler);
+            mPrintService = new WifiPrintService(mHandler, mReceiveListener);
+            mWriter = new CoalescingWriter(mPrintService::write, WifiPrintService.FRAME_SIZE, FLUSH_DELAY_MS);
         }
     }
 
@@ -64,6 +69,7 @@ public class MainActivity extends AppCompatActivity {
         // Stop the print services
         if (mPrintService != null)
             mPrintService.stop();
+        mReceiveService.stop();
         super.onDestroy();
     }
 
@@ -106,6 +112,9 @@ public class MainActivity extends AppCompatActivity {
         return super.onOptionsItemSelected(item);
     }
 
+    // Called on the receive thread of the print service; ReceiveService copies the bytes
+    private final ReceiveListener mReceiveListener = (buffer, length) -> mReceiveService.processRcvData(buffer, length);
+
     // The Handler that gets information back from the WiFiPrintService
     private final Handler mHandler = new Handler(Looper.getMainLooper(), msg -> {
         switch (msg.what) {
@@ -116,9 +125,6 @@ public class MainActivity extends AppCompatActivity {
             case MESSAGE_TOAST:
                 Toast.makeText(getApplicationContext(), msg.arg1, Toast.LENGTH_SHORT).show();
                 break;
-            case MESSAGE_READ:
-                mWoosim.processRcvData((byte[])msg.obj, msg.arg1);
-                break;
             case WoosimService.MESSAGE_PRINTER:
                 if (msg.arg1 == WoosimService.MSR) {
                     if (msg.arg2 == 0) {
@@ -144,13 +150,26 @@ public class MainActivity extends AppCompatActivity {
         return true;
     });
 
+    // Data sent while the service reconnects is queued for the new connection
+    private boolean canSend() {
+        int state = mPrintService.getState();
+        return state == WifiPrintService.STATE_CONNECTED || state == WifiPrintService.STATE_RECONNECTING;
+    }
+
     private void sendData(byte[] data) {
         // Check that we're actually connected before trying printing
-        if (mPrintService.getState() != WifiPrintService.STATE_CONNECTED) {
+        if (!canSend()) {
             Toast.makeText(this, R.string.not_connected, Toast.LENGTH_SHORT).show();
         } else {
-            if (data.length > 0)
-                mPrintService.write(data);
+            mWriter.write(data);
+        }
+    }
+
+    // Send what sendData buffered without waiting for the flush delay, at the end of a job
+    private void flushData() {
+        if (mWriter != null) {
+            mWriter.flush();
+            mPrintService.endJob();
         }
     }
 
@@ -166,6 +185,7 @@ public class MainActivity extends AppCompatActivity {
             {
                 sendData(data);
             }
+            flushData();
         } catch (IOException e) {
             Log.e(TAG, "sample 2inch receipt print fail.", e);
         } finally {
@@ -189,6 +209,7 @@ public class MainActivity extends AppCompatActivity {
         sendData(WoosimImage.printBitmap(0, 0, 384, 200, bmp));
         bmp.recycle();
         sendData(WoosimCmd.PM_setStdMode());
+        flushData();
     }
 
     public void print1DBarcode(View v) {
@@ -307,13 +328,13 @@ public class MainActivity extends AppCompatActivity {
 
     public void setMSRDoubleTrackMode(View v) {
         clearMSRInfo();
-        mWoosim.clearRcvBuffer();
+        mReceiveService.clearRcvBuffer();
         sendData(WoosimCmd.MSR_doubleTrackMode());
     }
 
     public void setMSRTripleTrackMode(View v) {
         clearMSRInfo();
-        mWoosim.clearRcvBuffer();
+        mReceiveService.clearRcvBuffer();
         sendData(WoosimCmd.MSR_tripleTrackMode());
     }
 
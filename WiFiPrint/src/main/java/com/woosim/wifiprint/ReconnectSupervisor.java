@@ -0,0 +1,93 @@
+package com.woosim.wifiprint;
+
+import android.util.Log;
+
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Schedules the attempts to re-establish a lost connection, with exponential backoff and
+ * jitter. The delay before attempt n is between half and all of initialDelay * 2^n, capped at
+ * maxDelay, so handhelds that lose a printer at the same moment do not all retry at once.
+ */
+class ReconnectSupervisor {
+    private static final String TAG = "ReconnectSupervisor";
+
+    // One timer thread for all supervisors; it only starts the attempts
+    private static final ScheduledExecutorService sTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "ReconnectSupervisor");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Runnable mAttempt;
+    private final long mInitialDelayMs;
+    private final long mMaxDelayMs;
+    private final int mMaxAttempts;
+    private final Random mRandom;
+    private int mAttempts;
+    private ScheduledFuture<?> mScheduled;
+
+    /**
+     * @param attempt      Starts one attempt to connect, which reports back with retry() or connected()
+     * @param maxAttempts  Number of failed attempts after which retry() gives up
+     */
+    ReconnectSupervisor(Runnable attempt, long initialDelayMs, long maxDelayMs, int maxAttempts) {
+        this(attempt, initialDelayMs, maxDelayMs, maxAttempts, new Random());
+    }
+
+    ReconnectSupervisor(Runnable attempt, long initialDelayMs, long maxDelayMs, int maxAttempts, Random random) {
+        mAttempt = attempt;
+        mInitialDelayMs = initialDelayMs;
+        mMaxDelayMs = maxDelayMs;
+        mMaxAttempts = maxAttempts;
+        mRandom = random;
+    }
+
+    /**
+     * Schedule the next attempt, after the connection was lost or an attempt failed.
+     * @return false if the supervisor gives up; the next retry() starts over
+     */
+    synchronized boolean retry() {
+        if (mAttempts >= mMaxAttempts) {
+            mAttempts = 0;
+            return false;
+        }
+        long delay = delayMs(mAttempts++);
+        Log.d(TAG, "reconnect attempt " + mAttempts + " of " + mMaxAttempts + " in " + delay + " ms");
+        mScheduled = sTimer.schedule(mAttempt, delay, TimeUnit.MILLISECONDS);
+        return true;
+    }
+
+    /**
+     * The connection is up again; the next loss starts with the shortest delay.
+     */
+    synchronized void connected() {
+        mAttempts = 0;
+        mScheduled = null;
+    }
+
+    /**
+     * Drop the scheduled attempt, e.g. when the user disconnects.
+     */
+    synchronized void cancel() {
+        if (mScheduled != null) {
+            mScheduled.cancel(false);
+            mScheduled = null;
+        }
+        mAttempts = 0;
+    }
+
+    synchronized int getAttempts() {
+        return mAttempts;
+    }
+
+    // Equal jitter: half the backoff is fixed, the other half is random
+    synchronized long delayMs(int attempt) {
+        long backoff = Math.min(mMaxDelayMs, mInitialDelayMs << Math.min(attempt, 30));
+        return backoff - (long) (mRandom.nextDouble() * (backoff / 2));
+    }
+}
@@ -1,8 +1,10 @@
 package com.woosim.wifiprint;
 
 import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -10,28 +12,66 @@ import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketAddress;
 import java.net.UnknownHostException;
-import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 
 class WifiPrintService {
     private static final String TAG = "WifiPrintService";
 
+    // Outgoing data is handed to the send thread in chunks of this size
+    private static final int WRITE_CHUNK_SIZE = 8192;
+    // TCP payload of one Ethernet or Wi-Fi packet, the frame size for CoalescingWriter
+    static final int FRAME_SIZE = 1460;
+    // Number of chunks that can wait for the send thread before write() applies backpressure
+    private static final int WRITE_QUEUE_CAPACITY = 64;
+    // How long write() waits for room in a full send queue before the write is failed
+    private static final long WRITE_QUEUE_TIMEOUT_MS = 3000;
+    // Longest time one write to the socket may block before the connection is aborted
+    private static final long WRITE_TIMEOUT_MS = 10000;
+    // Longest time the writes of one job may take in total; waiting while reconnecting does not count
+    private static final long JOB_TIMEOUT_MS = 120000;
+    // Size of the ring holding received bytes until the receive thread handles them
+    private static final int RECEIVE_BUFFER_SIZE = 4096;
+    // Largest job whose written part is kept, to be sent again after a reconnect
+    private static final int MAX_REPLAY_SIZE = 256 * 1024;
+    // Backoff of the attempts to reconnect to a printer that was lost, about 40 s in total
+    private static final long RECONNECT_INITIAL_DELAY_MS = 500;
+    private static final long RECONNECT_MAX_DELAY_MS = 8000;
+    private static final int RECONNECT_MAX_ATTEMPTS = 8;
+    // Marks the end of a job in the send queue
+    private static final Chunk JOB_END = new Chunk(null, 0, 0, false, null);
+
     private final Handler mHandler;
+    private final ReceiveListener mReceiveListener;
+    private final ReconnectSupervisor mReconnect = new ReconnectSupervisor(this::reconnect,
+            RECONNECT_INITIAL_DELAY_MS, RECONNECT_MAX_DELAY_MS, RECONNECT_MAX_ATTEMPTS);
     private int mState;
     private ConnectThread mConnectThread;
     private ConnectedThread mConnectedThread;
+    // Keeps the queued data of the printer across reconnects
+    private SendThread mSender;
+    private String mDeviceIP;
+    private String mPort;
 
     // Constants that indicate the current connection state
     private static final int STATE_NONE = 0;       // we're doing nothing
     private static final int STATE_CONNECTING = 1; // now initiating an outgoing connection
     static final int STATE_CONNECTED = 2;          // now connected to a remote device
+    static final int STATE_RECONNECTING = 3;       // the connection was lost, connecting again
 
     /**
      * Constructor.
      * @param handler  A Handler to send messages back to the UI Activity
+     * @param listener  Listener for received bytes, called off the main thread
      */
-    WifiPrintService(Handler handler) {
+    WifiPrintService(Handler handler, ReceiveListener listener) {
         mState = STATE_NONE;
         mHandler = handler;
+        mReceiveListener = listener;
     }
 
     private synchronized void setState(int state) {
@@ -51,6 +91,7 @@ class WifiPrintService {
             mConnectedThread.cancel();
             mConnectedThread = null;
         }
+        closeSender();
         setState(STATE_NONE);
     }
 
@@ -67,12 +108,33 @@ class WifiPrintService {
             mConnectedThread.cancel();
             mConnectedThread = null;
         }
+        // The data queued for another printer is not sent to this one
+        closeSender();
+        mDeviceIP = ip;
+        mPort = port;
         // Start the thread to connect with the given device
         mConnectThread = new ConnectThread(ip, port);
         mConnectThread.start();
         setState(STATE_CONNECTING);
     }
 
+    // Called by the supervisor for each attempt to reconnect to the printer that was lost
+    private synchronized void reconnect() {
+        if (mState != STATE_RECONNECTING)
+            return;
+        mConnectThread = new ConnectThread(mDeviceIP, mPort);
+        mConnectThread.start();
+    }
+
+    // Fail what is still queued and forget the printer
+    private void closeSender() {
+        mReconnect.cancel();
+        if (mSender != null) {
+            mSender.cancel();
+            mSender = null;
+        }
+    }
+
     private synchronized void connected(Socket socket) {
         // Cancel the thread that completed the connection
         if (mConnectThread != null) {
@@ -87,32 +149,120 @@ class WifiPrintService {
         // Start the thread to manage the connection and perform transmissions
         mConnectedThread = new ConnectedThread(socket);
         mConnectedThread.start();
+        mReconnect.connected();
+        // After a reconnect the sender goes on with the interrupted job
+        if (mSender == null) {
+            mSender = new SendThread(this::connectionLost);
+            mSender.setOutput(mConnectedThread.mmOutStream);
+            mSender.start();
+        } else {
+            mSender.setOutput(mConnectedThread.mmOutStream);
+        }
 
         mHandler.obtainMessage(MainActivity.MESSAGE_DEVICE, R.string.msg_connect, 0).sendToTarget();
         setState(STATE_CONNECTED);
     }
 
     /**
-     * Write to the ConnectedThread in an un-synchronized manner
-     * Using thread to avoid NetworkOnMainThreadException from Android 7
+     * Queue bytes for the send thread of the current printer.
+     * Writes are sent in the order they are queued, and the send thread also avoids
+     * NetworkOnMainThreadException from Android 7. While the service reconnects to a
+     * printer that was lost, the bytes are queued for the new connection; on the main thread
+     * the call fails instead of waiting for the reconnect when the queue is full.
+     * The array must not be modified until the returned future is completed.
      * @param out The bytes to write
+     * @return A future completed when all bytes are written to the socket
+     */
+    CompletableFuture<Void> write(final byte[] out) {
+        return write(out, 0, out.length);
+    }
+
+    /**
+     * Queue length bytes of out starting at offset.
+     * @see #write(byte[])
+     */
+    CompletableFuture<Void> write(byte[] out, int offset, int length) {
+        SendThread r;
+        synchronized (this) {
+            if ((mState != STATE_CONNECTED && mState != STATE_RECONNECTING) || mSender == null)
+                return failedWrite(new IOException("not connected"));
+            r = mSender;
+        }
+        return r.enqueue(out, offset, length);
+    }
+
+    /**
+     * Flush the socket after everything queued so far has been written.
+     * @return A future completed when the data queued before this call is flushed
      */
-    void write(final byte[] out) {
-        new Thread(() -> mConnectedThread.write(out)).start();
+    CompletableFuture<Void> flush() {
+        SendThread r;
+        synchronized (this) {
+            if ((mState != STATE_CONNECTED && mState != STATE_RECONNECTING) || mSender == null)
+                return failedWrite(new IOException("not connected"));
+            r = mSender;
+        }
+        return r.enqueueFlush();
+    }
+
+    /**
+     * Mark the end of a job in the send queue. If the connection is lost, the job being sent
+     * is sent again from its start after the reconnect, so what the printer printed of it
+     * before the loss is printed twice. A job too large to keep goes on where it stopped.
+     */
+    void endJob() {
+        SendThread r;
+        synchronized (this) {
+            r = mSender;
+        }
+        if (r != null)
+            r.endJob();
+    }
+
+    private static CompletableFuture<Void> failedWrite(Throwable cause) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        future.completeExceptionally(cause);
+        return future;
+    }
+
+    private static boolean onMainThread() {
+        Looper main = Looper.getMainLooper();
+        return main != null && main.isCurrentThread();
     }
 
-    private void connectionFailed(int strId) {
+    private synchronized void connectionFailed(int strId) {
         if (mState == STATE_NONE)
             return;
+        if (mState == STATE_RECONNECTING) {
+            if (!mReconnect.retry())
+                giveUp();
+            return;
+        }
         // Send a failure message back to the Activity
         mHandler.obtainMessage(MainActivity.MESSAGE_TOAST, strId, 0).sendToTarget();
         this.stop();
     }
 
-    private void connectionLost() {
-        // When the application is destroyed, just return
-        if (mState == STATE_NONE)
+    // Called by the receive side and by the sender, whichever notices first
+    private synchronized void connectionLost() {
+        // When the application is destroyed or the loss was already handled, just return
+        if (mState != STATE_CONNECTED)
             return;
+        if (mConnectedThread != null) {
+            mConnectedThread.cancel();
+            mConnectedThread = null;
+        }
+        // The sender holds the data back until the printer is connected again
+        mSender.setOutput(null);
+        if (mReconnect.retry()) {
+            mHandler.obtainMessage(MainActivity.MESSAGE_TOAST, R.string.msg_reconnecting, 0).sendToTarget();
+            setState(STATE_RECONNECTING);
+        } else {
+            giveUp();
+        }
+    }
+
+    private void giveUp() {
         // Send a message back to the Activity
         mHandler.obtainMessage(MainActivity.MESSAGE_TOAST, R.string.msg_connect_lost, 0).sendToTarget();
         this.stop();
@@ -183,6 +333,9 @@ class WifiPrintService {
         private final Socket mmSocket;
         private final InputStream mmInStream;
         private final OutputStream mmOutStream;
+        private final ReceiveBuffer mmReceived = new ReceiveBuffer(RECEIVE_BUFFER_SIZE);
+        private final ReceiveThread mmReceiver = new ReceiveThread(mmReceived, mReceiveListener);
+        private volatile boolean mmCanceled;
 
         ConnectedThread(Socket socket) {
             mmSocket = socket;
@@ -200,43 +353,402 @@ class WifiPrintService {
         }
 
         public void run() {
-            byte[] buffer = new byte[1024];
+            mmReceiver.start();
             // Keep listening to the InputStream while connected
             while (true) {
                 try {
-                    // Read from the InputStream
-                    int bytes = mmInStream.read(buffer);
-                    // buffer can be over-written by next input stream data, so it should be copied
-                    byte[] rcvData = Arrays.copyOf(buffer, bytes);
-                    // Send the obtained bytes to the UI Activity
-                    mHandler.obtainMessage(MainActivity.MESSAGE_READ, bytes, -1, rcvData).sendToTarget();
+                    // Read from the InputStream straight into the receive ring
+                    if (mmReceived.fill(mmInStream) < 0)
+                        throw new IOException("end of stream");
                 } catch (IOException e) {
-                    Log.e(TAG, "disconnected", e);
-                    connectionLost();
+                    mmReceived.close();
+                    // A connection closed by the service is not lost
+                    if (!mmCanceled) {
+                        Log.e(TAG, "disconnected", e);
+                        connectionLost();
+                    }
                     break;
                 }
             }
         }
 
+        void cancel() {
+            mmCanceled = true;
+            mmReceived.close();
+            try {
+                mmInStream.close();
+                mmOutStream.close();
+                mmSocket.close();
+            } catch (IOException e) {
+                Log.e(TAG, "unable to close stream or socket during disconnection", e);
+            }
+        }
+    }
+
+    /**
+     * An entry of the send queue: a slice of a queued write, or a flush request when data is null.
+     * Every chunk of one write shares the same future, which is completed after the last chunk.
+     */
+    private static class Chunk {
+        final byte[] data;
+        final int offset;
+        final int length;
+        final boolean last;
+        final CompletableFuture<Void> done;
+
+        Chunk(byte[] data, int offset, int length, boolean last, CompletableFuture<Void> done) {
+            this.data = data;
+            this.offset = offset;
+            this.length = length;
+            this.last = last;
+            this.done = done;
+        }
+    }
+
+    /**
+     * This thread is the single consumer of the send queue of a printer, so writes leave in
+     * the order they were queued. It outlives the connections to the printer: when one is
+     * lost, the queue waits for the next, which first gets the part of the current job that
+     * was already written, since the printer may not have received it.
+     */
+    private static class SendThread extends Thread {
+        private final Runnable mmOnLost;
+        private final BlockingQueue<Chunk> mmQueue = new LinkedBlockingQueue<>();
+        // One permit per free slot in the send queue
+        private final Semaphore mmSlots = new Semaphore(WRITE_QUEUE_CAPACITY, true);
+        // Keeps the chunks of one write contiguous when several threads write at once
+        private final ReentrantLock mmEnqueueLock = new ReentrantLock();
+        // endJob() was called while a write was being queued, the writing thread ends the job;
+        // guarded by mmGate
+        private boolean mmEndPending;
+        // The queued chunks wait while not connected
+        private final Object mmGate = new Object();
+        private volatile OutputStream mmOut;
+        private volatile boolean mmCanceled;
+        // Set when the connection is lost, cleared once the next one got the replay
+        private boolean mmReplay;
+        // The bytes of the current job written so far; only used by the send thread
+        private final ByteArrayOutputStream mmJob = new ByteArrayOutputStream();
+        private boolean mmJobTooLarge;
+        // Aborts a write that blocks
+        private final WriteWatchdog mmWatchdog = new WriteWatchdog();
+        // Write time left for the current job; only used by the send thread
+        private long mmJobBudgetMs = JOB_TIMEOUT_MS;
+        // Set when the current job timed out, the rest of it is failed with the same exception
+        private WriteTimeoutException mmJobTimeout;
+
         /**
-         * Write to the connected OutStream.
-         * @param buffer  The bytes to write
+         * @param onLost  Called when a write fails, once per connection
          */
-        synchronized void write(byte[] buffer) {
+        SendThread(Runnable onLost) {
+            super("WifiSender");
+            mmOnLost = onLost;
+        }
+
+        /**
+         * Start writing to the stream of a new connection, or stop writing with null.
+         */
+        void setOutput(OutputStream out) {
+            synchronized (mmGate) {
+                if (out == null && mmOut != null)
+                    mmReplay = true;
+                mmOut = out;
+                mmGate.notifyAll();
+            }
+        }
+
+        // Never waits: a write that is being queued, maybe for the reconnect, ends the job after it
+        void endJob() {
+            synchronized (mmGate) {
+                if (!mmEnqueueLock.tryLock()) {
+                    mmEndPending = true;
+                    return;
+                }
+            }
             try {
-                mmOutStream.write(buffer);
+                mmQueue.add(JOB_END);
+            } finally {
+                unlockEnqueue();
+            }
+        }
+
+        CompletableFuture<Void> enqueue(byte[] data, int start, int size) {
+            CompletableFuture<Void> done = new CompletableFuture<>();
+            if (size == 0) {
+                done.complete(null);
+                return done;
+            }
+            int chunks = (size + WRITE_CHUNK_SIZE - 1) / WRITE_CHUNK_SIZE;
+            try {
+                if (!lockEnqueue()) {
+                    done.completeExceptionally(queueError());
+                    return done;
+                }
+                try {
+                    // Reserve room for the whole write at once, so a timeout never leaves half a job queued
+                    int reserved = Math.min(chunks, WRITE_QUEUE_CAPACITY);
+                    if (!acquireSlots(reserved)) {
+                        done.completeExceptionally(queueError());
+                        return done;
+                    }
+                    for (int i = 0; i < chunks; i++) {
+                        // Writes larger than the queue wait for the sender to drain; the chunks
+                        // already queued are skipped by the sender once the write has failed
+                        if (i >= reserved && !acquireSlots(1)) {
+                            done.completeExceptionally(queueError());
+                            return done;
+                        }
+                        int offset = i * WRITE_CHUNK_SIZE;
+                        int length = Math.min(WRITE_CHUNK_SIZE, size - offset);
+                        mmQueue.add(new Chunk(data, start + offset, length, i == chunks - 1, done));
+                    }
+                } finally {
+                    unlockEnqueue();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                done.completeExceptionally(e);
+                return done;
+            }
+            if (mmCanceled)
+                failPending(new IOException("connection closed"));
+            return done;
+        }
+
+        CompletableFuture<Void> enqueueFlush() {
+            CompletableFuture<Void> done = new CompletableFuture<>();
+            try {
+                if (!lockEnqueue()) {
+                    done.completeExceptionally(queueError());
+                    return done;
+                }
+                try {
+                    if (!acquireSlots(1)) {
+                        done.completeExceptionally(queueError());
+                        return done;
+                    }
+                    mmQueue.add(new Chunk(null, 0, 0, true, done));
+                } finally {
+                    unlockEnqueue();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                done.completeExceptionally(e);
+                return done;
+            }
+            if (mmCanceled)
+                failPending(new IOException("connection closed"));
+            return done;
+        }
+
+        // Wait for room in the queue, as long as the connection is open
+        private boolean acquireSlots(int slots) throws InterruptedException {
+            if (onMainThread()) {
+                // The main thread only waits for a queue that is being drained
+                if (!mmSlots.tryAcquire(slots, mmOut == null ? 0 : WRITE_QUEUE_TIMEOUT_MS, TimeUnit.MILLISECONDS))
+                    return false;
+            } else {
+                while (!mmSlots.tryAcquire(slots, WRITE_QUEUE_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                    // A reconnecting queue is waited for, the job is not failed
+                    if (mmOut == null && !mmCanceled)
+                        continue;
+                    return false;
+                }
+            }
+            if (mmCanceled) {
+                mmSlots.release(slots);
+                return false;
+            }
+            return true;
+        }
+
+        // The main thread does not wait behind a write that waits for the reconnect
+        private boolean lockEnqueue() throws InterruptedException {
+            if (!onMainThread()) {
+                mmEnqueueLock.lockInterruptibly();
+                return true;
+            }
+            return mmEnqueueLock.tryLock(mmOut == null ? 0 : WRITE_QUEUE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        }
+
+        private void unlockEnqueue() {
+            // Under mmGate, so an endJob() that did not get the lock is never missed
+            synchronized (mmGate) {
+                if (mmEndPending) {
+                    mmEndPending = false;
+                    mmQueue.add(JOB_END);
+                }
+                mmEnqueueLock.unlock();
+            }
+        }
+
+        private IOException queueError() {
+            if (mmCanceled)
+                return new IOException("connection closed");
+            return new IOException(mmOut == null ? "not connected" : "send queue is full");
+        }
+
+        public void run() {
+            Chunk chunk = null;
+            while (!mmCanceled) {
+                try {
+                    if (chunk == null)
+                        chunk = mmQueue.take();
+                    if (chunk == JOB_END) {
+                        mmJob.reset();
+                        mmJobTooLarge = false;
+                        mmJobBudgetMs = JOB_TIMEOUT_MS;
+                        mmJobTimeout = null;
+                    } else if (mmJobTimeout != null) {
+                        chunk.done.completeExceptionally(mmJobTimeout);
+                        mmSlots.release();
+                    } else if (!chunk.done.isDone()) {
+                        // After a failed write the same chunk is sent to the next connection
+                        if (!send(awaitOutput(), chunk))
+                            continue;
+                        if (chunk.last)
+                            chunk.done.complete(null);
+                        mmSlots.release();
+                    } else {
+                        mmSlots.release();
+                    }
+                    chunk = null;
+                } catch (InterruptedException e) {
+                    break;
+                }
+            }
+            if (chunk != null && chunk != JOB_END) {
+                chunk.done.completeExceptionally(new IOException("connection closed"));
+                mmSlots.release();
+            }
+            failPending(new IOException("connection closed"));
+        }
+
+        private boolean send(OutputStream out, Chunk chunk) {
+            boolean replay;
+            synchronized (mmGate) {
+                replay = mmReplay && mmJob.size() > 0;
+            }
+            // A replay may take longer than one write, it is only bounded by the job deadline
+            long timeoutMs = replay ? mmJobBudgetMs : Math.min(WRITE_TIMEOUT_MS, mmJobBudgetMs);
+            long started = System.nanoTime();
+            IOException error = null;
+            mmWatchdog.arm(out, timeoutMs == mmJobBudgetMs ? "job timed out" : "write timed out", timeoutMs);
+            try {
+                if (replay) {
+                    Log.d(TAG, "replaying " + mmJob.size() + " bytes of the interrupted job");
+                    mmJob.writeTo(out);
+                }
+                if (chunk.data == null)
+                    out.flush();
+                else
+                    out.write(chunk.data, chunk.offset, chunk.length);
             } catch (IOException e) {
-                Log.e(TAG, "Exception during write", e);
+                error = e;
+            }
+            WriteTimeoutException timeout = mmWatchdog.disarm();
+            if (timeout != null)
+                error = timeout;
+            mmJobBudgetMs -= TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+            if (error instanceof WriteTimeoutException) {
+                // A stalled job is failed rather than sent again, so it can be sent elsewhere
+                mmJobTimeout = (WriteTimeoutException) error;
+                mmJob.reset();
+                chunk.done.completeExceptionally(error);
+                lost(out);
+                return true;
+            }
+            if (error != null) {
+                Log.e(TAG, "Exception during write", error);
+                lost(out);
+                return false;
+            }
+            synchronized (mmGate) {
+                if (mmOut == out)
+                    mmReplay = false;
+            }
+            if (chunk.data == null)
+                return true;
+            // A job too large to keep is resumed where it stopped instead
+            if (!mmJobTooLarge && mmJob.size() + chunk.length > MAX_REPLAY_SIZE) {
+                mmJob.reset();
+                mmJobTooLarge = true;
+            }
+            if (!mmJobTooLarge)
+                mmJob.write(chunk.data, chunk.offset, chunk.length);
+            return true;
+        }
+
+        private void lost(OutputStream out) {
+            synchronized (mmGate) {
+                if (mmOut != out)
+                    return;
+            }
+            mmOnLost.run();
+            // Whatever the service did, this stream is not written again
+            synchronized (mmGate) {
+                if (mmOut == out)
+                    setOutput(null);
+            }
+        }
+
+        private OutputStream awaitOutput() throws InterruptedException {
+            synchronized (mmGate) {
+                while (mmOut == null && !mmCanceled) {
+                    mmGate.wait();
+                }
+                if (mmCanceled)
+                    throw new InterruptedException();
+                return mmOut;
+            }
+        }
+
+        private void failPending(IOException cause) {
+            Chunk chunk;
+            while ((chunk = mmQueue.poll()) != null) {
+                if (chunk == JOB_END)
+                    continue;
+                chunk.done.completeExceptionally(cause);
+                mmSlots.release();
             }
         }
 
         void cancel() {
+            mmCanceled = true;
+            synchronized (mmGate) {
+                mmGate.notifyAll();
+            }
+            interrupt();
+            failPending(new IOException("connection closed"));
+            // Wake the writes waiting for room, the queue is not drained any more
+            mmSlots.release(WRITE_QUEUE_CAPACITY);
+        }
+    }
+
+    /**
+     * This thread hands received bytes to the listener, so replies are parsed
+     * off the main thread while the connection keeps reading.
+     */
+    private static class ReceiveThread extends Thread {
+        private final ReceiveBuffer mmBuffer;
+        private final ReceiveListener mmListener;
+
+        ReceiveThread(ReceiveBuffer buffer, ReceiveListener listener) {
+            super("WifiReceiver");
+            mmBuffer = buffer;
+            mmListener = listener;
+        }
+
+        public void run() {
+            byte[] data = new byte[1024];
             try {
-                mmInStream.close();
-                mmOutStream.close();
-                mmSocket.close();
-            } catch (IOException e) {
-                Log.e(TAG, "unable to close stream or socket during disconnection", e);
+                int bytes;
+                while ((bytes = mmBuffer.drain(data)) > 0) {
+                    if (mmListener != null)
+                        mmListener.onReceive(data, bytes);
+                }
+            } catch (InterruptedException e) {
+                Log.w(TAG, "receive thread interrupted");
             }
         }
     }
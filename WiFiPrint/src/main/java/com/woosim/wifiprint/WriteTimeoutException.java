@@ -0,0 +1,20 @@
+package com.woosim.wifiprint;
+
+import java.io.IOException;
+
+/**
+ * A write to the printer did not finish in time, e.g. because the printer stopped reading or
+ * the link is half-dead. The connection was aborted; the rest of the job was not sent.
+ */
+class WriteTimeoutException extends IOException {
+    private final long mTimeoutMs;
+
+    WriteTimeoutException(String message, long timeoutMs) {
+        super(message + " after " + timeoutMs + " ms");
+        mTimeoutMs = timeoutMs;
+    }
+
+    long getTimeoutMs() {
+        return mTimeoutMs;
+    }
+}